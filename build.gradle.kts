@@ -52,6 +52,8 @@ sourceSets {
 
 dependencies {
     testImplementation("junit:junit:4.13")
+    // generates the accessors for the test classes annotated with @GenerateSizer
+    testAnnotationProcessor(project(":processor"))
 }
 
 val jar = tasks.named<Jar>("jar")
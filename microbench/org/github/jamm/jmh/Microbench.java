@@ -2,7 +2,9 @@ package org.github.jamm.jmh;
 
 import java.nio.ByteBuffer;
 import java.util.ArrayList;
+import java.util.HashMap;
 import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
 import java.util.concurrent.TimeUnit;
 
 import org.github.jamm.MemoryMeter;
@@ -37,6 +39,7 @@ public class Microbench
     private String guess;
 
     private MemoryMeter meter;
+    private MemoryMeter reusingMeter;
 
     private String valString;
     private ByteBuffer heapByteBuffer;
@@ -48,6 +51,11 @@ public class Microbench
     private Object[] objects;
 
     private ClsX deeplyNested;
+    private ClsWide[] wideObjects;
+    private HashMap<Integer, String> hashMap;
+    private ConcurrentHashMap<Integer, Long> concurrentHashMap;
+    private ArrayList<String> arrayList;
+    private List<Cls1> smallRoots;
     @Param({ "100" })
     private int nested;
     @Param({ "4" })
@@ -60,6 +68,9 @@ public class Microbench
         this.meter = MemoryMeter.builder()
                                 .withGuessing(guess)
                                 .build();
+        this.reusingMeter = meter.unbuild()
+                                 .reuseMeasurementContext(1024, 1 << 16)
+                                 .build();
 
         StringBuilder sb = new StringBuilder();
         for (int i = 0; i < 300; i++)
@@ -78,6 +89,24 @@ public class Microbench
         for (int i = 0; i < objects.length; i++)
             objects[i] = new Object();
 
+        hashMap = new HashMap<>();
+        concurrentHashMap = new ConcurrentHashMap<>();
+        arrayList = new ArrayList<>();
+        for (int i = 0; i < 1000; i++)
+        {
+            hashMap.put(i, "value" + i);
+            concurrentHashMap.put(i, (long) i * 1000);
+            arrayList.add("element" + i);
+        }
+
+        smallRoots = new ArrayList<>();
+        for (int i = 0; i < 10000; i++)
+            smallRoots.add(i % 2 == 0 ? new Cls1() : new Cls2());
+
+        wideObjects = new ClsWide[1000];
+        for (int i = 0; i < wideObjects.length; i++)
+            wideObjects[i] = new ClsWide();
+
         ClsX last = null;
         for (int i = 0; i < nested; i++)
         {
@@ -106,12 +135,52 @@ public class Microbench
         bh.consume(meter.measureDeep(deeplyNested));
     }
 
+    // run with "-prof gc" to verify that a warm meter does not allocate
+    @Benchmark
+    public void deeplyNestedReusedContext(Blackhole bh)
+    {
+        bh.consume(reusingMeter.measureDeep(deeplyNested));
+    }
+
     @Benchmark
     public void justString(Blackhole bh)
     {
         bh.consume(meter.measureDeep(valString));
     }
 
+    @Benchmark
+    public void hashMap(Blackhole bh)
+    {
+        bh.consume(meter.measureDeep(hashMap));
+    }
+
+    @Benchmark
+    public void concurrentHashMap(Blackhole bh)
+    {
+        bh.consume(meter.measureDeep(concurrentHashMap));
+    }
+
+    @Benchmark
+    public void arrayList(Blackhole bh)
+    {
+        bh.consume(meter.measureDeep(arrayList));
+    }
+
+    @Benchmark
+    public void smallRootsEach(Blackhole bh)
+    {
+        long total = 0;
+        for (Cls1 root : smallRoots)
+            total += meter.measureDeep(root);
+        bh.consume(total);
+    }
+
+    @Benchmark
+    public void smallRootsBatch(Blackhole bh)
+    {
+        bh.consume(meter.measureDeepAll(smallRoots).getTotalBytes());
+    }
+
     @Benchmark
     public void justByteBuffer(Blackhole bh)
     {
@@ -154,6 +223,13 @@ public class Microbench
     //        bh.consume(meter.sizeOfArray(objects));
     //    }
 
+    // compare with -Djamm.generate-field-pushers=false to see the cost of looping over the field getters
+    @Benchmark
+    public void wideObjects(Blackhole bh)
+    {
+        bh.consume(meter.measureDeep(wideObjects));
+    }
+
     @Benchmark
     public void cls1(Blackhole bh)
     {
@@ -203,6 +279,19 @@ class ClsX
     List<ClsX> objs = new ArrayList<>();
 }
 
+@SuppressWarnings("unused")
+class ClsWide
+{
+    Object a = new Object();
+    Object b = new Object();
+    Object c = new Object();
+    Object d = new Object();
+    Object e = null;
+    Object f = null;
+    Object g = Boolean.TRUE;
+    Object h = new Object();
+}
+
 @SuppressWarnings("unused")
 class Cls1
 {
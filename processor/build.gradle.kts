@@ -0,0 +1,33 @@
+plugins {
+    `java-library`
+}
+
+description = "Annotation processor that generates the accessors for classes annotated with @GenerateSizer."
+
+repositories {
+    mavenCentral()
+}
+
+sourceSets {
+    main {
+        java.srcDir("src")
+        resources.srcDir("resources")
+    }
+    test {
+        java.srcDir("test")
+    }
+}
+
+dependencies {
+    testImplementation(rootProject)
+    testImplementation("junit:junit:4.13")
+}
+
+java {
+    sourceCompatibility = JavaVersion.VERSION_1_8
+    targetCompatibility = JavaVersion.VERSION_1_8
+}
+
+tasks.withType<JavaCompile>().configureEach {
+    options.encoding = "UTF-8"
+}
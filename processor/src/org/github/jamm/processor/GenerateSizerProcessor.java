@@ -0,0 +1,238 @@
+package org.github.jamm.processor;
+
+import java.io.IOException;
+import java.io.PrintWriter;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Set;
+
+import javax.annotation.processing.AbstractProcessor;
+import javax.annotation.processing.RoundEnvironment;
+import javax.annotation.processing.SupportedAnnotationTypes;
+import javax.lang.model.SourceVersion;
+import javax.lang.model.element.Element;
+import javax.lang.model.element.ElementKind;
+import javax.lang.model.element.Modifier;
+import javax.lang.model.element.NestingKind;
+import javax.lang.model.element.PackageElement;
+import javax.lang.model.element.TypeElement;
+import javax.lang.model.element.VariableElement;
+import javax.lang.model.type.DeclaredType;
+import javax.lang.model.type.TypeKind;
+import javax.lang.model.type.TypeMirror;
+import javax.lang.model.util.ElementFilter;
+import javax.tools.Diagnostic;
+
+/**
+ * Generates an {@code org.github.jamm.ChildAccessor} for every class annotated with
+ * {@code org.github.jamm.GenerateSizer}.
+ * <p>
+ * The generated accessor reads the fields, that are accessible from the package of the annotated class, directly.
+ * All other fields are read through method handles, that are created once, when the accessor is initialized.
+ * <p>
+ * The processor does not depend on jamm, so that it only needs to be on the annotation processor path.
+ */
+@SupportedAnnotationTypes(GenerateSizerProcessor.ANNOTATION)
+public class GenerateSizerProcessor extends AbstractProcessor
+{
+    static final String ANNOTATION = "org.github.jamm.GenerateSizer";
+
+    // must be the same as org.github.jamm.ChildAccessor.CLASS_NAME_SUFFIX
+    static final String CLASS_NAME_SUFFIX = "$JammAccessor";
+
+    @Override
+    public SourceVersion getSupportedSourceVersion()
+    {
+        return SourceVersion.latestSupported();
+    }
+
+    @Override
+    public boolean process(Set<? extends TypeElement> annotations, RoundEnvironment roundEnv)
+    {
+        for (TypeElement annotation : annotations)
+            for (Element element : roundEnv.getElementsAnnotatedWith(annotation))
+                generate(element);
+        return true;
+    }
+
+    private void generate(Element element)
+    {
+        if (element.getKind() != ElementKind.CLASS)
+        {
+            error(element, "@GenerateSizer can only be used on classes");
+            return;
+        }
+
+        TypeElement type = (TypeElement) element;
+        if (type.getNestingKind() != NestingKind.TOP_LEVEL
+            && (type.getNestingKind() != NestingKind.MEMBER || !type.getModifiers().contains(Modifier.STATIC)))
+        {
+            error(type, "@GenerateSizer can only be used on top-level or static nested classes");
+            return;
+        }
+        for (Element e = type; e instanceof TypeElement; e = e.getEnclosingElement())
+        {
+            if (e.getModifiers().contains(Modifier.PRIVATE))
+            {
+                error(type, "@GenerateSizer cannot be used on private classes or on classes nested in private classes");
+                return;
+            }
+        }
+
+        PackageElement pkg = processingEnv.getElementUtils().getPackageOf(type);
+        String packagePrefix = pkg.isUnnamed() ? "" : pkg.getQualifiedName() + ".";
+        String binaryName = processingEnv.getElementUtils().getBinaryName(type).toString();
+        String accessorName = binaryName.substring(packagePrefix.length()) + CLASS_NAME_SUFFIX;
+
+        List<VariableElement> fields = new ArrayList<>();
+        List<Integer> depths = new ArrayList<>();
+        int depth = 0;
+        for (TypeElement t = type; t != null; t = superclass(t), depth++)
+        {
+            for (VariableElement field : ElementFilter.fieldsIn(t.getEnclosedElements()))
+            {
+                if (!field.getModifiers().contains(Modifier.STATIC) && !field.asType().getKind().isPrimitive())
+                {
+                    fields.add(field);
+                    depths.add(depth);
+                }
+            }
+        }
+
+        try (PrintWriter out = new PrintWriter(processingEnv.getFiler().createSourceFile(packagePrefix + accessorName, type).openWriter()))
+        {
+            write(out, pkg, type, accessorName, fields, depths);
+        }
+        catch (IOException e)
+        {
+            error(type, "Failed to generate " + packagePrefix + accessorName + ": " + e);
+        }
+    }
+
+    private void write(PrintWriter out,
+                       PackageElement pkg,
+                       TypeElement type,
+                       String accessorName,
+                       List<VariableElement> fields,
+                       List<Integer> depths)
+    {
+        String typeName = erasure(type);
+        String typeArguments = "";
+        if (!type.getTypeParameters().isEmpty())
+        {
+            StringBuilder sb = new StringBuilder("<");
+            for (int i = 0; i < type.getTypeParameters().size(); i++)
+                sb.append(i == 0 ? "?" : ", ?");
+            typeArguments = sb.append('>').toString();
+        }
+
+        if (!pkg.isUnnamed())
+        {
+            out.println("package " + pkg.getQualifiedName() + ';');
+            out.println();
+        }
+        out.println("/**");
+        out.println(" * Generated by " + getClass().getName() + " for {@link " + typeName + "}, do not edit.");
+        out.println(" */");
+        out.println("@SuppressWarnings({\"rawtypes\", \"cast\"})");
+        out.println("public final class " + accessorName + " implements org.github.jamm.ChildAccessor<" + typeName + typeArguments + '>');
+        out.println('{');
+
+        boolean needsGetter = false;
+        for (int i = 0; i < fields.size(); i++)
+        {
+            VariableElement field = fields.get(i);
+            if (!isAccessible(field, pkg))
+            {
+                out.println("    private static final java.lang.invoke.MethodHandle FIELD_" + i + " = getter(" + depths.get(i) + ", \"" + field.getSimpleName() + "\");");
+                needsGetter = true;
+            }
+        }
+        if (needsGetter)
+            out.println();
+
+        out.println("    @Override");
+        out.println("    public int childCount()");
+        out.println("    {");
+        out.println("        return " + fields.size() + ';');
+        out.println("    }");
+        out.println();
+        out.println("    @Override");
+        out.println("    public Object child(" + typeName + typeArguments + " obj, int index) throws Throwable");
+        out.println("    {");
+        out.println("        switch (index)");
+        out.println("        {");
+        for (int i = 0; i < fields.size(); i++)
+        {
+            VariableElement field = fields.get(i);
+            out.println("            case " + i + ':');
+            if (isAccessible(field, pkg))
+                out.println("                return ((" + erasure((TypeElement) field.getEnclosingElement()) + ") obj)." + field.getSimpleName() + ';');
+            else
+                out.println("                return (Object) FIELD_" + i + ".invokeExact((Object) obj);");
+        }
+        out.println("            default:");
+        out.println("                throw new IndexOutOfBoundsException(String.valueOf(index));");
+        out.println("        }");
+        out.println("    }");
+
+        if (needsGetter)
+        {
+            out.println();
+            out.println("    private static java.lang.invoke.MethodHandle getter(int superclassDepth, String name)");
+            out.println("    {");
+            out.println("        Class<?> declaringClass = " + typeName + ".class;");
+            out.println("        for (int i = 0; i < superclassDepth; i++)");
+            out.println("            declaringClass = declaringClass.getSuperclass();");
+            out.println("        try");
+            out.println("        {");
+            out.println("            java.lang.reflect.Field field = declaringClass.getDeclaredField(name);");
+            out.println("            field.setAccessible(true);");
+            out.println("            return java.lang.invoke.MethodHandles.lookup()");
+            out.println("                                                .unreflectGetter(field)");
+            out.println("                                                .asType(java.lang.invoke.MethodType.methodType(Object.class, Object.class));");
+            out.println("        }");
+            out.println("        catch (ReflectiveOperationException e)");
+            out.println("        {");
+            out.println("            throw new ExceptionInInitializerError(e);");
+            out.println("        }");
+            out.println("    }");
+        }
+        out.println('}');
+    }
+
+    /**
+     * @return {@code true}, if the generated accessor, that is in the package {@code pkg}, can read {@code field}
+     * directly
+     */
+    private boolean isAccessible(VariableElement field, PackageElement pkg)
+    {
+        if (field.getModifiers().contains(Modifier.PRIVATE))
+            return false;
+
+        Element declaring = field.getEnclosingElement();
+        boolean samePackage = processingEnv.getElementUtils().getPackageOf(declaring).equals(pkg);
+        for (Element e = declaring; e instanceof TypeElement; e = e.getEnclosingElement())
+        {
+            if (e.getModifiers().contains(Modifier.PRIVATE) || !samePackage && !e.getModifiers().contains(Modifier.PUBLIC))
+                return false;
+        }
+        return samePackage || field.getModifiers().contains(Modifier.PUBLIC);
+    }
+
+    private String erasure(TypeElement type)
+    {
+        return processingEnv.getTypeUtils().erasure(type.asType()).toString();
+    }
+
+    private static TypeElement superclass(TypeElement type)
+    {
+        TypeMirror superclass = type.getSuperclass();
+        return superclass.getKind() == TypeKind.DECLARED ? (TypeElement) ((DeclaredType) superclass).asElement() : null;
+    }
+
+    private void error(Element element, String message)
+    {
+        processingEnv.getMessager().printMessage(Diagnostic.Kind.ERROR, message, element);
+    }
+}
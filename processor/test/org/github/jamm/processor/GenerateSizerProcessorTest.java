@@ -0,0 +1,135 @@
+package org.github.jamm.processor;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import java.io.File;
+import java.io.IOException;
+import java.net.URL;
+import java.net.URLClassLoader;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import javax.tools.Diagnostic;
+import javax.tools.DiagnosticCollector;
+import javax.tools.JavaCompiler;
+import javax.tools.JavaFileObject;
+import javax.tools.StandardJavaFileManager;
+import javax.tools.ToolProvider;
+
+import org.github.jamm.ChildAccessor;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+public class GenerateSizerProcessorTest
+{
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    private final DiagnosticCollector<JavaFileObject> diagnostics = new DiagnosticCollector<>();
+
+    @Test
+    @SuppressWarnings("unchecked")
+    public void testGeneratedAccessor() throws Throwable
+    {
+        File classes = compile("a/Base.java",
+                               "package a;\n" +
+                               "public class Base {\n" +
+                               "    private Object basePrivate = \"basePrivate\";\n" +
+                               "    protected Object baseProtected = \"baseProtected\";\n" +
+                               "    public Object basePublic = \"basePublic\";\n" +
+                               "}\n",
+                               "b/Row.java",
+                               "package b;\n" +
+                               "@org.github.jamm.GenerateSizer\n" +
+                               "public class Row extends a.Base {\n" +
+                               "    Object key = \"key\";\n" +
+                               "    private Object value = \"value\";\n" +
+                               "    Object baseProtected = \"shadowing\";\n" +
+                               "    int primitive;\n" +
+                               "    static Object ignored = \"static\";\n" +
+                               "    @org.github.jamm.GenerateSizer\n" +
+                               "    public static class Cell<T> { T value; }\n" +
+                               "}\n");
+        assertTrue(diagnostics.getDiagnostics().toString(), diagnostics.getDiagnostics().isEmpty());
+
+        try (URLClassLoader loader = new URLClassLoader(new URL[]{ classes.toURI().toURL() }, getClass().getClassLoader()))
+        {
+            Class<?> row = loader.loadClass("b.Row");
+            ChildAccessor<Object> accessor = (ChildAccessor<Object>) loader.loadClass("b.Row" + ChildAccessor.CLASS_NAME_SUFFIX).getConstructor().newInstance();
+            Object obj = row.getConstructor().newInstance();
+
+            List<Object> children = new ArrayList<>();
+            for (int i = 0; i < accessor.childCount(); i++)
+                children.add(accessor.child(obj, i));
+            assertEquals(6, children.size());
+            for (String child : Arrays.asList("key", "value", "shadowing", "basePrivate", "baseProtected", "basePublic"))
+                assertTrue(child + " in " + children, children.contains(child));
+
+            Class<?> cell = loader.loadClass("b.Row$Cell");
+            accessor = (ChildAccessor<Object>) loader.loadClass("b.Row$Cell" + ChildAccessor.CLASS_NAME_SUFFIX).getConstructor().newInstance();
+            assertEquals(1, accessor.childCount());
+            assertNull(accessor.child(cell.getDeclaredConstructor().newInstance(), 0));
+        }
+    }
+
+    @Test
+    public void testInvalidClasses() throws IOException
+    {
+        compile("c/Invalid.java",
+                "package c;\n" +
+                "public class Invalid {\n" +
+                "    @org.github.jamm.GenerateSizer\n" +
+                "    private static class PrivateClass { Object o; }\n" +
+                "    @org.github.jamm.GenerateSizer\n" +
+                "    class InnerClass { Object o; }\n" +
+                "    @org.github.jamm.GenerateSizer\n" +
+                "    interface NotAClass { }\n" +
+                "}\n");
+
+        List<String> errors = new ArrayList<>();
+        for (Diagnostic<? extends JavaFileObject> diagnostic : diagnostics.getDiagnostics())
+        {
+            assertEquals(Diagnostic.Kind.ERROR, diagnostic.getKind());
+            errors.add(diagnostic.getMessage(null));
+        }
+        assertEquals(errors.toString(), 3, errors.size());
+        assertTrue(errors.contains("@GenerateSizer cannot be used on private classes or on classes nested in private classes"));
+        assertTrue(errors.contains("@GenerateSizer can only be used on top-level or static nested classes"));
+        assertTrue(errors.contains("@GenerateSizer can only be used on classes"));
+    }
+
+    /**
+     * Compiles the given sources, alternating file names and contents, with the processor.
+     *
+     * @return the directory containing the compiled classes
+     */
+    private File compile(String... namesAndSources) throws IOException
+    {
+        File sources = folder.newFolder("sources");
+        File classes = folder.newFolder("classes");
+        List<File> files = new ArrayList<>();
+        for (int i = 0; i < namesAndSources.length; i += 2)
+        {
+            File file = new File(sources, namesAndSources[i]);
+            assertTrue(file.getParentFile().mkdirs() || file.getParentFile().isDirectory());
+            Files.write(file.toPath(), namesAndSources[i + 1].getBytes(StandardCharsets.UTF_8));
+            files.add(file);
+        }
+
+        JavaCompiler compiler = ToolProvider.getSystemJavaCompiler();
+        try (StandardJavaFileManager fileManager = compiler.getStandardFileManager(diagnostics, null, StandardCharsets.UTF_8))
+        {
+            List<String> options = Arrays.asList("-d", classes.getPath(), "-classpath", System.getProperty("java.class.path"));
+            JavaCompiler.CompilationTask task = compiler.getTask(null, fileManager, diagnostics, options, null, fileManager.getJavaFileObjectsFromFiles(files));
+            task.setProcessors(Arrays.asList(new GenerateSizerProcessor()));
+            task.call();
+        }
+        return classes;
+    }
+}
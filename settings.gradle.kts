@@ -25,6 +25,8 @@ pluginManagement {
 
 rootProject.name = "jamm"
 
+include("processor")
+
 gradle.beforeProject {
     group = "com.github.jbellis"
     description = "Jamm provides MemoryMeter, a java agent to measure actual object memory use including JVM overhead."
@@ -0,0 +1,435 @@
+package org.github.jamm;
+
+import java.io.IOException;
+import java.lang.instrument.ClassFileTransformer;
+import java.lang.instrument.Instrumentation;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
+import java.security.ProtectionDomain;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.Locale;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReference;
+
+/**
+ * The options of the agent, which configure the {@link MemoryMeter#defaultMeter()} built when the agent is loaded,
+ * for example {@code -javaagent:jamm.jar=guess=always_unsafe,ignore=com.example.Cache;com.example.generated.*,mbean=default}.
+ * <p>
+ * The options are separated by commas. An option is either a flag or a key and a value separated by {@code =}. The
+ * values of options taking lists are separated by semicolons. The names of enum constants are case-insensitive and
+ * may use {@code -} instead of {@code _}. The supported options are:
+ * <dl>
+ * <dt>{@code guess=<name>}</dt><dd>the {@link MemoryMeter.Guess}, {@code best} by default</dd>
+ * <dt>{@code field-access=<name>}</dt><dd>the {@link MemoryMeter.FieldAccess}</dd>
+ * <dt>{@code visited-set=<name>}</dt><dd>the {@link MemoryMeter.VisitedSetStrategy}</dd>
+ * <dt>{@code bytebuffers=normal|omit-shared|shallow|heap-only-no-slice}</dt><dd>how byte buffers are measured, see
+ * {@link MemoryMeter.Builder#omitSharedBufferOverhead()} and the following builder methods</dd>
+ * <dt>{@code ignore=<class>;...}</dt><dd>classes to ignore, see {@link MemoryMeter.Builder#ignoreClasses}</dd>
+ * <dt>{@code ignore-known-singletons}, {@code ignore-dont-measure}</dt><dd>see the builder methods of the same name</dd>
+ * <dt>{@code statistics}</dt><dd>see {@link MemoryMeter.Builder#withStatistics()}</dd>
+ * <dt>{@code mbean=<name>}</dt><dd>registers the statistics under the given name, implies {@code statistics}, see
+ * {@link MemoryMeter#registerMXBean(String)}</dd>
+ * <dt>{@code metrics-interval=<seconds>}</dt><dd>writes a line with the statistics at the given interval, implies
+ * {@code statistics}</dd>
+ * <dt>{@code metrics-file=<path>}</dt><dd>the file, that the statistics are appended to, standard error by default</dd>
+ * <dt>{@code warmup=<package>;...}</dt><dd>warms up the classes of the given packages and their sub-packages, the
+ * ones already loaded and the ones loaded later, see {@link MemoryMeter#warmUp(java.util.Collection, int)}</dd>
+ * <dt>{@code warmup-threads=<n>}</dt><dd>the number of threads warming up classes, 2 by default</dd>
+ * <dt>{@code profile=<package>;...}</dt><dd>profiles the allocations of the classes of the given packages and their
+ * sub-packages, see {@link AllocationProfiler}</dd>
+ * <dt>{@code profile-interval=<n>}</dt><dd>samples one out of n allocations on average, 64 by default</dd>
+ * <dt>{@code profile-dump=<path>}</dt><dd>the file, that the allocation profile is written to, when the JVM exits</dd>
+ * </dl>
+ * Invalid options fail the start of the agent with an {@link IllegalArgumentException}. The agent is started at most
+ * once per JVM: attaching it again fails with an {@link IllegalStateException} and leaves the configuration of the first
+ * start in place.
+ */
+final class AgentOptions
+{
+    private static final List<String> KEYS = Arrays.asList("guess", "field-access", "visited-set", "bytebuffers",
+                                                           "ignore", "ignore-known-singletons", "ignore-dont-measure",
+                                                           "statistics", "mbean", "metrics-interval", "metrics-file",
+                                                           "warmup", "warmup-threads", "profile", "profile-interval",
+                                                           "profile-dump");
+
+    MemoryMeter.Guess guess = MemoryMeter.Guess.BEST;
+    MemoryMeter.FieldAccess fieldAccess = MemoryMeter.FieldAccess.METHOD_HANDLES;
+    MemoryMeter.VisitedSetStrategy visitedSetStrategy = MemoryMeter.VisitedSetStrategy.OPEN_ADDRESSING;
+    byte byteBufferMode = MemoryMeter.BB_MODE_NORMAL;
+    List<String> ignoredClasses = Collections.emptyList();
+    boolean ignoreKnownSingletons;
+    boolean ignoreDontMeasure;
+    boolean statistics;
+    String mbeanName;
+    long metricsIntervalSeconds;
+    String metricsFile;
+    List<String> warmUpPackages = Collections.emptyList();
+    int warmUpThreads = 2;
+    List<String> profilePackages = Collections.emptyList();
+    int profileInterval = 64;
+    String profileDump;
+
+    // the options the agent has been started with
+    private static final AtomicReference<AgentOptions> started = new AtomicReference<>();
+
+    // null, unless the metrics are exported
+    private volatile ScheduledExecutorService metricsExport;
+
+    private AgentOptions()
+    {
+    }
+
+    static AgentOptions parse(String options)
+    {
+        AgentOptions parsed = new AgentOptions();
+        if (options == null || options.trim().isEmpty())
+            return parsed;
+
+        for (String option : options.split(","))
+        {
+            int eq = option.indexOf('=');
+            String key = (eq < 0 ? option : option.substring(0, eq)).trim();
+            String value = eq < 0 ? null : option.substring(eq + 1).trim();
+            try
+            {
+                parsed.set(key, value);
+            }
+            catch (IllegalArgumentException e)
+            {
+                throw new IllegalArgumentException("Invalid jamm agent option '" + option + "': " + e.getMessage(), e);
+            }
+        }
+        return parsed;
+    }
+
+    private void set(String key, String value)
+    {
+        switch (key)
+        {
+            case "guess":
+                guess = MemoryMeter.Guess.valueOf(constantName(value));
+                break;
+            case "field-access":
+                fieldAccess = MemoryMeter.FieldAccess.valueOf(constantName(value));
+                break;
+            case "visited-set":
+                visitedSetStrategy = MemoryMeter.VisitedSetStrategy.valueOf(constantName(value));
+                break;
+            case "bytebuffers":
+                byteBufferMode = byteBufferMode(required(value));
+                break;
+            case "ignore":
+                ignoredClasses = list(value);
+                break;
+            case "ignore-known-singletons":
+                ignoreKnownSingletons = flag(value);
+                break;
+            case "ignore-dont-measure":
+                ignoreDontMeasure = flag(value);
+                break;
+            case "statistics":
+                statistics = flag(value);
+                break;
+            case "mbean":
+                mbeanName = required(value);
+                break;
+            case "metrics-interval":
+                metricsIntervalSeconds = Long.parseLong(required(value));
+                if (metricsIntervalSeconds <= 0)
+                    throw new IllegalArgumentException("the interval must be positive");
+                break;
+            case "metrics-file":
+                metricsFile = required(value);
+                break;
+            case "warmup":
+                warmUpPackages = list(value);
+                break;
+            case "warmup-threads":
+                warmUpThreads = Integer.parseInt(required(value));
+                if (warmUpThreads <= 0)
+                    throw new IllegalArgumentException("the number of threads must be positive");
+                break;
+            case "profile":
+                profilePackages = list(value);
+                break;
+            case "profile-interval":
+                profileInterval = Integer.parseInt(required(value));
+                if (profileInterval <= 0)
+                    throw new IllegalArgumentException("the interval must be positive");
+                break;
+            case "profile-dump":
+                profileDump = required(value);
+                break;
+            default:
+                throw new IllegalArgumentException("unknown option, the supported options are " + KEYS);
+        }
+    }
+
+    private static String required(String value)
+    {
+        if (value == null || value.isEmpty())
+            throw new IllegalArgumentException("a value is required");
+        return value;
+    }
+
+    private static boolean flag(String value)
+    {
+        if (value == null || value.equals("true"))
+            return true;
+        if (value.equals("false"))
+            return false;
+        throw new IllegalArgumentException("expected no value, true or false");
+    }
+
+    private static String constantName(String value)
+    {
+        return required(value).toUpperCase(Locale.ROOT).replace('-', '_');
+    }
+
+    private static List<String> list(String value)
+    {
+        List<String> items = new ArrayList<>();
+        for (String item : required(value).split(";"))
+            if (!item.trim().isEmpty())
+                items.add(item.trim());
+        return items;
+    }
+
+    private static byte byteBufferMode(String value)
+    {
+        switch (value)
+        {
+            case "normal":
+                return MemoryMeter.BB_MODE_NORMAL;
+            case "omit-shared":
+                return MemoryMeter.BB_MODE_OMIT_SHARED;
+            case "shallow":
+                return MemoryMeter.BB_MODE_SHALLOW;
+            case "heap-only-no-slice":
+                return MemoryMeter.BB_MODE_HEAP_ONLY_NO_SLICE;
+            default:
+                throw new IllegalArgumentException("expected normal, omit-shared, shallow or heap-only-no-slice");
+        }
+    }
+
+    /**
+     * @return a builder for the meter configured by these options
+     */
+    MemoryMeter.Builder builder()
+    {
+        MemoryMeter.Builder builder = MemoryMeter.builder()
+                                                 .withGuessing(guess)
+                                                 .withFieldAccess(fieldAccess)
+                                                 .withVisitedSetStrategy(visitedSetStrategy)
+                                                 .ignoreClasses(ignoredClasses);
+        switch (byteBufferMode)
+        {
+            case MemoryMeter.BB_MODE_OMIT_SHARED:
+                builder.omitSharedBufferOverhead();
+                break;
+            case MemoryMeter.BB_MODE_SHALLOW:
+                builder.onlyShallowByteBuffers();
+                break;
+            case MemoryMeter.BB_MODE_HEAP_ONLY_NO_SLICE:
+                builder.byteBuffersHeapOnlyNoSlice();
+                break;
+        }
+        if (ignoreKnownSingletons)
+            builder.ignoreKnownSingletons();
+        if (ignoreDontMeasure)
+            builder.ignoreDontMeasure();
+        if (statistics || mbeanName != null || metricsIntervalSeconds > 0)
+            builder.withStatistics();
+        return builder;
+    }
+
+    /**
+     * Builds the default meter and starts the registration, the export of the metrics and the warm up, as configured.
+     * The steps, that may fail, come first, and the default meter is only replaced once everything else has been
+     * started, so that a failed start does not leave a partial configuration behind.
+     *
+     * @throws IllegalStateException if the agent has already been started, or the MBean name is in use
+     */
+    void start(Instrumentation inst)
+    {
+        if (!started.compareAndSet(null, this))
+            throw new IllegalStateException("The jamm agent has already been started");
+
+        MemoryMeter meter;
+        try
+        {
+            meter = builder().build();
+            if (mbeanName != null)
+                meter.registerMXBean(mbeanName);
+        }
+        catch (RuntimeException e)
+        {
+            started.set(null);
+            throw e;
+        }
+
+        if (metricsIntervalSeconds > 0)
+            metricsExport = startMetricsExport(meter);
+        if (!warmUpPackages.isEmpty())
+            startWarmUp((MemoryMeterBase) meter, inst);
+        if (!profilePackages.isEmpty())
+            startProfiler(meter, inst);
+        MemoryMeter.setDefaultMeter(meter);
+    }
+
+    /**
+     * Stops the export of the metrics, if the agent has started it.
+     */
+    static void stopMetricsExport()
+    {
+        AgentOptions options = started.get();
+        ScheduledExecutorService scheduler = options != null ? options.metricsExport : null;
+        if (scheduler != null)
+            scheduler.shutdownNow();
+    }
+
+    private void startProfiler(MemoryMeter meter, Instrumentation inst)
+    {
+        inst.addTransformer(AllocationProfiler.enable(profileInterval, profilePackages, meter));
+        AllocationProfiler profiler = AllocationProfiler.get();
+        profiler.register();
+        if (profileDump == null)
+            return;
+
+        Path file = Paths.get(profileDump);
+        Runtime.getRuntime().addShutdownHook(new Thread(() -> {
+            try
+            {
+                Files.write(file, profiler.dump(Integer.MAX_VALUE).getBytes(StandardCharsets.UTF_8));
+            }
+            catch (IOException e)
+            {
+                e.printStackTrace(System.err);
+            }
+        }, "jamm-profile-dump"));
+    }
+
+    private ScheduledExecutorService startMetricsExport(MemoryMeter meter)
+    {
+        Path file = metricsFile != null ? Paths.get(metricsFile) : null;
+        ScheduledExecutorService scheduler = new ScheduledThreadPoolExecutor(1, daemonThreads("jamm-metrics-"));
+        scheduler.scheduleAtFixedRate(() -> {
+            // an exception escaping the task would cancel all the following exports
+            try
+            {
+                exportMetrics(meter, file);
+            }
+            catch (IOException | RuntimeException e)
+            {
+                // keep exporting, the file may become writable again
+                e.printStackTrace(System.err);
+            }
+        }, metricsIntervalSeconds, metricsIntervalSeconds, TimeUnit.SECONDS);
+        return scheduler;
+    }
+
+    private static void exportMetrics(MemoryMeter meter, Path file) throws IOException
+    {
+        String line = metricsLine(meter.statistics());
+        if (file == null)
+            System.err.println(line);
+        else
+            Files.write(file,
+                        Collections.singletonList(line),
+                        StandardCharsets.UTF_8,
+                        StandardOpenOption.CREATE,
+                        StandardOpenOption.APPEND);
+    }
+
+    static String metricsLine(MemoryMeterMXBean statistics)
+    {
+        return "jamm" +
+               " time=" + System.currentTimeMillis() +
+               " calls=" + statistics.getCalls() +
+               " objects=" + statistics.getObjects() +
+               " bytes=" + statistics.getBytes() +
+               " nanos=" + statistics.getNanos() +
+               " p50Nanos=" + statistics.getLatencyNanosP50() +
+               " p99Nanos=" + statistics.getLatencyNanosP99() +
+               " maxNanos=" + statistics.getLatencyNanosMax() +
+               " visitedSetResizes=" + statistics.getVisitedSetResizes() +
+               " classesWarmedUp=" + statistics.getClassesWarmedUp() +
+               " sharedClassMetadataClasses=" + statistics.getSharedClassMetadataClasses();
+    }
+
+    /**
+     * Warms up the classes of {@link #warmUpPackages}, that are already loaded, and registers a transformer, which
+     * does not transform anything, but hands the classes of those packages over to the warm up threads, once they are
+     * loaded. These threads load the classes by name, which blocks until their definition is complete.
+     */
+    private void startWarmUp(MemoryMeterBase meter, Instrumentation inst)
+    {
+        meter.warmUpPackages(warmUpPackages, warmUpThreads);
+
+        List<String> internalNames = new ArrayList<>();
+        for (String packageName : warmUpPackages)
+            internalNames.add(packageName.replace('.', '/') + '/');
+
+        ExecutorService executor = new ThreadPoolExecutor(warmUpThreads, warmUpThreads,
+                                                          0, TimeUnit.MILLISECONDS,
+                                                          new LinkedBlockingQueue<>(),
+                                                          daemonThreads("jamm-warm-up-"));
+        inst.addTransformer(new ClassFileTransformer()
+        {
+            @Override
+            public byte[] transform(ClassLoader loader,
+                                    String className,
+                                    Class<?> classBeingRedefined,
+                                    ProtectionDomain protectionDomain,
+                                    byte[] classfileBuffer)
+            {
+                if (className != null && classBeingRedefined == null && startsWithAny(className, internalNames))
+                    executor.execute(() -> warmUp(meter, className.replace('/', '.'), loader));
+                return null;
+            }
+        });
+    }
+
+    private static void warmUp(MemoryMeterBase meter, String className, ClassLoader loader)
+    {
+        try
+        {
+            meter.warmUp(Class.forName(className, false, loader));
+        }
+        catch (ClassNotFoundException | RuntimeException | LinkageError e)
+        {
+            // the class failed to load or cannot be reflected, measuring it will fail as well
+        }
+    }
+
+    private static boolean startsWithAny(String name, List<String> prefixes)
+    {
+        for (String prefix : prefixes)
+            if (name.startsWith(prefix))
+                return true;
+        return false;
+    }
+
+    private static ThreadFactory daemonThreads(String prefix)
+    {
+        AtomicInteger count = new AtomicInteger();
+        return runnable -> {
+            Thread thread = new Thread(runnable, prefix + count.getAndIncrement());
+            thread.setDaemon(true);
+            return thread;
+        };
+    }
+}
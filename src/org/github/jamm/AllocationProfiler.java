@@ -0,0 +1,553 @@
+package org.github.jamm;
+
+import java.lang.instrument.ClassFileTransformer;
+import java.lang.invoke.MethodHandle;
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.MethodType;
+import java.lang.management.ManagementFactory;
+import java.security.ProtectionDomain;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Map;
+import java.util.Objects;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.Function;
+import java.util.stream.Collectors;
+import java.util.stream.Stream;
+
+import javax.management.JMException;
+import javax.management.ObjectName;
+
+/**
+ * Profiles the allocations of the classes of some packages, enabled by the agent option {@code profile}, see
+ * {@link AgentOptions}.
+ * <p>
+ * The agent instruments the constructors of the classes of the profiled packages, when they are loaded, to call
+ * {@link #allocated(Class)} first. On average one out of {@link #getSampleInterval()} calls is sampled. A sample walks
+ * the stack to find the allocation site, which is the caller of the outermost constructor of the new object, and
+ * attributes the shallow size of the instance, taken from the shared size caches of the {@link MemoryMeter#defaultMeter()},
+ * times the sample interval to the site and the class. The counters are {@link LongAdder}s in a concurrent map, so
+ * that threads allocating concurrently do not contend.
+ * <p>
+ * Only the instances of the profiled classes are counted, wherever they are allocated, but neither arrays nor the
+ * instances of other classes allocated in the profiled packages. The classes loaded before the agent do not get
+ * instrumented. Instances of subclasses outside of the profiled packages are attributed to the innermost subclass,
+ * that can be loaded from the class loader of the profiled class.
+ */
+public final class AllocationProfiler implements AllocationProfilerMXBean
+{
+    private static final Comparator<Entry> BY_BYTES_DESCENDING = Collections.reverseOrder(Comparator.comparingLong(Entry::getEstimatedBytes));
+
+    // the profile is only kept for this many pairs of site and class, the remaining ones are summed up as OTHER
+    static final int MAX_ENTRIES = 1 << 16;
+    static final String OTHER = "<other>";
+
+    private static final String CONSTRUCTOR = "<init>";
+
+    // null, unless the agent has enabled the profiler
+    private static volatile AllocationProfiler instance;
+
+    private final int sampleInterval;
+    private final List<String> internalPackageNames;
+    private final MemoryMeterBase meter;
+    private final LongAdder samples = new LongAdder();
+    private final ConcurrentHashMap<Key, Counters> profile = new ConcurrentHashMap<>();
+    // the binary names of the instrumented classes
+    private final Set<String> instrumented = ConcurrentHashMap.newKeySet();
+
+    private AllocationProfiler(int sampleInterval, Collection<String> packageNames, MemoryMeterBase meter)
+    {
+        this.sampleInterval = sampleInterval;
+        this.meter = meter;
+        List<String> internalNames = new ArrayList<>();
+        for (String packageName : packageNames)
+            internalNames.add(packageName.replace('.', '/') + '/');
+        this.internalPackageNames = internalNames;
+    }
+
+    /**
+     * Enables the profiler for the classes of the given packages and their sub-packages, that are loaded from now on.
+     *
+     * @return the transformer instrumenting the constructors, which must be added to the instrumentation
+     */
+    static ClassFileTransformer enable(int sampleInterval, Collection<String> packageNames, MemoryMeter meter)
+    {
+        if (sampleInterval <= 0)
+            throw new IllegalArgumentException("sampleInterval must be positive");
+
+        AllocationProfiler profiler = new AllocationProfiler(sampleInterval, packageNames, (MemoryMeterBase) meter);
+        instance = profiler;
+        return profiler.new Transformer();
+    }
+
+    static void disable()
+    {
+        instance = null;
+    }
+
+    /**
+     * @return the profiler enabled by the agent
+     * @throws IllegalStateException if the profiler has not been enabled
+     */
+    public static AllocationProfiler get()
+    {
+        AllocationProfiler profiler = instance;
+        if (profiler == null)
+            throw new IllegalStateException("The allocation profiler is not enabled; load Jamm as -javaagent with the option profile=<packages>");
+        return profiler;
+    }
+
+    /**
+     * Called at the beginning of the instrumented constructors, not meant to be called otherwise.
+     *
+     * @param type the class declaring the constructor
+     */
+    public static void allocated(Class<?> type)
+    {
+        AllocationProfiler profiler = instance;
+        if (profiler == null)
+            return;
+
+        int interval = profiler.sampleInterval;
+        if (interval == 1 || ThreadLocalRandom.current().nextInt(interval) == 0)
+            profiler.sample(type);
+    }
+
+    private void sample(Class<?> type)
+    {
+        Frames frames = Frames.capture();
+        // skip the frames of the profiler, the next one is the instrumented constructor
+        int i = 0;
+        while (i < frames.size() && Frames.isProfiler(frames.className(i)))
+            i++;
+
+        // the constructor may have been called by the constructor of a subclass or by another constructor of the same
+        // class, the instance is then counted by the instrumented outer constructor, which has been called first
+        Class<?> allocated = type;
+        for (i++; i < frames.size() && CONSTRUCTOR.equals(frames.methodName(i)); i++)
+        {
+            Class<?> outer = frames.declaringClass(i, allocated);
+            if (outer == null || !allocated.isAssignableFrom(outer))
+                break;
+            if (instrumented.contains(outer.getName()))
+                return;
+            allocated = outer;
+        }
+
+        String site = i < frames.size() ? frames.site(i) : OTHER;
+        Key key = new Key(site, allocated.getName());
+        Counters counters = profile.get(key);
+        if (counters == null)
+            counters = profile.computeIfAbsent(profile.size() < MAX_ENTRIES ? key : new Key(OTHER, OTHER), k -> new Counters());
+        counters.samples.increment();
+        counters.bytes.add(meter.shallowSizeOf(allocated));
+        samples.increment();
+    }
+
+    @Override
+    public int getSampleInterval()
+    {
+        return sampleInterval;
+    }
+
+    @Override
+    public long getSamples()
+    {
+        return samples.sum();
+    }
+
+    @Override
+    public int getInstrumentedClasses()
+    {
+        return instrumented.size();
+    }
+
+    /**
+     * @return the allocation sites and classes, the one with the most estimated bytes first
+     */
+    public List<Entry> entries()
+    {
+        List<Entry> entries = new ArrayList<>(profile.size());
+        for (Map.Entry<Key, Counters> entry : profile.entrySet())
+        {
+            long sampled = entry.getValue().samples.sum();
+            if (sampled > 0)
+                entries.add(new Entry(entry.getKey().site,
+                                      entry.getKey().className,
+                                      sampled,
+                                      sampled * sampleInterval,
+                                      entry.getValue().bytes.sum() * sampleInterval));
+        }
+        entries.sort(BY_BYTES_DESCENDING);
+        return entries;
+    }
+
+    @Override
+    public String dump(int topN)
+    {
+        List<Entry> entries = entries();
+        StringBuilder sb = new StringBuilder();
+        sb.append(String.format("%15s %15s  %s%n", "#instances", "#bytes", "class name @ site"));
+        for (Entry entry : entries.subList(0, Math.min(Math.max(topN, 0), entries.size())))
+            sb.append(String.format("%15d %15d  %s @ %s%n", entry.instances, entry.bytes, entry.className, entry.site));
+        return sb.toString();
+    }
+
+    @Override
+    public void reset()
+    {
+        profile.clear();
+        samples.reset();
+    }
+
+    /**
+     * Registers this instance with the platform MBean server.
+     *
+     * @throws IllegalStateException if the registration failed
+     */
+    ObjectName register()
+    {
+        try
+        {
+            ObjectName objectName = new ObjectName(MemoryMeterStatistics.DOMAIN + ":type=AllocationProfiler");
+            ManagementFactory.getPlatformMBeanServer().registerMBean(this, objectName);
+            return objectName;
+        }
+        catch (JMException e)
+        {
+            throw new IllegalStateException("Could not register the MXBean of the allocation profiler", e);
+        }
+    }
+
+    /**
+     * @return the instrumented class file or {@code null}, if {@code className} is not in a profiled package
+     */
+    byte[] instrument(ClassLoader loader, String className, ProtectionDomain protectionDomain, byte[] classFile)
+    {
+        if (className == null || !inProfiledPackages(className) || isJamm(protectionDomain) || !canSeeProfiler(loader))
+            return null;
+
+        byte[] instrumentedClass = ConstructorInstrumenter.instrument(classFile);
+        if (instrumentedClass != null)
+            instrumented.add(className.replace('/', '.'));
+        return instrumentedClass;
+    }
+
+    private boolean inProfiledPackages(String className)
+    {
+        for (String packageName : internalPackageNames)
+            if (className.startsWith(packageName))
+                return true;
+        return false;
+    }
+
+    /**
+     * Jamm itself is never instrumented, as sampling would call the instrumented constructors recursively.
+     */
+    private static boolean isJamm(ProtectionDomain protectionDomain)
+    {
+        ProtectionDomain jamm = AllocationProfiler.class.getProtectionDomain();
+        return protectionDomain != null
+               && protectionDomain.getCodeSource() != null
+               && jamm.getCodeSource() != null
+               && protectionDomain.getCodeSource().getLocation().equals(jamm.getCodeSource().getLocation());
+    }
+
+    /**
+     * Checks, whether the instrumented code can call this class, without loading any class: {@code transform} runs
+     * while the JVM loads a class, so loading another one from there may fail with a {@link ClassCircularityError} or
+     * deadlock with a class loader that holds a lock. The loader must be the one of this class or delegate to it, a
+     * loader, that sees this class without delegating to its loader, is not instrumented.
+     */
+    private static boolean canSeeProfiler(ClassLoader loader)
+    {
+        ClassLoader jamm = AllocationProfiler.class.getClassLoader();
+        if (loader == null)
+            return jamm == null;
+        for (ClassLoader l = loader; l != null; l = l.getParent())
+            if (l == jamm)
+                return true;
+        // every loader delegates to the bootstrap class loader eventually
+        return jamm == null;
+    }
+
+    private final class Transformer implements ClassFileTransformer
+    {
+        @Override
+        public byte[] transform(ClassLoader loader,
+                                String className,
+                                Class<?> classBeingRedefined,
+                                ProtectionDomain protectionDomain,
+                                byte[] classfileBuffer)
+        {
+            return classBeingRedefined == null ? instrument(loader, className, protectionDomain, classfileBuffer) : null;
+        }
+    }
+
+    /**
+     * The stack of a sampling thread. On Java 9+ it is walked with a {@code StackWalker}, which retains the classes of
+     * the frames and stops after {@link #MAX_FRAMES} frames. On Java 8 it is taken from a {@link Throwable}, and the
+     * classes of the frames are resolved by name, once per profiled class and name.
+     */
+    private static final class Frames
+    {
+        // the frames of the profiler, the instrumented constructor, the constructors calling it and the allocation
+        // site, the sites of deeper chains of constructors are counted as OTHER
+        static final int MAX_FRAMES = 64;
+
+        // (Function)List, walking the stack with a StackWalker retaining the classes, null on Java 8
+        private static final MethodHandle WALK;
+        // the getters of StackWalker.StackFrame taking an Object
+        private static final MethodHandle GET_CLASS_NAME;
+        private static final MethodHandle GET_METHOD_NAME;
+        private static final MethodHandle GET_DECLARING_CLASS;
+        private static final MethodHandle TO_STACK_TRACE_ELEMENT;
+
+        private static final Function<Stream<?>, List<?>> FIRST_FRAMES = frames -> frames.limit(MAX_FRAMES).collect(Collectors.toList());
+
+        // the classes resolved by name through the loader of a profiled class, or UNRESOLVED, only used on Java 8
+        private static final Object UNRESOLVED = new Object();
+        private static final ClassValue<ConcurrentHashMap<String, Object>> RESOLVED = new ClassValue<ConcurrentHashMap<String, Object>>()
+        {
+            @Override
+            protected ConcurrentHashMap<String, Object> computeValue(Class<?> type)
+            {
+                return new ConcurrentHashMap<>();
+            }
+        };
+
+        static
+        {
+            MethodHandle walk = null;
+            MethodHandle getClassName = null;
+            MethodHandle getMethodName = null;
+            MethodHandle getDeclaringClass = null;
+            MethodHandle toStackTraceElement = null;
+            try
+            {
+                MethodHandles.Lookup lookup = MethodHandles.lookup();
+                Class<?> walker = Class.forName("java.lang.StackWalker");
+                Class<?> option = Class.forName("java.lang.StackWalker$Option");
+                Class<?> frame = Class.forName("java.lang.StackWalker$StackFrame");
+                Object instance = lookup.findStatic(walker, "getInstance", MethodType.methodType(walker, option))
+                                        .invoke(option.getField("RETAIN_CLASS_REFERENCE").get(null));
+                walk = lookup.findVirtual(walker, "walk", MethodType.methodType(Object.class, Function.class))
+                             .bindTo(instance)
+                             .asType(MethodType.methodType(List.class, Function.class));
+                getClassName = frameGetter(lookup, frame, "getClassName", String.class);
+                getMethodName = frameGetter(lookup, frame, "getMethodName", String.class);
+                getDeclaringClass = frameGetter(lookup, frame, "getDeclaringClass", Class.class);
+                toStackTraceElement = frameGetter(lookup, frame, "toStackTraceElement", StackTraceElement.class);
+            }
+            catch (Throwable t)
+            {
+                // Java 8
+                walk = null;
+            }
+            WALK = walk;
+            GET_CLASS_NAME = getClassName;
+            GET_METHOD_NAME = getMethodName;
+            GET_DECLARING_CLASS = getDeclaringClass;
+            TO_STACK_TRACE_ELEMENT = toStackTraceElement;
+        }
+
+        private static MethodHandle frameGetter(MethodHandles.Lookup lookup, Class<?> frame, String name, Class<?> type)
+                throws ReflectiveOperationException
+        {
+            return lookup.findVirtual(frame, name, MethodType.methodType(type))
+                         .asType(MethodType.methodType(Object.class, Object.class));
+        }
+
+        private final List<?> walked;
+        private final StackTraceElement[] thrown;
+
+        private Frames(List<?> walked, StackTraceElement[] thrown)
+        {
+            this.walked = walked;
+            this.thrown = thrown;
+        }
+
+        static Frames capture()
+        {
+            if (WALK == null)
+                return new Frames(null, new Throwable().getStackTrace());
+            try
+            {
+                return new Frames((List<?>) WALK.invokeExact(FIRST_FRAMES), null);
+            }
+            catch (Throwable t)
+            {
+                throw new IllegalStateException("Could not walk the stack", t);
+            }
+        }
+
+        static boolean isProfiler(String className)
+        {
+            return className.equals(AllocationProfiler.class.getName()) || className.equals(Frames.class.getName());
+        }
+
+        int size()
+        {
+            return walked != null ? walked.size() : thrown.length;
+        }
+
+        String className(int i)
+        {
+            return walked != null ? (String) get(GET_CLASS_NAME, i) : thrown[i].getClassName();
+        }
+
+        String methodName(int i)
+        {
+            return walked != null ? (String) get(GET_METHOD_NAME, i) : thrown[i].getMethodName();
+        }
+
+        /**
+         * @param type the class, whose loader resolves the class by name on Java 8
+         * @return the class declaring the method of the frame or {@code null}, if it cannot be resolved
+         */
+        Class<?> declaringClass(int i, Class<?> type)
+        {
+            if (walked != null)
+                return (Class<?>) get(GET_DECLARING_CLASS, i);
+
+            String className = thrown[i].getClassName();
+            if (className.equals(type.getName()))
+                return type;
+            Object resolved = RESOLVED.get(type).computeIfAbsent(className, name -> resolve(name, type));
+            return resolved != UNRESOLVED ? (Class<?>) resolved : null;
+        }
+
+        /**
+         * @return the frame as returned by {@link StackTraceElement#toString()}
+         */
+        String site(int i)
+        {
+            return walked != null ? get(TO_STACK_TRACE_ELEMENT, i).toString() : thrown[i].toString();
+        }
+
+        private Object get(MethodHandle getter, int i)
+        {
+            try
+            {
+                return getter.invokeExact(walked.get(i));
+            }
+            catch (Throwable t)
+            {
+                throw new IllegalStateException("Could not read the stack frame", t);
+            }
+        }
+
+        private static Object resolve(String className, Class<?> type)
+        {
+            try
+            {
+                return Class.forName(className, false, type.getClassLoader());
+            }
+            catch (ClassNotFoundException | LinkageError e)
+            {
+                // loaded from a child class loader
+                return UNRESOLVED;
+            }
+        }
+    }
+
+    private static final class Key
+    {
+        final String site;
+        final String className;
+
+        Key(String site, String className)
+        {
+            this.site = site;
+            this.className = className;
+        }
+
+        @Override
+        public boolean equals(Object o)
+        {
+            if (!(o instanceof Key))
+                return false;
+            Key key = (Key) o;
+            return site.equals(key.site) && className.equals(key.className);
+        }
+
+        @Override
+        public int hashCode()
+        {
+            return Objects.hash(site, className);
+        }
+    }
+
+    private static final class Counters
+    {
+        final LongAdder samples = new LongAdder();
+        final LongAdder bytes = new LongAdder();
+    }
+
+    /**
+     * The estimated allocations of a class at a site.
+     */
+    public static final class Entry
+    {
+        private final String site;
+        private final String className;
+        private final long samples;
+        private final long instances;
+        private final long bytes;
+
+        Entry(String site, String className, long samples, long instances, long bytes)
+        {
+            this.site = site;
+            this.className = className;
+            this.samples = samples;
+            this.instances = instances;
+            this.bytes = bytes;
+        }
+
+        /**
+         * @return the frame calling the outermost constructor, as returned by {@link StackTraceElement#toString()}
+         */
+        public String getSite()
+        {
+            return site;
+        }
+
+        public String getClassName()
+        {
+            return className;
+        }
+
+        public long getSamples()
+        {
+            return samples;
+        }
+
+        /**
+         * @return the number of sampled instances times the sample interval
+         */
+        public long getEstimatedInstances()
+        {
+            return instances;
+        }
+
+        /**
+         * @return the sampled shallow bytes times the sample interval
+         */
+        public long getEstimatedBytes()
+        {
+            return bytes;
+        }
+
+        @Override
+        public String toString()
+        {
+            return className + " @ " + site + "{instances=" + instances + ", bytes=" + bytes + '}';
+        }
+    }
+}
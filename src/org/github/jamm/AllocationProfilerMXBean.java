@@ -0,0 +1,33 @@
+package org.github.jamm;
+
+/**
+ * Management interface of the {@link AllocationProfiler}, registered as {@code org.github.jamm:type=AllocationProfiler}
+ * once the agent has enabled it, so that the profile can be dumped on demand through JMX.
+ */
+public interface AllocationProfilerMXBean
+{
+    /**
+     * @return the number of allocations, out of which one is sampled on average
+     */
+    int getSampleInterval();
+
+    /**
+     * @return the number of sampled allocations
+     */
+    long getSamples();
+
+    /**
+     * @return the number of classes, whose constructors have been instrumented
+     */
+    int getInstrumentedClasses();
+
+    /**
+     * @return the {@code topN} allocation sites and classes with the most estimated bytes as a table
+     */
+    String dump(int topN);
+
+    /**
+     * Drops the samples collected so far.
+     */
+    void reset();
+}
@@ -0,0 +1,69 @@
+package org.github.jamm;
+
+import java.util.Arrays;
+
+/**
+ * The memory usage of a batch of roots measured with a single visited set, returned by
+ * {@link MemoryMeter#measureDeepAll(Iterable)}.
+ * <p>
+ * Every object is counted once for the whole batch and attributed to the first root, from which it has been
+ * reached, in the order of the batch. A root, that has already been reached from an earlier root, is therefore
+ * attributed 0 bytes, and so are {@code null} roots and roots of ignored classes.
+ */
+public final class BatchSizes
+{
+    private final long totalBytes;
+    private final long[] bytes;
+    private final int size;
+
+    BatchSizes(long totalBytes, long[] bytes, int size)
+    {
+        this.totalBytes = totalBytes;
+        this.bytes = bytes;
+        this.size = size;
+    }
+
+    /**
+     * @return the number of roots in the batch
+     */
+    public int size()
+    {
+        return size;
+    }
+
+    /**
+     * @return the memory usage of all roots of the batch together, counting every object once
+     */
+    public long getTotalBytes()
+    {
+        return totalBytes;
+    }
+
+    /**
+     * @return the memory usage of the objects attributed to the root with the given index
+     * @throws IndexOutOfBoundsException if the index is not less than {@link #size()}
+     */
+    public long getBytes(int root)
+    {
+        if (root < 0 || root >= size)
+            throw new IndexOutOfBoundsException("root " + root + " of " + size);
+        return bytes[root];
+    }
+
+    /**
+     * @return the memory usage of the objects attributed to each root, in the order of the batch
+     */
+    public long[] toArray()
+    {
+        return Arrays.copyOf(bytes, size);
+    }
+
+    @Override
+    public String toString()
+    {
+        return "BatchSizes{" +
+               "roots=" + size +
+               ", totalBytes=" + totalBytes +
+               '}';
+    }
+}
@@ -0,0 +1,29 @@
+package org.github.jamm;
+
+/**
+ * Reads the reference fields, the children, of the instances of one class, that is annotated with
+ * {@link GenerateSizer}. Implementations are generated at compile time by the jamm annotation processor and are
+ * named like the binary name of the annotated class plus {@link #CLASS_NAME_SUFFIX}.
+ * <p>
+ * Implementations must be public, have a public no-argument constructor and be stateless.
+ *
+ * @param <T> the annotated class
+ */
+public interface ChildAccessor<T>
+{
+    /**
+     * The suffix appended to the binary name of the annotated class to get the name of the generated accessor.
+     */
+    String CLASS_NAME_SUFFIX = "$JammAccessor";
+
+    /**
+     * @return the number of non-static reference fields declared by the annotated class and all its superclasses
+     */
+    int childCount();
+
+    /**
+     * @param index a number between {@code 0} (inclusive) and {@link #childCount()} (exclusive)
+     * @return the value of the reference field with the given index, may be {@code null}
+     */
+    Object child(T obj, int index) throws Throwable;
+}
@@ -0,0 +1,232 @@
+package org.github.jamm;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.Consumer;
+
+/**
+ * Per-class instance counts and shallow sizes of all objects visited by a deep measurement, returned by
+ * {@link MemoryMeter#measureDeepHistogram(Object)}.
+ */
+public final class ClassHistogram
+{
+    private static final Comparator<Entry> BY_BYTES_DESCENDING = Collections.reverseOrder(Comparator.comparingLong(Entry::getBytes));
+
+    private static final AtomicInteger nextClassId = new AtomicInteger();
+
+    // process-wide ids, so that the counters below can be keyed by an int instead of a Class
+    private static final ClassValue<Integer> classIds = new ClassValue<Integer>()
+    {
+        @Override
+        protected Integer computeValue(Class<?> type)
+        {
+            return nextClassId.incrementAndGet();
+        }
+    };
+
+    // Open-addressing table keyed by the class id, 0 marks an empty slot.
+    // The table is kept at most half full.
+    private int[] ids = new int[64];
+    private Class<?>[] types = new Class<?>[64];
+    private long[] instances = new long[64];
+    private long[] bytes = new long[64];
+    private int size;
+
+    private long totalInstances;
+    private long totalBytes;
+
+    ClassHistogram()
+    {
+    }
+
+    void add(Class<?> type, long shallowSize)
+    {
+        int id = classIds.get(type);
+        int mask = ids.length - 1;
+        int i = index(id, mask);
+        int item;
+        while ((item = ids[i]) != 0)
+        {
+            if (item == id)
+            {
+                instances[i]++;
+                bytes[i] += shallowSize;
+                totalInstances++;
+                totalBytes += shallowSize;
+                return;
+            }
+            i = (i + 1) & mask;
+        }
+
+        if ((size + 1) * 2 > ids.length)
+        {
+            resize();
+            add(type, shallowSize);
+            return;
+        }
+
+        ids[i] = id;
+        types[i] = type;
+        instances[i] = 1;
+        bytes[i] = shallowSize;
+        size++;
+        totalInstances++;
+        totalBytes += shallowSize;
+    }
+
+    private void resize()
+    {
+        int[] oldIds = ids;
+        Class<?>[] oldTypes = types;
+        long[] oldInstances = instances;
+        long[] oldBytes = bytes;
+
+        int length = oldIds.length << 1;
+        ids = new int[length];
+        types = new Class<?>[length];
+        instances = new long[length];
+        bytes = new long[length];
+        int mask = length - 1;
+        int i;
+        for (int j = 0; j < oldIds.length; j++)
+        {
+            if (oldIds[j] != 0)
+            {
+                i = index(oldIds[j], mask);
+                while (ids[i] != 0)
+                    i = (i + 1) & mask;
+                ids[i] = oldIds[j];
+                types[i] = oldTypes[j];
+                instances[i] = oldInstances[j];
+                bytes[i] = oldBytes[j];
+            }
+        }
+    }
+
+    /**
+     * Calls {@code action} for all entries, in no particular order.
+     */
+    void forEach(Consumer<Entry> action)
+    {
+        for (int i = 0; i < ids.length; i++)
+            if (ids[i] != 0)
+                action.accept(new Entry(types[i], instances[i], bytes[i]));
+    }
+
+    private static int index(int id, int mask)
+    {
+        return (id * 0x9E3779B9) & mask;
+    }
+
+    /**
+     * @return the memory usage of the measured object including referenced objects, same as
+     * {@link MemoryMeter#measureDeep(Object)} would return
+     */
+    public long getTotalBytes()
+    {
+        return totalBytes;
+    }
+
+    /**
+     * @return the number of measured objects
+     */
+    public long getTotalInstances()
+    {
+        return totalInstances;
+    }
+
+    /**
+     * @return the entry for the given class or {@code null}, if no instance of the class has been measured
+     */
+    public Entry get(Class<?> type)
+    {
+        int id = classIds.get(type);
+        int mask = ids.length - 1;
+        int i = index(id, mask);
+        int item;
+        while ((item = ids[i]) != 0)
+        {
+            if (item == id)
+                return new Entry(types[i], instances[i], bytes[i]);
+            i = (i + 1) & mask;
+        }
+        return null;
+    }
+
+    /**
+     * @return all entries, the biggest (by bytes) first
+     */
+    public List<Entry> entries()
+    {
+        List<Entry> entries = new ArrayList<>(size);
+        for (int i = 0; i < ids.length; i++)
+            if (ids[i] != 0)
+                entries.add(new Entry(types[i], instances[i], bytes[i]));
+        entries.sort(BY_BYTES_DESCENDING);
+        return entries;
+    }
+
+    /**
+     * @return the {@code n} biggest (by bytes) entries, the biggest first
+     */
+    public List<Entry> top(int n)
+    {
+        List<Entry> entries = entries();
+        return entries.size() > n ? new ArrayList<>(entries.subList(0, n)) : entries;
+    }
+
+    @Override
+    public String toString()
+    {
+        StringBuilder sb = new StringBuilder();
+        sb.append(String.format("%10s %15s  %s%n", "#instances", "#bytes", "class name"));
+        for (Entry entry : entries())
+            sb.append(String.format("%10d %15d  %s%n", entry.instances, entry.bytes, entry.type.getName()));
+        sb.append(String.format("%10d %15d  %s%n", totalInstances, totalBytes, "total"));
+        return sb.toString();
+    }
+
+    /**
+     * Number of instances and sum of their shallow sizes of a single class.
+     */
+    public static final class Entry
+    {
+        private final Class<?> type;
+        private final long instances;
+        private final long bytes;
+
+        Entry(Class<?> type, long instances, long bytes)
+        {
+            this.type = type;
+            this.instances = instances;
+            this.bytes = bytes;
+        }
+
+        public Class<?> getType()
+        {
+            return type;
+        }
+
+        public long getInstances()
+        {
+            return instances;
+        }
+
+        /**
+         * @return the sum of the shallow sizes of all instances
+         */
+        public long getBytes()
+        {
+            return bytes;
+        }
+
+        @Override
+        public String toString()
+        {
+            return type.getName() + "{instances=" + instances + ", bytes=" + bytes + '}';
+        }
+    }
+}
@@ -0,0 +1,219 @@
+package org.github.jamm;
+
+import java.lang.invoke.MethodHandle;
+import java.lang.ref.WeakReference;
+import java.lang.reflect.Field;
+import java.util.List;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * The reflective metadata of a class needed to traverse its instances, shared by all meters with the same
+ * configuration, so that building a new meter does not mean reflecting every class again.
+ * <p>
+ * The metadata is kept in a process-wide registry, which is a {@link ClassValue}. The entries are therefore stored
+ * with the classes themselves and do not keep them, or their class loaders, from being unloaded. Per class, the
+ * registry holds one instance of this class for every meter configuration, that affects which fields are followed
+ * and how they are read, see {@link #configuration(boolean, boolean, boolean, boolean)}, and the shallow size of the
+ * instances for every way of computing it.
+ * <p>
+ * The registry holds at most {@code jamm.class-metadata-cache-size} classes (system property, 65536 by default) and
+ * evicts the classes that have been added first, once that number is exceeded. Meters keep using the metadata of
+ * evicted classes they have already looked up.
+ */
+final class ClassMetadata
+{
+    static final int MAX_CLASSES = Integer.getInteger("jamm.class-metadata-cache-size", 1 << 16);
+
+    // the ways of computing the shallow size of an instance
+    static final int SHALLOW_SIZE_INSTRUMENTATION = 0;
+    static final int SHALLOW_SIZE_UNSAFE = 1;
+    static final int SHALLOW_SIZE_SPEC = 2;
+    private static final int SHALLOW_SIZE_KINDS = 3;
+
+    private static final int CONFIGURATIONS = 16;
+
+    private static final ClassValue<PerClass> REGISTRY = new ClassValue<PerClass>()
+    {
+        @Override
+        protected PerClass computeValue(Class<?> type)
+        {
+            // registered after the value has been stored, see perClass()
+            return new PerClass();
+        }
+    };
+
+    // the classes in the order they have been added, used to evict the oldest ones
+    private static final ConcurrentLinkedQueue<WeakReference<Class<?>>> insertionOrder = new ConcurrentLinkedQueue<>();
+    private static final AtomicInteger classes = new AtomicInteger();
+
+    static final LongAdder hits = new LongAdder();
+    static final LongAdder misses = new LongAdder();
+    static final LongAdder evictions = new LongAdder();
+
+    final List<Field> fields;
+    // null, if the fields have to be read through method handles
+    final long[] offsets;
+
+    // computed lazily, as not every sizer needs them, races are benign
+    private volatile MethodHandle[] getters;
+    private volatile Object generatedAccessor;
+    private volatile Object pusher;
+
+    private static final Object NO_ACCESSOR = new Object();
+
+    private ClassMetadata(List<Field> fields, long[] offsets)
+    {
+        this.fields = fields;
+        this.offsets = offsets;
+    }
+
+    /**
+     * @return the key of the meter configuration, that the metadata depends on
+     */
+    static int configuration(boolean unsafeFieldAccess,
+                             boolean ignoreOuterClassReference,
+                             boolean ignoreKnownSingletons,
+                             boolean ignoreDontMeasure)
+    {
+        return (unsafeFieldAccess ? 1 : 0)
+               | (ignoreOuterClassReference ? 2 : 0)
+               | (ignoreKnownSingletons ? 4 : 0)
+               | (ignoreDontMeasure ? 8 : 0);
+    }
+
+    /**
+     * @return the metadata of {@code type} for the configuration of {@code meter}, computed by {@code meter}, if it is
+     * not registered yet
+     */
+    static ClassMetadata get(Class<?> type, MemoryMeterBase meter)
+    {
+        PerClass perClass = perClass(type);
+        int configuration = meter.metadataConfiguration;
+        ClassMetadata metadata = perClass.metadata.get(configuration);
+        if (metadata != null)
+        {
+            hits.increment();
+            return metadata;
+        }
+
+        misses.increment();
+        List<Field> fields = meter.referenceFields(type);
+        metadata = new ClassMetadata(fields, meter.fieldAccess == MemoryMeter.FieldAccess.UNSAFE ? MemoryMeterBase.fieldOffsets(fields) : null);
+        return perClass.metadata.compareAndSet(configuration, null, metadata) ? metadata : perClass.metadata.get(configuration);
+    }
+
+    /**
+     * Not counted in the {@link #hits} and {@link #misses}, as it is called for every shallow measurement.
+     *
+     * @return the registered shallow size of the instances of {@code type} or 0, if it is not known yet
+     */
+    static long shallowSize(Class<?> type, int kind)
+    {
+        return perClass(type).shallowSizes.get(kind);
+    }
+
+    static void putShallowSize(Class<?> type, int kind, long size)
+    {
+        perClass(type).shallowSizes.set(kind, size);
+    }
+
+    /**
+     * @return the number of classes in the registry, including classes that have been unloaded, but not evicted yet
+     */
+    static int size()
+    {
+        return classes.get();
+    }
+
+    private static PerClass perClass(Class<?> type)
+    {
+        PerClass perClass = REGISTRY.get(type);
+        if (!perClass.registered)
+            register(type, perClass);
+        return perClass;
+    }
+
+    private static void register(Class<?> type, PerClass perClass)
+    {
+        synchronized (perClass)
+        {
+            if (perClass.registered)
+                return;
+            perClass.registered = true;
+        }
+        insertionOrder.add(new WeakReference<>(type));
+        if (classes.incrementAndGet() > MAX_CLASSES)
+            evict(MAX_CLASSES);
+    }
+
+    /**
+     * Evicts the classes added first, until the registry holds at most {@code maxClasses} classes.
+     */
+    static void evict(int maxClasses)
+    {
+        WeakReference<Class<?>> oldest;
+        while (classes.get() > maxClasses && (oldest = insertionOrder.poll()) != null)
+        {
+            classes.decrementAndGet();
+            Class<?> evicted = oldest.get();
+            if (evicted != null)
+            {
+                REGISTRY.remove(evicted);
+                evictions.increment();
+            }
+        }
+    }
+
+    /**
+     * @return getters of type {@code (Object)Object} for {@link #fields}
+     */
+    MethodHandle[] getters()
+    {
+        MethodHandle[] mhs = getters;
+        if (mhs == null)
+            getters = mhs = MemoryMeterBase.getters(fields, offsets);
+        return mhs;
+    }
+
+    /**
+     * @return the accessor generated for the class by the annotation processor, that reads exactly {@link #fields},
+     * or {@code null}, if there is none
+     */
+    @SuppressWarnings("unchecked")
+    ChildAccessor<Object> generatedAccessor(Class<?> type)
+    {
+        Object accessor = generatedAccessor;
+        if (accessor == null)
+        {
+            accessor = MemoryMeterBase.generatedAccessor(type, fields);
+            generatedAccessor = accessor = accessor != null ? accessor : NO_ACCESSOR;
+        }
+        return accessor != NO_ACCESSOR ? (ChildAccessor<Object>) accessor : null;
+    }
+
+    /**
+     * @return the pusher generated for {@link #getters()}, or {@code null}, if it cannot be generated
+     */
+    FieldPushers.Pusher pusher()
+    {
+        Object p = pusher;
+        if (p == null)
+        {
+            p = FieldPushers.generate(getters());
+            pusher = p = p != null ? p : NO_ACCESSOR;
+        }
+        return p != NO_ACCESSOR ? (FieldPushers.Pusher) p : null;
+    }
+
+    private static final class PerClass
+    {
+        final AtomicReferenceArray<ClassMetadata> metadata = new AtomicReferenceArray<>(CONFIGURATIONS);
+        final AtomicLongArray shallowSizes = new AtomicLongArray(SHALLOW_SIZE_KINDS);
+        // set once, under the lock of this instance
+        volatile boolean registered;
+    }
+}
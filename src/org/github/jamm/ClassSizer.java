@@ -0,0 +1,199 @@
+package org.github.jamm;
+
+import java.lang.invoke.MethodHandle;
+import java.lang.ref.Reference;
+import java.nio.Buffer;
+import java.nio.ByteBuffer;
+import java.util.Deque;
+
+/**
+ * Measures the instances of a single, non-array class during a deep measurement and pushes their children.
+ * <p>
+ * The implementation for a class is chosen once, when the class is seen for the first time, and cached per meter,
+ * so that the per-object work only contains what is actually needed for that class.
+ */
+abstract class ClassSizer
+{
+    final MemoryMeterBase meter;
+    final Class<?> type;
+
+    // The shallow size is the same for all instances of a non-array class, caching it here saves the lookup in the
+    // meter's class cache. -1 means "not yet known", races are benign.
+    private int shallowSize = -1;
+
+    ClassSizer(MemoryMeterBase meter, Class<?> type)
+    {
+        this.meter = meter;
+        this.type = type;
+    }
+
+    final long shallowSize(Object obj)
+    {
+        int size = shallowSize;
+        if (size < 0)
+            shallowSize = size = (int) meter.measureNonArray(obj, type);
+        return size;
+    }
+
+    /**
+     * Measures the shallow size of {@code obj} and pushes all its children, that have not been visited yet and are
+     * not ignored, onto {@code stack}.
+     *
+     * @return the number of bytes to add to the total for {@code obj}
+     */
+    abstract long measureAndPushChildren(Object obj, VisitedTracker tracker, Deque<Object> stack) throws Throwable;
+
+    final void push(Object child, VisitedTracker tracker, Deque<Object> stack)
+    {
+        if (child != null && tracker.add(child) && !meter.ignoreClass.get(child.getClass()))
+            stack.push(child);
+    }
+
+    final void pushFields(MethodHandle[] fields, Object obj, VisitedTracker tracker, Deque<Object> stack) throws Throwable
+    {
+        for (MethodHandle field : fields)
+            push((Object) field.invokeExact(obj), tracker, stack);
+    }
+
+    /**
+     * For classes without any reference fields to follow, for example boxed primitives.
+     */
+    static final class Leaf extends ClassSizer
+    {
+        Leaf(MemoryMeterBase meter, Class<?> type)
+        {
+            super(meter, type);
+        }
+
+        @Override
+        long measureAndPushChildren(Object obj, VisitedTracker tracker, Deque<Object> stack)
+        {
+            return shallowSize(obj);
+        }
+    }
+
+    /**
+     * Follows all reference fields using method handles, through the class generated for them, if there is one, see
+     * {@link FieldPushers}.
+     */
+    static final class Fields extends ClassSizer
+    {
+        private final MethodHandle[] fields;
+        // null, if the fields are pushed in a loop
+        private final FieldPushers.Pusher pusher;
+
+        Fields(MemoryMeterBase meter, Class<?> type, MethodHandle[] fields, FieldPushers.Pusher pusher)
+        {
+            super(meter, type);
+            this.fields = fields;
+            this.pusher = pusher;
+        }
+
+        @Override
+        long measureAndPushChildren(Object obj, VisitedTracker tracker, Deque<Object> stack) throws Throwable
+        {
+            long size = shallowSize(obj);
+            if (pusher != null)
+                pusher.pushAll(this, obj, tracker, stack);
+            else
+                pushFields(fields, obj, tracker, stack);
+            return size;
+        }
+    }
+
+    /**
+     * Follows all reference fields using the {@link ChildAccessor} generated for a class annotated with
+     * {@link GenerateSizer}.
+     */
+    static final class Generated extends ClassSizer
+    {
+        private final ChildAccessor<Object> accessor;
+        private final int childCount;
+
+        Generated(MemoryMeterBase meter, Class<?> type, ChildAccessor<Object> accessor)
+        {
+            super(meter, type);
+            this.accessor = accessor;
+            this.childCount = accessor.childCount();
+        }
+
+        @Override
+        long measureAndPushChildren(Object obj, VisitedTracker tracker, Deque<Object> stack) throws Throwable
+        {
+            for (int i = 0; i < childCount; i++)
+                push(accessor.child(obj, i), tracker, stack);
+            return shallowSize(obj);
+        }
+    }
+
+    /**
+     * For {@link Reference}s, if the meter ignores non-strong references.
+     */
+    static final class NonStrongReference extends ClassSizer
+    {
+        private final MethodHandle[] fields;
+
+        NonStrongReference(MemoryMeterBase meter, Class<?> type, MethodHandle[] fields)
+        {
+            super(meter, type);
+            this.fields = fields;
+        }
+
+        @Override
+        long measureAndPushChildren(Object obj, VisitedTracker tracker, Deque<Object> stack) throws Throwable
+        {
+            long size = shallowSize(obj);
+            Object referent = ((Reference<?>) obj).get();
+            Object child;
+            for (MethodHandle field : fields)
+            {
+                child = (Object) field.invokeExact(obj);
+                if (child != referent)
+                    push(child, tracker, stack);
+            }
+            return size;
+        }
+    }
+
+    /**
+     * For {@link Buffer}s of all types in the {@link MemoryMeter.Builder#omitSharedBufferOverhead()} mode and for
+     * {@link ByteBuffer}s in the other non-normal modes.
+     */
+    static final class BufferSizer extends ClassSizer
+    {
+        private final byte byteBufferMode;
+        private final MethodHandle[] fields;
+
+        BufferSizer(MemoryMeterBase meter, Class<?> type, MethodHandle[] fields)
+        {
+            super(meter, type);
+            this.byteBufferMode = meter.byteBufferMode;
+            this.fields = fields;
+        }
+
+        @Override
+        long measureAndPushChildren(Object obj, VisitedTracker tracker, Deque<Object> stack) throws Throwable
+        {
+            long size = shallowSize(obj);
+            if (byteBufferMode == MemoryMeter.BB_MODE_OMIT_SHARED)
+            {
+                Buffer buffer = (Buffer) obj;
+                return size + ((long) buffer.remaining() << DirectBuffers.elementSizeShift(buffer));
+            }
+            ByteBuffer bb = (ByteBuffer) obj;
+            if (byteBufferMode == MemoryMeter.BB_MODE_SHALLOW)
+                return size;
+            if (byteBufferMode == MemoryMeter.BB_MODE_HEAP_ONLY_NO_SLICE)
+            {
+                if (bb.isDirect())
+                    return size;
+                // if we're only referencing a sub-portion of the ByteBuffer, don't count the array overhead (assume it's slab
+                // allocated, so amortized over all the allocations the overhead is negligible and better to undercount than over)
+                if (bb.capacity() > bb.remaining())
+                    return bb.remaining();
+            }
+            pushFields(fields, obj, tracker, stack);
+            return size;
+        }
+    }
+}
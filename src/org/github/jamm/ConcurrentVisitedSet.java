@@ -0,0 +1,82 @@
+package org.github.jamm;
+
+/**
+ * Thread-safe variant of {@link MemoryMeterBase.VisitedSet} used by parallel deep measurements.
+ * <p>
+ * The set is striped: every object is mapped to one of a power-of-two number of segments using the upper bits of its
+ * identity hash code, the lower bits are used by the segment itself. Each segment is guarded by its own monitor, so
+ * threads only contend if they add objects to the same segment at the same time.
+ */
+final class ConcurrentVisitedSet implements VisitedTracker
+{
+    private final MemoryMeterBase.VisitedSet[] segments;
+    private final int shift;
+
+    ConcurrentVisitedSet(int parallelism)
+    {
+        // 4 segments per thread keeps the probability of two threads hitting the same segment low
+        int n = Integer.highestOneBit(Math.max(1, Math.min(parallelism, 1 << 12)) * 4 - 1) << 1;
+        segments = new MemoryMeterBase.VisitedSet[n];
+        for (int i = 0; i < n; i++)
+            segments[i] = new MemoryMeterBase.VisitedSet();
+        shift = 32 - Integer.numberOfTrailingZeros(n);
+    }
+
+    @Override
+    public boolean add(Object o)
+    {
+        MemoryMeterBase.VisitedSet segment = segments[segment(System.identityHashCode(o))];
+        synchronized (segment)
+        {
+            return segment.add(o);
+        }
+    }
+
+    @Override
+    public boolean clear(int maxRetainedObjects)
+    {
+        int perSegment = maxRetainedObjects / segments.length;
+        boolean kept = true;
+        for (MemoryMeterBase.VisitedSet segment : segments)
+        {
+            synchronized (segment)
+            {
+                kept &= segment.clear(perSegment);
+            }
+        }
+        return kept;
+    }
+
+    @Override
+    public int resizes()
+    {
+        int resizes = 0;
+        for (MemoryMeterBase.VisitedSet segment : segments)
+        {
+            synchronized (segment)
+            {
+                resizes += segment.resizes();
+            }
+        }
+        return resizes;
+    }
+
+    private int segment(int hash)
+    {
+        // spread the hash, so that the segment does not correlate with the slot within the segment
+        return (hash * 0x9E3779B9) >>> shift;
+    }
+
+    int size()
+    {
+        int size = 0;
+        for (MemoryMeterBase.VisitedSet segment : segments)
+        {
+            synchronized (segment)
+            {
+                size += segment.size;
+            }
+        }
+        return size;
+    }
+}
@@ -0,0 +1,432 @@
+package org.github.jamm;
+
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.nio.Buffer;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+
+/**
+ * Inserts a call to {@link AllocationProfiler#allocated(Class)} at the beginning of every constructor of a class, see
+ * {@link AllocationProfiler}.
+ * <p>
+ * Jamm does not depend on a bytecode library, so this class only rewrites as much of the class file as needed. The
+ * inserted code {@code ldc_w <this class>; invokestatic allocated; nop; nop} is 8 bytes long, which keeps the padding
+ * of switch instructions intact, and does not branch, so that the relative branch offsets stay valid. Only the
+ * absolute code offsets have to be shifted: in the exception table, in the line number and local variable tables, and
+ * in the stack map frames. Constructors with other code attributes, which may contain code offsets as well, are left
+ * alone.
+ */
+final class ConstructorInstrumenter
+{
+    static final String PROFILER = "org/github/jamm/AllocationProfiler";
+    static final String METHOD = "allocated";
+    static final String DESCRIPTOR = "(Ljava/lang/Class;)V";
+
+    private static final int INSERTED_LENGTH = 8;
+    // ldc with a class constant requires version 49
+    private static final int MIN_MAJOR_VERSION = 49;
+    private static final int ACC_INTERFACE = 0x0200;
+
+    private final ByteBuffer in;
+    private final ByteArrayOutputStream bytes;
+    private final DataOutputStream out;
+    // the names of the constant pool entries, that are UTF-8 constants, null for the other ones
+    private String[] utf8;
+    private int thisClass;
+    private int methodRef;
+    private int instrumented;
+
+    private ConstructorInstrumenter(byte[] classFile)
+    {
+        this.in = ByteBuffer.wrap(classFile);
+        this.bytes = new ByteArrayOutputStream(classFile.length + 256);
+        this.out = new DataOutputStream(bytes);
+    }
+
+    /**
+     * @return the instrumented class file or {@code null}, if the class is an interface, has no constructor, that can
+     * be instrumented, or is too old or too big to be instrumented
+     */
+    static byte[] instrument(byte[] classFile)
+    {
+        try
+        {
+            return new ConstructorInstrumenter(classFile).instrument();
+        }
+        catch (IOException | RuntimeException e)
+        {
+            // malformed or unsupported class file, let the JVM report the problems with it
+            return null;
+        }
+    }
+
+    private byte[] instrument() throws IOException
+    {
+        if (in.getInt() != 0xCAFEBABE)
+            return null;
+        int minor = u2();
+        int major = u2();
+        if (major < MIN_MAJOR_VERSION)
+            return null;
+
+        int count = u2();
+        if (count + 6 > 0xFFFF)
+            return null;
+        out.writeInt(0xCAFEBABE);
+        out.writeShort(minor);
+        out.writeShort(major);
+        out.writeShort(count + 6);
+        copyConstantPool(count);
+        appendConstants(count);
+
+        int access = u2();
+        if ((access & ACC_INTERFACE) != 0)
+            return null;
+        out.writeShort(access);
+        thisClass = u2();
+        out.writeShort(thisClass);
+        copy(2);                        // super class
+        int interfaces = u2();
+        out.writeShort(interfaces);
+        copy(2 * interfaces);
+
+        int fields = u2();
+        out.writeShort(fields);
+        for (int i = 0; i < fields; i++)
+            copyMember(false);
+
+        int methods = u2();
+        out.writeShort(methods);
+        for (int i = 0; i < methods; i++)
+            copyMember(true);
+
+        // class attributes
+        copy(in.remaining());
+
+        return instrumented > 0 ? bytes.toByteArray() : null;
+    }
+
+    private void copyConstantPool(int count) throws IOException
+    {
+        utf8 = new String[count];
+        for (int i = 1; i < count; i++)
+        {
+            int tag = in.get() & 0xFF;
+            out.writeByte(tag);
+            switch (tag)
+            {
+                case 1:     // Utf8, the names compared to are ASCII
+                    int length = u2();
+                    out.writeShort(length);
+                    byte[] value = new byte[length];
+                    in.get(value);
+                    out.write(value);
+                    utf8[i] = new String(value, StandardCharsets.ISO_8859_1);
+                    break;
+                case 7:     // Class
+                case 8:     // String
+                case 16:    // MethodType
+                case 19:    // Module
+                case 20:    // Package
+                    copy(2);
+                    break;
+                case 15:    // MethodHandle
+                    copy(3);
+                    break;
+                case 3:     // Integer
+                case 4:     // Float
+                case 9:     // Fieldref
+                case 10:    // Methodref
+                case 11:    // InterfaceMethodref
+                case 12:    // NameAndType
+                case 17:    // Dynamic
+                case 18:    // InvokeDynamic
+                    copy(4);
+                    break;
+                case 5:     // Long
+                case 6:     // Double
+                    copy(8);
+                    i++;
+                    break;
+                default:
+                    throw new IllegalArgumentException("Unknown constant pool tag " + tag);
+            }
+        }
+    }
+
+    /**
+     * Appends the constants for the method reference to {@link AllocationProfiler#allocated(Class)}.
+     */
+    private void appendConstants(int first) throws IOException
+    {
+        out.writeByte(1);
+        out.writeUTF(PROFILER);
+        out.writeByte(7);
+        out.writeShort(first);
+        out.writeByte(1);
+        out.writeUTF(METHOD);
+        out.writeByte(1);
+        out.writeUTF(DESCRIPTOR);
+        out.writeByte(12);
+        out.writeShort(first + 2);
+        out.writeShort(first + 3);
+        out.writeByte(10);
+        out.writeShort(first + 1);
+        out.writeShort(first + 4);
+        methodRef = first + 5;
+    }
+
+    private void copyMember(boolean method) throws IOException
+    {
+        int access = u2();
+        int name = u2();
+        int descriptor = u2();
+        out.writeShort(access);
+        out.writeShort(name);
+        out.writeShort(descriptor);
+        boolean constructor = method && "<init>".equals(utf8[name]);
+
+        int attributes = u2();
+        out.writeShort(attributes);
+        for (int i = 0; i < attributes; i++)
+        {
+            int attributeName = u2();
+            int length = in.getInt();
+            out.writeShort(attributeName);
+            if (!constructor || !"Code".equals(utf8[attributeName]))
+            {
+                out.writeInt(length);
+                copy(length);
+                continue;
+            }
+
+            byte[] code = new byte[length];
+            in.get(code);
+            byte[] instrumentedCode = instrumentCode(ByteBuffer.wrap(code));
+            if (instrumentedCode != null)
+                instrumented++;
+            else
+                instrumentedCode = code;
+            out.writeInt(instrumentedCode.length);
+            out.write(instrumentedCode);
+        }
+    }
+
+    /**
+     * @return the rewritten content of a {@code Code} attribute or {@code null}, if it cannot be rewritten
+     */
+    private byte[] instrumentCode(ByteBuffer code) throws IOException
+    {
+        ByteArrayOutputStream result = new ByteArrayOutputStream(code.remaining() + 64);
+        DataOutputStream attribute = new DataOutputStream(result);
+
+        int maxStack = u2(code);
+        attribute.writeShort(Math.max(maxStack, 1));
+        attribute.writeShort(u2(code));     // max locals
+        int codeLength = code.getInt();
+        if (codeLength + INSERTED_LENGTH > 0xFFFF)
+            return null;
+        attribute.writeInt(codeLength + INSERTED_LENGTH);
+        attribute.writeByte(0x13);          // ldc_w
+        attribute.writeShort(thisClass);
+        attribute.writeByte(0xB8);          // invokestatic
+        attribute.writeShort(methodRef);
+        attribute.writeByte(0x00);          // nop
+        attribute.writeByte(0x00);          // nop
+        byte[] instructions = new byte[codeLength];
+        code.get(instructions);
+        attribute.write(instructions);
+
+        int exceptions = u2(code);
+        attribute.writeShort(exceptions);
+        for (int i = 0; i < exceptions; i++)
+        {
+            attribute.writeShort(u2(code) + INSERTED_LENGTH);   // start
+            attribute.writeShort(u2(code) + INSERTED_LENGTH);   // end
+            attribute.writeShort(u2(code) + INSERTED_LENGTH);   // handler
+            attribute.writeShort(u2(code));                     // catch type
+        }
+
+        int attributes = u2(code);
+        attribute.writeShort(attributes);
+        for (int i = 0; i < attributes; i++)
+        {
+            int name = u2(code);
+            int length = code.getInt();
+            // the covariant overrides of Java 9+ must not be linked, see skip(ByteBuffer, int)
+            ByteBuffer content = code.slice();
+            ((Buffer) content).limit(length);
+            skip(code, length);
+
+            byte[] shifted;
+            String attributeName = utf8[name];
+            if ("LineNumberTable".equals(attributeName))
+                shifted = shiftTable(content, 4, false);
+            else if ("LocalVariableTable".equals(attributeName) || "LocalVariableTypeTable".equals(attributeName))
+                shifted = shiftTable(content, 10, true);
+            else if ("StackMapTable".equals(attributeName))
+                shifted = shiftStackMapTable(content);
+            else
+                return null;
+
+            attribute.writeShort(name);
+            attribute.writeInt(shifted.length);
+            attribute.write(shifted);
+        }
+        return result.toByteArray();
+    }
+
+    /**
+     * Shifts the tables, whose entries start with a code offset. The entries starting at offset 0 keep starting
+     * there, so that they cover the inserted code as well, which requires to extend the length of ranges.
+     */
+    private static byte[] shiftTable(ByteBuffer table, int entryLength, boolean ranges) throws IOException
+    {
+        ByteArrayOutputStream result = new ByteArrayOutputStream(table.remaining());
+        DataOutputStream out = new DataOutputStream(result);
+        int entries = u2(table);
+        out.writeShort(entries);
+        for (int i = 0; i < entries; i++)
+        {
+            int start = u2(table);
+            int copied = entryLength - 2;
+            if (start != 0)
+            {
+                out.writeShort(start + INSERTED_LENGTH);
+            }
+            else
+            {
+                out.writeShort(0);
+                if (ranges)
+                {
+                    out.writeShort(u2(table) + INSERTED_LENGTH);
+                    copied -= 2;
+                }
+            }
+            byte[] rest = new byte[copied];
+            table.get(rest);
+            out.write(rest);
+        }
+        return result.toByteArray();
+    }
+
+    /**
+     * Shifts the offset of the first frame, the offsets of the others are relative to their previous frame, and the
+     * offsets of the {@code new} instructions, that created uninitialized values.
+     */
+    private static byte[] shiftStackMapTable(ByteBuffer table) throws IOException
+    {
+        ByteArrayOutputStream result = new ByteArrayOutputStream(table.remaining() + 2);
+        DataOutputStream out = new DataOutputStream(result);
+        int frames = u2(table);
+        out.writeShort(frames);
+        for (int i = 0; i < frames; i++)
+        {
+            int shift = i == 0 ? INSERTED_LENGTH : 0;
+            int type = table.get() & 0xFF;
+            if (type < 64)
+            {
+                // same_frame
+                writeOffset(out, type + shift, 0, 251);
+            }
+            else if (type < 128)
+            {
+                // same_locals_1_stack_item_frame
+                writeOffset(out, type - 64 + shift, 64, 247);
+                copyVerificationType(table, out);
+            }
+            else if (type == 247)
+            {
+                out.writeByte(type);
+                out.writeShort(u2(table) + shift);
+                copyVerificationType(table, out);
+            }
+            else if (type >= 248 && type <= 251)
+            {
+                // chop_frame and same_frame_extended
+                out.writeByte(type);
+                out.writeShort(u2(table) + shift);
+            }
+            else if (type >= 252 && type <= 254)
+            {
+                // append_frame
+                out.writeByte(type);
+                out.writeShort(u2(table) + shift);
+                for (int j = 0; j < type - 251; j++)
+                    copyVerificationType(table, out);
+            }
+            else if (type == 255)
+            {
+                // full_frame
+                out.writeByte(type);
+                out.writeShort(u2(table) + shift);
+                for (int n = 0; n < 2; n++)
+                {
+                    int types = u2(table);
+                    out.writeShort(types);
+                    for (int j = 0; j < types; j++)
+                        copyVerificationType(table, out);
+                }
+            }
+            else
+            {
+                throw new IllegalArgumentException("Unknown stack map frame type " + type);
+            }
+        }
+        return result.toByteArray();
+    }
+
+    /**
+     * Writes the type of a frame, whose offset is encoded in its type, as long as it is below 64, and which has to be
+     * written as the extended type otherwise.
+     */
+    private static void writeOffset(DataOutputStream out, int offset, int base, int extendedType) throws IOException
+    {
+        if (offset < 64)
+        {
+            out.writeByte(base + offset);
+        }
+        else
+        {
+            out.writeByte(extendedType);
+            out.writeShort(offset);
+        }
+    }
+
+    private static void copyVerificationType(ByteBuffer table, DataOutputStream out) throws IOException
+    {
+        int tag = table.get() & 0xFF;
+        out.writeByte(tag);
+        if (tag == 7)
+            out.writeShort(u2(table));                      // Object_variable_info
+        else if (tag == 8)
+            out.writeShort(u2(table) + INSERTED_LENGTH);    // Uninitialized_variable_info
+    }
+
+    private void copy(int length) throws IOException
+    {
+        out.write(in.array(), in.position(), length);
+        skip(in, length);
+    }
+
+    /**
+     * Advances the position of {@code buffer} through {@link Buffer}, as {@link ByteBuffer} overrides
+     * {@code position(int)} covariantly on Java 9+, which a class compiled there would otherwise call on Java 8.
+     */
+    private static void skip(ByteBuffer buffer, int length)
+    {
+        ((Buffer) buffer).position(buffer.position() + length);
+    }
+
+    private int u2()
+    {
+        return u2(in);
+    }
+
+    private static int u2(ByteBuffer buffer)
+    {
+        return buffer.getShort() & 0xFFFF;
+    }
+}
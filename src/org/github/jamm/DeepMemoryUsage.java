@@ -0,0 +1,89 @@
+package org.github.jamm;
+
+/**
+ * The memory used by an object graph on the heap and off the heap, returned by
+ * {@link MemoryMeter#measureDeepWithOffHeap(Object)}.
+ * <p>
+ * The off-heap memory is the native memory behind the direct and mapped {@link java.nio.Buffer}s of the graph. It is
+ * counted once per allocation, even if several buffers share it, like slices, duplicates and views of the same
+ * buffer do, and even if the buffer, that has been allocated, is not part of the graph itself.
+ */
+public final class DeepMemoryUsage
+{
+    private final long heapBytes;
+    private final long directBytes;
+    private final long mappedBytes;
+    private final long offHeapAllocations;
+    private final long directBuffers;
+
+    DeepMemoryUsage(long heapBytes, long directBytes, long mappedBytes, long offHeapAllocations, long directBuffers)
+    {
+        this.heapBytes = heapBytes;
+        this.directBytes = directBytes;
+        this.mappedBytes = mappedBytes;
+        this.offHeapAllocations = offHeapAllocations;
+        this.directBuffers = directBuffers;
+    }
+
+    /**
+     * @return the memory usage on the heap, same as {@link MemoryMeter#measureDeep(Object)} would return
+     */
+    public long getHeapBytes()
+    {
+        return heapBytes;
+    }
+
+    /**
+     * @return the native memory allocated for direct buffers, for example by
+     * {@link java.nio.ByteBuffer#allocateDirect(int)}
+     */
+    public long getDirectBytes()
+    {
+        return directBytes;
+    }
+
+    /**
+     * @return the memory of mapped files, for example by {@link java.nio.channels.FileChannel#map}, which is only
+     * partially resident
+     */
+    public long getMappedBytes()
+    {
+        return mappedBytes;
+    }
+
+    /**
+     * @return the sum of {@link #getDirectBytes()} and {@link #getMappedBytes()}
+     */
+    public long getOffHeapBytes()
+    {
+        return directBytes + mappedBytes;
+    }
+
+    /**
+     * @return the number of distinct allocations and mappings
+     */
+    public long getOffHeapAllocations()
+    {
+        return offHeapAllocations;
+    }
+
+    /**
+     * @return the number of direct buffers in the graph
+     */
+    public long getDirectBuffers()
+    {
+        return directBuffers;
+    }
+
+    @Override
+    public String toString()
+    {
+        return "DeepMemoryUsage{" +
+               "heapBytes=" + heapBytes +
+               ", directBytes=" + directBytes +
+               ", mappedBytes=" + mappedBytes +
+               ", offHeapAllocations=" + offHeapAllocations +
+               ", directBuffers=" + directBuffers +
+               '}';
+    }
+}
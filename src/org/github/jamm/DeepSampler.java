@@ -0,0 +1,135 @@
+package org.github.jamm;
+
+import java.util.ArrayDeque;
+import java.util.Deque;
+import java.util.concurrent.ThreadLocalRandom;
+
+/**
+ * Implementation of {@link MemoryMeter#measureDeepSampled(Object, double, int)}.
+ * <p>
+ * The object graph is traversed like {@link MemoryMeter#measureDeep(Object)} does, except for arrays of references
+ * that have at least {@code minArrayLength} elements. Only a systematic sample (random start, fixed step) of the
+ * slots of such an array is measured deeply and the sum is extrapolated to the whole array. {@code null} slots are
+ * part of the sample and contribute 0 bytes. The variance of the extrapolation is estimated as for a simple random
+ * sample without replacement; the variances of arrays sampled within sampled elements are scaled and added.
+ * <p>
+ * All elements of a sampled array are marked as visited before the samples are measured, so that the walk of a sample
+ * does not count the elements linked to it, like the neighbours in a {@code LinkedHashMap} or a {@code TreeMap}.
+ * The unsampled elements are therefore not measured either, if they are also referenced from outside of the array.
+ * Objects reachable from multiple sampled elements are only counted for the first one, but extrapolated for all
+ * of them. The estimate is therefore best for collections whose elements do not share children.
+ */
+final class DeepSampler
+{
+    // minimum number of samples per array, so that the variance estimate is meaningful
+    private static final int MIN_SAMPLES = 32;
+
+    private final MemoryMeterBase meter;
+    private final double sampleRate;
+    private final int minArrayLength;
+    private final VisitedTracker tracker;
+
+    private double variance;
+    private int sampledArrays;
+
+    DeepSampler(MemoryMeterBase meter, double sampleRate, int minArrayLength)
+    {
+        this.meter = meter;
+        this.sampleRate = sampleRate;
+        this.minArrayLength = minArrayLength;
+        this.tracker = meter.visitedSetStrategy.create(0);
+    }
+
+    SizeEstimate measure(Object root)
+    {
+        if (meter.ignoreClass.get(root.getClass()))
+            return new SizeEstimate(0, 0d, 0);
+
+        tracker.add(root);
+        double estimate = walk(root);
+        return new SizeEstimate(Math.round(estimate), Math.sqrt(variance), sampledArrays);
+    }
+
+    /**
+     * @return the (estimated) memory usage of {@code root}, which must already have been added to the tracker
+     */
+    private double walk(Object root)
+    {
+        Deque<Object> stack = new ArrayDeque<>();
+        stack.push(root);
+
+        double total = 0;
+        Object current;
+        Class<?> type;
+        while (!stack.isEmpty())
+        {
+            current = stack.pop();
+            type = current.getClass();
+            if (type.isArray() && !type.getComponentType().isPrimitive() && ((Object[]) current).length >= minArrayLength)
+                total += meter.measure(current) + sample((Object[]) current, stack);
+            else
+                total += meter.measureAndPushChildren(current, tracker, stack);
+        }
+        return total;
+    }
+
+    /**
+     * @return the estimated memory usage of the objects referenced by {@code array}
+     */
+    private double sample(Object[] array, Deque<Object> stack)
+    {
+        int length = array.length;
+        int samples = (int) Math.max(MIN_SAMPLES, Math.ceil(length * sampleRate));
+        if (samples >= length)
+        {
+            // sampling would not save anything, measure all elements
+            for (Object child : array)
+                if (child != null && tracker.add(child) && !meter.ignoreClass.get(child.getClass()))
+                    stack.push(child);
+            return 0d;
+        }
+
+        sampledArrays++;
+
+        // the variance of the estimates of nested sampled arrays is scaled together with the samples below
+        double outerVariance = variance;
+        variance = 0d;
+
+        double step = (double) length / samples;
+        double offset = ThreadLocalRandom.current().nextDouble() * step;
+        Object element;
+        boolean[] unvisited = new boolean[samples];
+        for (int i = 0; i < samples; i++)
+        {
+            element = array[(int) (offset + i * step)];
+            unvisited[i] = element != null && tracker.add(element);
+        }
+        // the walk of a sample must not reach the unsampled elements, they are covered by the extrapolation
+        for (Object child : array)
+            if (child != null)
+                tracker.add(child);
+
+        double sum = 0d;
+        double sumOfSquares = 0d;
+        double x;
+        for (int i = 0; i < samples; i++)
+        {
+            element = array[(int) (offset + i * step)];
+            x = unvisited[i] && !meter.ignoreClass.get(element.getClass())
+                ? walk(element)
+                : 0d;
+            sum += x;
+            sumOfSquares += x * x;
+        }
+
+        double mean = sum / samples;
+        double sampleVariance = Math.max(0d, (sumOfSquares - samples * mean * mean) / (samples - 1));
+        double finitePopulationCorrection = 1d - (double) samples / length;
+
+        variance = outerVariance
+                   + step * step * variance
+                   + (double) length * length * finitePopulationCorrection * sampleVariance / samples;
+
+        return step * sum;
+    }
+}
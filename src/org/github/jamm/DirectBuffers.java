@@ -0,0 +1,201 @@
+package org.github.jamm;
+
+import java.lang.invoke.MethodHandle;
+import java.lang.reflect.Field;
+import java.nio.Buffer;
+import java.nio.ByteBuffer;
+import java.nio.CharBuffer;
+import java.nio.DoubleBuffer;
+import java.nio.FloatBuffer;
+import java.nio.IntBuffer;
+import java.nio.LongBuffer;
+import java.nio.ShortBuffer;
+import java.util.Collections;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Set;
+
+/**
+ * Access to the internals of the direct {@link Buffer}s, which are needed to attribute their native memory to the
+ * allocation it belongs to, see {@link MemoryMeter#measureDeepWithOffHeap(Object)}.
+ * <p>
+ * Every direct buffer created from another one, by {@code slice()}, {@code duplicate()}, {@code asReadOnlyBuffer()}
+ * or by one of the views like {@code asLongBuffer()}, keeps the buffer it has been created from in its field
+ * {@code att}. Following these attachments leads to the buffer, that has been allocated, or mapped, first. Its capacity
+ * is the size of the native memory shared by all buffers attached to it.
+ */
+final class DirectBuffers
+{
+    // the JDK's bookkeeping of the native memory, which is not followed by deep measurements, as the cleaners of all
+    // direct buffers are linked with each other and the file descriptors are shared with the file channels
+    private static final Field CLEANER = field("java.nio.DirectByteBuffer", "cleaner");
+    private static final Field FILE_DESCRIPTOR = field("java.nio.MappedByteBuffer", "fd");
+
+    // (Object)Object, null if the file descriptor cannot be read
+    private static final MethodHandle GET_FILE_DESCRIPTOR = getter(FILE_DESCRIPTOR);
+
+    // per direct buffer class, the getter of its attachment or null, if it has none or if it cannot be read
+    private static final ClassValue<MethodHandle> ATTACHMENT = new ClassValue<MethodHandle>()
+    {
+        @Override
+        protected MethodHandle computeValue(Class<?> type)
+        {
+            for (Class<?> cls = type; cls != null && cls != Buffer.class; cls = cls.getSuperclass())
+            {
+                try
+                {
+                    return getter(cls.getDeclaredField("att"));
+                }
+                catch (NoSuchFieldException e)
+                {
+                    // declared by a superclass
+                }
+            }
+            return null;
+        }
+    };
+
+    private DirectBuffers()
+    {
+    }
+
+    /**
+     * @return {@code true} if {@code field} belongs to the JDK's bookkeeping of the native memory of direct buffers
+     */
+    static boolean isBookkeeping(Field field)
+    {
+        return field.equals(CLEANER) || field.equals(FILE_DESCRIPTOR);
+    }
+
+    /**
+     * @return the buffer, that has been allocated or mapped and {@code buffer} has been created from, or
+     * {@code buffer} itself, if it has not been created from another buffer or if that cannot be determined
+     */
+    static Buffer allocation(Buffer buffer)
+    {
+        Buffer allocation = buffer;
+        for (Object attachment; (attachment = attachment(allocation)) instanceof Buffer; )
+            allocation = (Buffer) attachment;
+        return allocation;
+    }
+
+    private static Object attachment(Buffer buffer)
+    {
+        MethodHandle getter = ATTACHMENT.get(buffer.getClass());
+        if (getter == null)
+            return null;
+        try
+        {
+            return (Object) getter.invokeExact((Object) buffer);
+        }
+        catch (Throwable t)
+        {
+            return null;
+        }
+    }
+
+    /**
+     * @return {@code true} if {@code allocation} maps a file and {@code false}, if it has been allocated or if that
+     * cannot be determined
+     */
+    static boolean isMapped(Buffer allocation)
+    {
+        if (GET_FILE_DESCRIPTOR == null || !FILE_DESCRIPTOR.getDeclaringClass().isInstance(allocation))
+            return false;
+        try
+        {
+            return (Object) GET_FILE_DESCRIPTOR.invokeExact((Object) allocation) != null;
+        }
+        catch (Throwable t)
+        {
+            return false;
+        }
+    }
+
+    /**
+     * @return the capacity of {@code buffer} in bytes
+     */
+    static long capacityInBytes(Buffer buffer)
+    {
+        return (long) buffer.capacity() << elementSizeShift(buffer);
+    }
+
+    /**
+     * @return the binary logarithm of the size of the elements of {@code buffer} in bytes
+     */
+    static int elementSizeShift(Buffer buffer)
+    {
+        if (buffer instanceof ByteBuffer)
+            return 0;
+        if (buffer instanceof CharBuffer || buffer instanceof ShortBuffer)
+            return 1;
+        if (buffer instanceof IntBuffer || buffer instanceof FloatBuffer)
+            return 2;
+        if (buffer instanceof LongBuffer || buffer instanceof DoubleBuffer)
+            return 3;
+        return 0;
+    }
+
+    private static Field field(String className, String name)
+    {
+        try
+        {
+            return Class.forName(className).getDeclaredField(name);
+        }
+        catch (Exception e)
+        {
+            return null;
+        }
+    }
+
+    /**
+     * @return a getter of type {@code (Object)Object}, that reads through {@code sun.misc.Unsafe} if available, so
+     * that {@code java.nio} does not have to be opened, or {@code null}, if the field cannot be read
+     */
+    private static MethodHandle getter(Field field)
+    {
+        if (field == null)
+            return null;
+        List<Field> fields = Collections.singletonList(field);
+        try
+        {
+            return MemoryMeterBase.getters(fields, MemoryMeterUnsafe.unsafe != null ? MemoryMeterBase.fieldOffsets(fields) : null)[0];
+        }
+        catch (RuntimeException e)
+        {
+            return null;
+        }
+    }
+
+    /**
+     * Sums up the native memory of the direct buffers visited by a deep measurement, once per allocation.
+     */
+    static final class Accounting
+    {
+        private final Set<Buffer> allocations = Collections.newSetFromMap(new IdentityHashMap<>());
+        private long buffers;
+        private long directBytes;
+        private long mappedBytes;
+
+        void add(Buffer buffer)
+        {
+            if (!buffer.isDirect())
+                return;
+
+            buffers++;
+            Buffer allocation = allocation(buffer);
+            if (!allocations.add(allocation))
+                return;
+
+            if (isMapped(allocation))
+                mappedBytes += capacityInBytes(allocation);
+            else
+                directBytes += capacityInBytes(allocation);
+        }
+
+        DeepMemoryUsage toUsage(long heapBytes)
+        {
+            return new DeepMemoryUsage(heapBytes, directBytes, mappedBytes, allocations.size(), buffers);
+        }
+    }
+}
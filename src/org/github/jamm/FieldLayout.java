@@ -0,0 +1,522 @@
+package org.github.jamm;
+
+import java.lang.annotation.Annotation;
+import java.lang.reflect.AnnotatedElement;
+import java.lang.reflect.Field;
+import java.lang.reflect.Modifier;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.Deque;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeMap;
+
+import static org.github.jamm.MemoryMeter.roundTo;
+
+/**
+ * Computes the offsets of the instance fields of a class the way HotSpot assigns them when it loads the class, which
+ * gives the shallow size of the instances without an agent.
+ * <p>
+ * HotSpot uses two algorithms:
+ * <ul>
+ * <li>Up to Java 14 the fields are grouped by size, longs and doubles first and references last. Only the gap in
+ * front of the first long is filled with smaller fields, and the fields of a subclass start after the fields of its
+ * superclass, rounded up to the reference size.</li>
+ * <li>Since Java 15 the fields are placed from the largest to the smallest, references last, each one into the
+ * smallest gap it fits into, including the gaps between the fields of the superclasses.</li>
+ * </ul>
+ * Both honour {@code @Contended}, which is only effective for the classes of the JDK unless the JVM runs with
+ * {@code -XX:-RestrictContended}. The fields, that the JVM injects into a few of its core classes (e.g.
+ * {@link Class}), or that are filtered from reflection, are not known and therefore not accounted for.
+ */
+final class FieldLayout
+{
+    // the layout algorithm changed with Java 15 (JDK-8237767), the old one was still available in Java 15
+    private static final boolean LEGACY = javaVersion() < 15 || "false".equals(MemoryLayoutSpecification.getVMOption("UseNewFieldLayout"));
+
+    private static final boolean EMPTY_SLOTS_IN_SUPERS = !"false".equals(MemoryLayoutSpecification.getVMOption("UseEmptySlotsInSupers"));
+
+    private static final boolean ENABLE_CONTENDED = !"false".equals(MemoryLayoutSpecification.getVMOption("EnableContended"));
+
+    private static final boolean RESTRICT_CONTENDED = !"false".equals(MemoryLayoutSpecification.getVMOption("RestrictContended"));
+
+    private static final int CONTENDED_PADDING_WIDTH = contendedPaddingWidth();
+
+    /**
+     * The classes, for which the old algorithm places the references first and does not fill the gap in front of the
+     * first long, because the JVM used to hard-code their field offsets.
+     */
+    private static final Set<String> REFERENCES_FIRST = new HashSet<>(Arrays.asList("java.lang.AssertionStatusDirectives",
+                                                                                    "java.lang.Class",
+                                                                                    "java.lang.ClassLoader",
+                                                                                    "java.lang.ref.Reference",
+                                                                                    "java.lang.ref.SoftReference",
+                                                                                    "java.lang.StackTraceElement",
+                                                                                    "java.lang.String",
+                                                                                    "java.lang.Throwable",
+                                                                                    "java.lang.Boolean",
+                                                                                    "java.lang.Character",
+                                                                                    "java.lang.Float",
+                                                                                    "java.lang.Double",
+                                                                                    "java.lang.Byte",
+                                                                                    "java.lang.Short",
+                                                                                    "java.lang.Integer",
+                                                                                    "java.lang.Long"));
+
+    /**
+     * The instance fields of the class and of its superclasses, ordered by their offsets.
+     */
+    final Field[] fields;
+
+    /**
+     * The offsets of the {@link #fields}.
+     */
+    final int[] offsets;
+
+    /**
+     * The end of the fields, including any padding for {@code @Contended}.
+     */
+    final int end;
+
+    /**
+     * The shallow size of an instance of the class.
+     */
+    final long instanceSize;
+
+    // whether the class or one of its superclasses uses @Contended, which prevents filling the gaps of its layout
+    private final boolean contended;
+
+    private FieldLayout(TreeMap<Integer, Field> fields, int end, boolean contended, MemoryLayoutSpecification spec)
+    {
+        this.fields = fields.values().toArray(new Field[0]);
+        this.offsets = new int[fields.size()];
+        int i = 0;
+        for (Integer offset : fields.keySet())
+            offsets[i++] = offset;
+        this.end = end;
+        this.contended = contended;
+        this.instanceSize = roundTo(end, spec.getObjectAlignment());
+    }
+
+    /**
+     * @param type a class, that is not an array class
+     * @return the layout of the instances of {@code type}
+     */
+    static FieldLayout of(Class<?> type, MemoryLayoutSpecification spec)
+    {
+        Class<?> superclass = type.getSuperclass();
+        if (superclass == null)
+            return new FieldLayout(new TreeMap<>(), spec.getObjectHeaderSize(), false, spec);
+
+        FieldLayout parent = of(superclass, spec);
+
+        boolean contendedAllowed = ENABLE_CONTENDED && (!RESTRICT_CONTENDED || isPrivileged(type));
+        boolean contendedClass = contendedAllowed && contendedGroup(type) != null;
+
+        // the @Contended fields of the default group are padded individually, the ones of a named group together
+        List<Field> regular = new ArrayList<>();
+        List<List<Field>> contendedGroups = new ArrayList<>();
+        Map<String, List<Field>> namedGroups = new LinkedHashMap<>();
+        for (Field field : type.getDeclaredFields())
+        {
+            if (Modifier.isStatic(field.getModifiers()))
+                continue;
+
+            String group = contendedAllowed ? contendedGroup(field) : null;
+            if (group == null)
+                regular.add(field);
+            else if (group.isEmpty())
+                contendedGroups.add(new ArrayList<>(Arrays.asList(field)));
+            else
+                namedGroups.computeIfAbsent(group, g -> new ArrayList<>()).add(field);
+        }
+        // the old algorithm lays out the default group first
+        contendedGroups.addAll(namedGroups.values());
+
+        TreeMap<Integer, Field> placed = new TreeMap<>();
+        for (int i = 0; i < parent.fields.length; i++)
+            placed.put(parent.offsets[i], parent.fields[i]);
+
+        int end = LEGACY ? legacyLayout(type, parent, regular, contendedGroups, contendedClass, placed, spec)
+                         : layout(parent, regular, contendedGroups, contendedClass, placed, spec);
+
+        return new FieldLayout(placed, end, parent.contended || contendedClass || !contendedGroups.isEmpty(), spec);
+    }
+
+    /**
+     * The layout of HotSpot up to Java 14, see {@code ClassFileParser::layout_fields()}, with the default
+     * {@code FieldsAllocationStyle} and {@code CompactFields}.
+     *
+     * @return the end of the fields
+     */
+    private static int legacyLayout(Class<?> type,
+                                    FieldLayout parent,
+                                    List<Field> regular,
+                                    List<List<Field>> contendedGroups,
+                                    boolean contendedClass,
+                                    TreeMap<Integer, Field> placed,
+                                    MemoryLayoutSpecification spec)
+    {
+        int referenceSize = spec.getReferenceSize();
+
+        Deque<Field> longs = new ArrayDeque<>();
+        Deque<Field> ints = new ArrayDeque<>();
+        Deque<Field> shorts = new ArrayDeque<>();
+        Deque<Field> bytes = new ArrayDeque<>();
+        Deque<Field> references = new ArrayDeque<>();
+        for (Field field : regular)
+        {
+            Class<?> fieldType = field.getType();
+            if (!fieldType.isPrimitive())
+                references.add(field);
+            else
+                (fieldType == long.class || fieldType == double.class ? longs
+                 : fieldType == int.class || fieldType == float.class ? ints
+                 : fieldType == short.class || fieldType == char.class ? shorts
+                 : bytes).add(field);
+        }
+
+        int offset = (int) roundTo(parent.end, referenceSize);
+        if (contendedClass)
+            offset += CONTENDED_PADDING_WIDTH;
+
+        boolean referencesFirst = type.getClassLoader() == null && REFERENCES_FIRST.contains(type.getName());
+        if (referencesFirst)
+            offset = place(references, offset, referenceSize, placed);
+
+        if (!longs.isEmpty())
+        {
+            int aligned = (int) roundTo(offset, 8);
+            if (aligned != offset && !referencesFirst)
+            {
+                // fill the gap in front of the first long with an int, shorts, bytes or a reference, in this order
+                int gap = offset;
+                int length = aligned - offset;
+                if (!ints.isEmpty())
+                {
+                    placed.put(gap, ints.poll());
+                    gap += 4;
+                    length -= 4;
+                }
+                for (; length >= 2 && !shorts.isEmpty(); gap += 2, length -= 2)
+                    placed.put(gap, shorts.poll());
+                // the bytes do not advance the offset, so that a reference only fits into an unused gap
+                for (int b = gap; length > 0 && !bytes.isEmpty(); b++, length--)
+                    placed.put(b, bytes.poll());
+                if (length >= referenceSize && !references.isEmpty())
+                    placed.put(gap, references.poll());
+            }
+            offset = aligned;
+        }
+        offset = place(longs, offset, 8, placed);
+        offset = place(ints, offset, 4, placed);
+        offset = place(shorts, offset, 2, placed);
+        offset = place(bytes, offset, 1, placed);
+        if (!references.isEmpty())
+            offset = place(references, (int) roundTo(offset, referenceSize), referenceSize, placed);
+
+        if (!contendedGroups.isEmpty())
+        {
+            offset += CONTENDED_PADDING_WIDTH;
+            for (List<Field> group : contendedGroups)
+            {
+                for (Field field : group)
+                {
+                    int size = sizeOf(field, spec);
+                    offset = (int) roundTo(offset, size);
+                    placed.put(offset, field);
+                    offset += size;
+                }
+                offset += CONTENDED_PADDING_WIDTH;
+            }
+        }
+
+        if (contendedClass)
+            offset += CONTENDED_PADDING_WIDTH;
+
+        return offset;
+    }
+
+    private static int place(Deque<Field> fields, int offset, int size, TreeMap<Integer, Field> placed)
+    {
+        for (; !fields.isEmpty(); offset += size)
+            placed.put(offset, fields.poll());
+        return offset;
+    }
+
+    /**
+     * The layout of HotSpot since Java 15, see {@code FieldLayoutBuilder::compute_regular_layout()}.
+     *
+     * @return the end of the fields
+     */
+    private static int layout(FieldLayout parent,
+                              List<Field> regular,
+                              List<List<Field>> contendedGroups,
+                              boolean contendedClass,
+                              TreeMap<Integer, Field> placed,
+                              MemoryLayoutSpecification spec)
+    {
+        Blocks blocks = new Blocks(parent, spec);
+        Block start = blocks.start;
+        boolean tailPadding = false;
+
+        if (contendedClass)
+        {
+            start = blocks.last;
+            blocks.insertPadding(start);
+            tailPadding = true;
+        }
+        blocks.add(primitives(regular), start, placed, spec);
+        blocks.add(references(regular), start, placed, spec);
+
+        for (List<Field> group : contendedGroups)
+        {
+            start = blocks.last;
+            blocks.insertPadding(start);
+            blocks.add(primitives(group), start, placed, spec);
+            blocks.add(references(group), start, placed, spec);
+            tailPadding = true;
+        }
+
+        if (tailPadding)
+            blocks.insertPadding(blocks.last);
+
+        return blocks.last.offset;
+    }
+
+    /**
+     * @return the primitive fields, from the largest to the smallest
+     */
+    private static List<Field> primitives(List<Field> fields)
+    {
+        List<Field> primitives = new ArrayList<>();
+        for (Field field : fields)
+            if (field.getType().isPrimitive())
+                primitives.add(field);
+        // stable, so fields of the same size stay in declaration order
+        primitives.sort(Comparator.comparingInt((Field f) -> MemoryMeter.sizeOfField(f.getType())).reversed());
+        return primitives;
+    }
+
+    private static List<Field> references(List<Field> fields)
+    {
+        List<Field> references = new ArrayList<>();
+        for (Field field : fields)
+            if (!field.getType().isPrimitive())
+                references.add(field);
+        return references;
+    }
+
+    /**
+     * The layout of a class as a list of blocks, that are either free or used by the header, a field or padding.
+     */
+    private static final class Blocks
+    {
+        private Block first;
+
+        // the free block, that spans everything after the last used block
+        private Block last;
+
+        // where the search for a free block ends
+        private final Block start;
+
+        /**
+         * Reconstructs the layout of the superclass and marks the gaps between its fields as free.
+         */
+        Blocks(FieldLayout parent, MemoryLayoutSpecification spec)
+        {
+            first = new Block(false, 0, spec.getObjectHeaderSize());
+            Block b = first;
+            for (int i = 0; i < parent.fields.length; i++)
+            {
+                int offset = parent.offsets[i];
+                if (offset > b.offset + b.size)
+                    b = append(b, new Block(!parent.contended, b.offset + b.size, offset - b.offset - b.size));
+                b = append(b, new Block(false, offset, sizeOf(parent.fields[i], spec)));
+            }
+            // the fields of a subclass must not share the cache line of the last field of a @Contended class
+            if (parent.contended && CONTENDED_PADDING_WIDTH > 0)
+                b = append(b, new Block(false, b.offset + b.size, CONTENDED_PADDING_WIDTH));
+            if (!EMPTY_SLOTS_IN_SUPERS && (b.offset + b.size) % spec.getReferenceSize() != 0)
+                b = append(b, new Block(true, b.offset + b.size, spec.getReferenceSize() - (b.offset + b.size) % spec.getReferenceSize()));
+            last = append(b, new Block(true, b.offset + b.size, Integer.MAX_VALUE));
+
+            start = (EMPTY_SLOTS_IN_SUPERS && !parent.contended) || parent.fields.length == 0 ? first : last;
+        }
+
+        private static Block append(Block b, Block next)
+        {
+            b.next = next;
+            next.prev = b;
+            return next;
+        }
+
+        /**
+         * Places every field into the smallest free block after {@code start}, that it fits into, or at the end.
+         */
+        void add(List<Field> fields, Block start, TreeMap<Integer, Field> placed, MemoryLayoutSpecification spec)
+        {
+            boolean lastSearchSucceeded = false;
+            int lastSize = 0;
+            for (Field field : fields)
+            {
+                int size = sizeOf(field, spec);
+                Block candidate = null;
+                if (start == last)
+                {
+                    candidate = last;
+                }
+                else if (size == lastSize && !lastSearchSucceeded)
+                {
+                    // the same search would fail again
+                    candidate = last;
+                }
+                else
+                {
+                    lastSize = size;
+                    lastSearchSucceeded = true;
+                    for (Block b = last.prev; b != start; b = b.prev)
+                    {
+                        if (b.free && b.fits(size) && (candidate == null || b.size < candidate.size))
+                            candidate = b;
+                    }
+                    if (candidate == null)
+                    {
+                        candidate = last;
+                        lastSearchSucceeded = false;
+                    }
+                }
+                placed.put(insertField(candidate, size), field);
+            }
+        }
+
+        /**
+         * @return the offset of the field, that is placed at the first aligned position of the free block
+         */
+        private int insertField(Block slot, int size)
+        {
+            if (slot.offset % size != 0)
+                insert(slot, new Block(true, 0, size - slot.offset % size));
+            Block field = insert(slot, new Block(false, 0, size));
+            if (slot.size == 0)
+                remove(slot);
+            return field.offset;
+        }
+
+        void insertPadding(Block slot)
+        {
+            if (CONTENDED_PADDING_WIDTH > 0)
+                insert(slot, new Block(false, 0, CONTENDED_PADDING_WIDTH));
+        }
+
+        /**
+         * Inserts the block at the beginning of the free block {@code slot}, which shrinks accordingly.
+         */
+        private Block insert(Block slot, Block block)
+        {
+            block.offset = slot.offset;
+            slot.offset += block.size;
+            slot.size -= block.size;
+            block.prev = slot.prev;
+            block.next = slot;
+            if (slot.prev == null)
+                first = block;
+            else
+                slot.prev.next = block;
+            slot.prev = block;
+            return block;
+        }
+
+        private void remove(Block block)
+        {
+            if (block.prev == null)
+                first = block.next;
+            else
+                block.prev.next = block.next;
+            block.next.prev = block.prev;
+        }
+    }
+
+    private static final class Block
+    {
+        final boolean free;
+        int offset;
+        int size;
+        Block prev;
+        Block next;
+
+        Block(boolean free, int offset, int size)
+        {
+            this.free = free;
+            this.offset = offset;
+            this.size = size;
+        }
+
+        /**
+         * @return {@code true}, if a field of the given size fits into this block at an offset aligned to its size
+         */
+        boolean fits(int size)
+        {
+            int adjustment = offset % size == 0 ? 0 : size - offset % size;
+            return this.size >= size + adjustment;
+        }
+    }
+
+    private static int sizeOf(Field field, MemoryLayoutSpecification spec)
+    {
+        Class<?> type = field.getType();
+        return type.isPrimitive() ? MemoryMeter.sizeOfField(type) : spec.getReferenceSize();
+    }
+
+    /**
+     * @return the {@code @Contended} group of the class or field, the empty string for the default group, or
+     * {@code null}, if it is not annotated
+     */
+    private static String contendedGroup(AnnotatedElement element)
+    {
+        for (Annotation annotation : element.getDeclaredAnnotations())
+        {
+            String name = annotation.annotationType().getName();
+            if (name.equals("jdk.internal.vm.annotation.Contended") || name.equals("sun.misc.Contended"))
+            {
+                // the annotation type is not accessible, so its value is taken from its string representation,
+                // e.g. @jdk.internal.vm.annotation.Contended("group") or @sun.misc.Contended(value=group)
+                String s = annotation.toString();
+                String value = s.substring(s.indexOf('(') + 1, s.lastIndexOf(')'));
+                if (value.startsWith("value="))
+                    value = value.substring("value=".length());
+                if (value.length() >= 2 && value.startsWith("\"") && value.endsWith("\""))
+                    value = value.substring(1, value.length() - 1);
+                return value;
+            }
+        }
+        return null;
+    }
+
+    /**
+     * @return {@code true}, if the class is loaded by the bootstrap or the platform class loader, whose classes may
+     * use {@code @Contended}
+     */
+    private static boolean isPrivileged(Class<?> type)
+    {
+        ClassLoader loader = type.getClassLoader();
+        return loader == null || loader == ClassLoader.getSystemClassLoader().getParent();
+    }
+
+    private static int contendedPaddingWidth()
+    {
+        String width = MemoryLayoutSpecification.getVMOption("ContendedPaddingWidth");
+        return width != null ? Integer.parseInt(width) : 128;
+    }
+
+    private static int javaVersion()
+    {
+        String version = System.getProperty("java.specification.version");
+        return Integer.parseInt(version.startsWith("1.") ? version.substring(2) : version);
+    }
+}
@@ -0,0 +1,317 @@
+package org.github.jamm;
+
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.lang.invoke.MethodHandle;
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.MethodType;
+import java.lang.reflect.Array;
+import java.util.Deque;
+
+/**
+ * Generates a class per measured class, that pushes the values of all its reference fields, see
+ * {@link ClassSizer.Fields}.
+ * <p>
+ * The generic sizer loops over an array of getters. The JIT cannot treat the elements of that array as constants, so
+ * every field is read through an out-of-line call of a method handle. The generated class holds the getters in
+ * {@code static final} fields instead, which the JIT treats as constants and inlines like plain field reads, as
+ * {@link JdkSizers} does by hand for the most common JDK classes. The getters are the ones of the meter, so the
+ * generated classes read the fields in the same way, through reflection or {@code sun.misc.Unsafe}.
+ * <p>
+ * The classes are defined as hidden classes, which requires Java 15+, so that they can be unloaded together with the
+ * {@link ClassMetadata} holding them. On older JVMs, or with {@code -Djamm.generate-field-pushers=false}, the generic
+ * sizer keeps looping over the getters. Jamm does not depend on a bytecode library, so the class file is written by
+ * hand: its methods only consist of straight-line code, which does not need stack map frames.
+ */
+final class FieldPushers
+{
+    static final boolean ENABLED = Boolean.parseBoolean(System.getProperty("jamm.generate-field-pushers", "true"));
+
+    // keeps pushAll far below the size up to which the JIT compiles methods (HugeMethodLimit), classes with more
+    // fields use the generic loop
+    static final int MAX_FIELDS = 256;
+
+    private static final String GENERATED = "org/github/jamm/FieldPushers$Generated";
+    private static final String GETTER = "Ljava/lang/invoke/MethodHandle;";
+    private static final int MAJOR_VERSION = 52;
+
+    // (Lookup, byte[], boolean, ClassOption[])Lookup, null before Java 15
+    private static final MethodHandle DEFINE_HIDDEN_CLASS;
+    private static final Object NO_CLASS_OPTIONS;
+
+    // the getters of the class being defined, read by its static initializer, which runs on the defining thread
+    private static final ThreadLocal<MethodHandle[]> PENDING = new ThreadLocal<>();
+
+    static
+    {
+        MethodHandle defineHiddenClass = null;
+        Object noClassOptions = null;
+        try
+        {
+            Class<?> classOption = Class.forName("java.lang.invoke.MethodHandles$Lookup$ClassOption");
+            noClassOptions = Array.newInstance(classOption, 0);
+            defineHiddenClass = MethodHandles.lookup()
+                                             .findVirtual(MethodHandles.Lookup.class,
+                                                          "defineHiddenClass",
+                                                          MethodType.methodType(MethodHandles.Lookup.class,
+                                                                                byte[].class,
+                                                                                boolean.class,
+                                                                                noClassOptions.getClass()))
+                                             .asFixedArity();
+        }
+        catch (ReflectiveOperationException e)
+        {
+            // Java 14 or older
+        }
+        DEFINE_HIDDEN_CLASS = ENABLED ? defineHiddenClass : null;
+        NO_CLASS_OPTIONS = noClassOptions;
+    }
+
+    /**
+     * Pushes the values of the reference fields of an instance of a class, as
+     * {@link ClassSizer#pushFields(MethodHandle[], Object, VisitedTracker, Deque)} does for the getters the pusher has
+     * been generated for.
+     */
+    interface Pusher
+    {
+        void pushAll(ClassSizer sizer, Object obj, VisitedTracker tracker, Deque<Object> stack) throws Throwable;
+    }
+
+    private FieldPushers()
+    {
+    }
+
+    /**
+     * @param getters the getters as returned by {@link ClassMetadata#getters()}
+     * @return the pusher generated for the getters or {@code null}, if it cannot be generated
+     */
+    static Pusher generate(MethodHandle[] getters)
+    {
+        if (DEFINE_HIDDEN_CLASS == null || getters.length == 0 || getters.length > MAX_FIELDS)
+            return null;
+
+        PENDING.set(getters);
+        try
+        {
+            MethodHandles.Lookup generated = (MethodHandles.Lookup) DEFINE_HIDDEN_CLASS.invoke(MethodHandles.lookup(),
+                                                                                               classFile(getters.length),
+                                                                                               true,
+                                                                                               NO_CLASS_OPTIONS);
+            return (Pusher) generated.findConstructor(generated.lookupClass(), MethodType.methodType(void.class)).invoke();
+        }
+        catch (Error e)
+        {
+            // the JVM rejected the class file
+            if (e instanceof LinkageError)
+                return null;
+            throw e;
+        }
+        catch (Throwable t)
+        {
+            return null;
+        }
+        finally
+        {
+            PENDING.remove();
+        }
+    }
+
+    /**
+     * Called by the static initializers of the generated classes, not meant to be called otherwise.
+     */
+    static MethodHandle[] pending()
+    {
+        return PENDING.get();
+    }
+
+    /**
+     * @return a class file equivalent to
+     * <pre>
+     * final class Generated implements FieldPushers.Pusher
+     * {
+     *     private static final MethodHandle f0 = FieldPushers.pending()[0];
+     *     ...
+     *
+     *     public void pushAll(ClassSizer sizer, Object obj, VisitedTracker tracker, Deque&lt;Object&gt; stack)
+     *     {
+     *         sizer.push((Object) f0.invokeExact(obj), tracker, stack);
+     *         ...
+     *     }
+     * }
+     * </pre>
+     */
+    private static byte[] classFile(int fields) throws IOException
+    {
+        ConstantPool cp = new ConstantPool();
+        int thisClass = cp.classRef(GENERATED);
+        int object = cp.classRef("java/lang/Object");
+        int pusher = cp.classRef("org/github/jamm/FieldPushers$Pusher");
+        int init = cp.utf8("<init>");
+        int noArgs = cp.utf8("()V");
+        int objectInit = cp.methodRef(object, init, noArgs);
+        int getterType = cp.utf8(GETTER);
+        int pending = cp.methodRef(cp.classRef("org/github/jamm/FieldPushers"), cp.utf8("pending"), cp.utf8("()[" + GETTER));
+        int invokeExact = cp.methodRef(cp.classRef("java/lang/invoke/MethodHandle"),
+                                       cp.utf8("invokeExact"),
+                                       cp.utf8("(Ljava/lang/Object;)Ljava/lang/Object;"));
+        int push = cp.methodRef(cp.classRef("org/github/jamm/ClassSizer"),
+                                cp.utf8("push"),
+                                cp.utf8("(Ljava/lang/Object;Lorg/github/jamm/VisitedTracker;Ljava/util/Deque;)V"));
+        int pushAll = cp.utf8("pushAll");
+        int pushAllType = cp.utf8("(Lorg/github/jamm/ClassSizer;Ljava/lang/Object;Lorg/github/jamm/VisitedTracker;Ljava/util/Deque;)V");
+        int clinit = cp.utf8("<clinit>");
+        int code = cp.utf8("Code");
+        int[] names = new int[fields];
+        int[] fieldRefs = new int[fields];
+        for (int i = 0; i < fields; i++)
+        {
+            names[i] = cp.utf8("f" + i);
+            fieldRefs[i] = cp.fieldRef(thisClass, names[i], getterType);
+        }
+
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream(256 + 32 * fields);
+        DataOutputStream out = new DataOutputStream(bytes);
+        out.writeInt(0xCAFEBABE);
+        out.writeShort(0);
+        out.writeShort(MAJOR_VERSION);
+        cp.writeTo(out);
+        out.writeShort(0x0030);                     // ACC_FINAL | ACC_SUPER
+        out.writeShort(thisClass);
+        out.writeShort(object);
+        out.writeShort(1);
+        out.writeShort(pusher);
+
+        out.writeShort(fields);
+        for (int i = 0; i < fields; i++)
+        {
+            out.writeShort(0x001A);                 // ACC_PRIVATE | ACC_STATIC | ACC_FINAL
+            out.writeShort(names[i]);
+            out.writeShort(getterType);
+            out.writeShort(0);
+        }
+
+        out.writeShort(3);
+
+        ByteArrayOutputStream body = new ByteArrayOutputStream();
+        DataOutputStream instructions = new DataOutputStream(body);
+        instructions.writeByte(0x2A);               // aload_0
+        instructions.writeByte(0xB7);               // invokespecial Object.<init>
+        instructions.writeShort(objectInit);
+        instructions.writeByte(0xB1);               // return
+        writeMethod(out, 0x0001, init, noArgs, code, 1, 1, body.toByteArray());
+
+        body.reset();
+        instructions.writeByte(0xB8);               // invokestatic FieldPushers.pending
+        instructions.writeShort(pending);
+        instructions.writeByte(0x4B);               // astore_0
+        for (int i = 0; i < fields; i++)
+        {
+            instructions.writeByte(0x2A);           // aload_0
+            instructions.writeByte(0x11);           // sipush i
+            instructions.writeShort(i);
+            instructions.writeByte(0x32);           // aaload
+            instructions.writeByte(0xB3);           // putstatic fi
+            instructions.writeShort(fieldRefs[i]);
+        }
+        instructions.writeByte(0xB1);               // return
+        writeMethod(out, 0x0008, clinit, noArgs, code, 2, 1, body.toByteArray());
+
+        body.reset();
+        for (int i = 0; i < fields; i++)
+        {
+            instructions.writeByte(0x2B);           // aload_1 (sizer)
+            instructions.writeByte(0xB2);           // getstatic fi
+            instructions.writeShort(fieldRefs[i]);
+            instructions.writeByte(0x2C);           // aload_2 (obj)
+            instructions.writeByte(0xB6);           // invokevirtual MethodHandle.invokeExact
+            instructions.writeShort(invokeExact);
+            instructions.writeByte(0x2D);           // aload_3 (tracker)
+            instructions.writeByte(0x19);           // aload 4 (stack)
+            instructions.writeByte(4);
+            instructions.writeByte(0xB6);           // invokevirtual ClassSizer.push
+            instructions.writeShort(push);
+        }
+        instructions.writeByte(0xB1);               // return
+        writeMethod(out, 0x0001, pushAll, pushAllType, code, 4, 5, body.toByteArray());
+
+        out.writeShort(0);
+        return bytes.toByteArray();
+    }
+
+    private static void writeMethod(DataOutputStream out,
+                                    int access,
+                                    int name,
+                                    int descriptor,
+                                    int codeAttribute,
+                                    int maxStack,
+                                    int maxLocals,
+                                    byte[] code) throws IOException
+    {
+        out.writeShort(access);
+        out.writeShort(name);
+        out.writeShort(descriptor);
+        out.writeShort(1);
+        out.writeShort(codeAttribute);
+        out.writeInt(12 + code.length);
+        out.writeShort(maxStack);
+        out.writeShort(maxLocals);
+        out.writeInt(code.length);
+        out.write(code);
+        out.writeShort(0);                          // exception table
+        out.writeShort(0);                          // attributes
+    }
+
+    /**
+     * Appends the constants in the order they are requested, without sharing equal ones.
+     */
+    private static final class ConstantPool
+    {
+        private final ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        private final DataOutputStream out = new DataOutputStream(bytes);
+        private int count = 1;
+
+        int utf8(String value) throws IOException
+        {
+            out.writeByte(1);
+            out.writeUTF(value);
+            return count++;
+        }
+
+        int classRef(String internalName) throws IOException
+        {
+            int name = utf8(internalName);
+            out.writeByte(7);
+            out.writeShort(name);
+            return count++;
+        }
+
+        int fieldRef(int owner, int name, int descriptor) throws IOException
+        {
+            return memberRef(9, owner, name, descriptor);
+        }
+
+        int methodRef(int owner, int name, int descriptor) throws IOException
+        {
+            return memberRef(10, owner, name, descriptor);
+        }
+
+        private int memberRef(int tag, int owner, int name, int descriptor) throws IOException
+        {
+            out.writeByte(12);                      // NameAndType
+            out.writeShort(name);
+            out.writeShort(descriptor);
+            int nameAndType = count++;
+            out.writeByte(tag);
+            out.writeShort(owner);
+            out.writeShort(nameAndType);
+            return count++;
+        }
+
+        void writeTo(DataOutputStream classFile) throws IOException
+        {
+            classFile.writeShort(count);
+            bytes.writeTo(classFile);
+        }
+    }
+}
@@ -0,0 +1,19 @@
+package org.github.jamm;
+
+import java.lang.annotation.ElementType;
+import java.lang.annotation.Retention;
+import java.lang.annotation.RetentionPolicy;
+import java.lang.annotation.Target;
+
+/**
+ * Lets the jamm annotation processor ({@code org.github.jamm.processor.GenerateSizerProcessor}) generate a
+ * {@link ChildAccessor} for the annotated class at compile time. {@code MemoryMeter} uses the generated accessor
+ * instead of reflection to follow the reference fields of instances of exactly the annotated class.
+ * <p>
+ * The annotated class must be a top-level or a static nested class and must not be private.
+ */
+@Retention(RetentionPolicy.RUNTIME)
+@Target(ElementType.TYPE)
+public @interface GenerateSizer {
+
+}
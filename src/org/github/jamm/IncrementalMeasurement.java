@@ -0,0 +1,152 @@
+package org.github.jamm;
+
+import java.time.Duration;
+import java.util.ArrayDeque;
+import java.util.Deque;
+
+/**
+ * A deep measurement that is advanced in bounded slices, created by {@link MemoryMeter#measureDeepIncremental(Object)}.
+ * <p>
+ * Each call to one of the {@code step} methods continues the traversal of the object graph where the previous call
+ * stopped, so a huge object graph can be measured without blocking the calling thread for the whole traversal.
+ * The total counted so far can be read between two steps. Note that modifications of the object graph between two
+ * steps may or may not be reflected in the result.
+ * <p>
+ * Instances are not thread-safe.
+ */
+public final class IncrementalMeasurement
+{
+    // number of objects to process between two checks of the elapsed time
+    private static final int TIME_CHECK_INTERVAL = 64;
+
+    private final MemoryMeterBase meter;
+    private VisitedTracker tracker;
+    private Deque<Object> stack;
+    private long total;
+    private long visitedObjects;
+    private boolean cancelled;
+
+    IncrementalMeasurement(MemoryMeterBase meter, Object root)
+    {
+        this.meter = meter;
+        if (!meter.ignoreClass.get(root.getClass()))
+        {
+            this.tracker = meter.visitedSetStrategy.create(0);
+            this.stack = new ArrayDeque<>();
+            tracker.add(root);
+            stack.push(root);
+        }
+    }
+
+    /**
+     * Measures at most {@code maxObjects} more objects.
+     *
+     * @return {@code true} if the measurement is complete or has been cancelled
+     */
+    public boolean step(int maxObjects)
+    {
+        if (maxObjects <= 0)
+            throw new IllegalArgumentException("maxObjects must be positive");
+
+        if (isDone())
+            return true;
+
+        long total = this.total;
+        int n = 0;
+        while (n < maxObjects && !stack.isEmpty())
+        {
+            total += meter.measureAndPushChildren(stack.pop(), tracker, stack);
+            n++;
+        }
+        this.total = total;
+        this.visitedObjects += n;
+
+        return finishIfEmpty();
+    }
+
+    /**
+     * Measures more objects until either the measurement is complete or {@code maxTime} has elapsed.
+     * The elapsed time is only checked every few objects, so this method may take slightly longer than {@code maxTime}.
+     *
+     * @return {@code true} if the measurement is complete or has been cancelled
+     */
+    public boolean step(Duration maxTime)
+    {
+        long deadline = System.nanoTime() + maxTime.toNanos();
+        while (!step(TIME_CHECK_INTERVAL))
+        {
+            if (System.nanoTime() - deadline >= 0)
+                return false;
+        }
+        return true;
+    }
+
+    /**
+     * Measures all remaining objects.
+     *
+     * @return the memory usage of the root object including referenced objects
+     * @throws IllegalStateException if the measurement has been cancelled
+     */
+    public long complete()
+    {
+        while (!isDone())
+            step(Integer.MAX_VALUE);
+        if (cancelled)
+            throw new IllegalStateException("measurement has been cancelled");
+        return total;
+    }
+
+    /**
+     * Cancels this measurement and releases the objects held by it. The total counted so far remains available.
+     */
+    public void cancel()
+    {
+        if (isDone())
+            return;
+        cancelled = true;
+        release();
+    }
+
+    /**
+     * @return {@code true} if all objects have been measured or the measurement has been cancelled
+     */
+    public boolean isDone()
+    {
+        return stack == null;
+    }
+
+    public boolean isCancelled()
+    {
+        return cancelled;
+    }
+
+    /**
+     * @return the memory usage counted so far, which is the final result if the measurement is complete
+     */
+    public long getTotal()
+    {
+        return total;
+    }
+
+    /**
+     * @return the number of objects measured so far
+     */
+    public long getVisitedObjects()
+    {
+        return visitedObjects;
+    }
+
+    private boolean finishIfEmpty()
+    {
+        if (!stack.isEmpty())
+            return false;
+        release();
+        return true;
+    }
+
+    private void release()
+    {
+        tracker = null;
+        stack = null;
+    }
+}
@@ -0,0 +1,230 @@
+package org.github.jamm;
+
+import java.lang.invoke.MethodHandle;
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.MethodType;
+import java.lang.reflect.Field;
+import java.util.ArrayList;
+import java.util.Deque;
+import java.util.List;
+
+/**
+ * Hand-tuned {@link ClassSizer}s for the most common JDK classes.
+ * <p>
+ * The sizers read the well-known reference fields of these classes through {@code static final} method handles,
+ * which the JIT treats as constants and inlines like plain field reads, instead of looping over an array of method
+ * handles. Any other reference field of the class is still followed through the generic method handles.
+ * <p>
+ * A sizer is only used if its method handles could be created and if all its well-known fields are followed by the
+ * meter (i.e. not excluded by {@link Unmetered} or by ignored field types), otherwise the generic sizer is used.
+ * Every sizer is held in its own class, so the reflection happens lazily and only for the classes actually measured.
+ */
+final class JdkSizers
+{
+    private static final MethodType GETTER_TYPE = MethodType.methodType(Object.class, Object.class);
+
+    private JdkSizers()
+    {
+    }
+
+    /**
+     * @param fields the reference fields of {@code type} that the meter follows
+     * @return a specialized sizer or {@code null}, if there is none for {@code type}
+     */
+    static ClassSizer forClass(MemoryMeterBase meter, Class<?> type, List<Field> fields)
+    {
+        switch (type.getName())
+        {
+            case "java.lang.String":
+                return StringSizer.VALUE != null && !hasOtherFields(fields, StringSizer.FIELDS)
+                       ? new StringSizer(meter, type)
+                       : null;
+            case "java.util.ArrayList":
+                return ArrayListSizer.ELEMENT_DATA != null && !hasOtherFields(fields, ArrayListSizer.FIELDS)
+                       ? new ArrayListSizer(meter, type)
+                       : null;
+            case "java.util.HashMap$Node":
+            case "java.util.LinkedHashMap$Entry":
+                List<Field> rest = remove(fields, HashMapNodeSizer.FIELDS);
+                return HashMapNodeSizer.KEY != null && rest != null
+                       ? new HashMapNodeSizer(meter, type, MemoryMeterBase.unreflectGetters(rest))
+                       : null;
+            case "java.util.concurrent.ConcurrentHashMap$Node":
+                return ConcurrentHashMapNodeSizer.KEY != null && !hasOtherFields(fields, ConcurrentHashMapNodeSizer.FIELDS)
+                       ? new ConcurrentHashMapNodeSizer(meter, type)
+                       : null;
+            case "java.nio.HeapByteBuffer":
+            case "java.nio.HeapByteBufferR":
+                // only in the normal ByteBuffer mode, see MemoryMeterBase.classSizer0()
+                rest = remove(fields, HeapByteBufferSizer.FIELDS);
+                return HeapByteBufferSizer.HB != null && rest != null
+                       ? new HeapByteBufferSizer(meter, type, MemoryMeterBase.unreflectGetters(rest))
+                       : null;
+            default:
+                return null;
+        }
+    }
+
+    /**
+     * @return {@code true} if {@code fields} does not consist of exactly the given well-known fields
+     */
+    private static boolean hasOtherFields(List<Field> fields, Field[] wellKnown)
+    {
+        List<Field> rest = remove(fields, wellKnown);
+        return rest == null || !rest.isEmpty();
+    }
+
+    /**
+     * @return the fields without the well-known fields or {@code null}, if any of the well-known fields is missing
+     */
+    private static List<Field> remove(List<Field> fields, Field[] wellKnown)
+    {
+        List<Field> rest = new ArrayList<>(fields);
+        for (Field f : wellKnown)
+            if (!rest.remove(f))
+                return null;
+        return rest;
+    }
+
+    private static Field field(String className, String name)
+    {
+        try
+        {
+            return Class.forName(className).getDeclaredField(name);
+        }
+        catch (Exception e)
+        {
+            return null;
+        }
+    }
+
+    private static MethodHandle getter(Field field)
+    {
+        if (field == null)
+            return null;
+        try
+        {
+            field.setAccessible(true);
+            return MethodHandles.lookup().unreflectGetter(field).asType(GETTER_TYPE);
+        }
+        catch (Exception e)
+        {
+            // also catches java.lang.reflect.InaccessibleObjectException, if the package is not opened
+            return null;
+        }
+    }
+
+    static final class StringSizer extends ClassSizer
+    {
+        static final Field[] FIELDS = { field("java.lang.String", "value") };
+        static final MethodHandle VALUE = getter(FIELDS[0]);
+
+        StringSizer(MemoryMeterBase meter, Class<?> type)
+        {
+            super(meter, type);
+        }
+
+        @Override
+        long measureAndPushChildren(Object obj, VisitedTracker tracker, Deque<Object> stack) throws Throwable
+        {
+            push((Object) VALUE.invokeExact(obj), tracker, stack);
+            return shallowSize(obj);
+        }
+    }
+
+    static final class ArrayListSizer extends ClassSizer
+    {
+        static final Field[] FIELDS = { field("java.util.ArrayList", "elementData") };
+        static final MethodHandle ELEMENT_DATA = getter(FIELDS[0]);
+
+        ArrayListSizer(MemoryMeterBase meter, Class<?> type)
+        {
+            super(meter, type);
+        }
+
+        @Override
+        long measureAndPushChildren(Object obj, VisitedTracker tracker, Deque<Object> stack) throws Throwable
+        {
+            push((Object) ELEMENT_DATA.invokeExact(obj), tracker, stack);
+            return shallowSize(obj);
+        }
+    }
+
+    static final class HashMapNodeSizer extends ClassSizer
+    {
+        static final Field[] FIELDS = { field("java.util.HashMap$Node", "key"),
+                                        field("java.util.HashMap$Node", "value"),
+                                        field("java.util.HashMap$Node", "next") };
+        static final MethodHandle KEY = FIELDS[0] != null && FIELDS[1] != null && FIELDS[2] != null ? getter(FIELDS[0]) : null;
+        static final MethodHandle VALUE = KEY != null ? getter(FIELDS[1]) : null;
+        static final MethodHandle NEXT = KEY != null ? getter(FIELDS[2]) : null;
+
+        // the additional fields of LinkedHashMap.Entry
+        private final MethodHandle[] fields;
+
+        HashMapNodeSizer(MemoryMeterBase meter, Class<?> type, MethodHandle[] fields)
+        {
+            super(meter, type);
+            this.fields = fields;
+        }
+
+        @Override
+        long measureAndPushChildren(Object obj, VisitedTracker tracker, Deque<Object> stack) throws Throwable
+        {
+            push((Object) KEY.invokeExact(obj), tracker, stack);
+            push((Object) VALUE.invokeExact(obj), tracker, stack);
+            push((Object) NEXT.invokeExact(obj), tracker, stack);
+            if (fields.length > 0)
+                pushFields(fields, obj, tracker, stack);
+            return shallowSize(obj);
+        }
+    }
+
+    static final class ConcurrentHashMapNodeSizer extends ClassSizer
+    {
+        static final Field[] FIELDS = { field("java.util.concurrent.ConcurrentHashMap$Node", "key"),
+                                        field("java.util.concurrent.ConcurrentHashMap$Node", "val"),
+                                        field("java.util.concurrent.ConcurrentHashMap$Node", "next") };
+        static final MethodHandle KEY = FIELDS[0] != null && FIELDS[1] != null && FIELDS[2] != null ? getter(FIELDS[0]) : null;
+        static final MethodHandle VAL = KEY != null ? getter(FIELDS[1]) : null;
+        static final MethodHandle NEXT = KEY != null ? getter(FIELDS[2]) : null;
+
+        ConcurrentHashMapNodeSizer(MemoryMeterBase meter, Class<?> type)
+        {
+            super(meter, type);
+        }
+
+        @Override
+        long measureAndPushChildren(Object obj, VisitedTracker tracker, Deque<Object> stack) throws Throwable
+        {
+            push((Object) KEY.invokeExact(obj), tracker, stack);
+            push((Object) VAL.invokeExact(obj), tracker, stack);
+            push((Object) NEXT.invokeExact(obj), tracker, stack);
+            return shallowSize(obj);
+        }
+    }
+
+    static final class HeapByteBufferSizer extends ClassSizer
+    {
+        static final Field[] FIELDS = { field("java.nio.ByteBuffer", "hb") };
+        static final MethodHandle HB = getter(FIELDS[0]);
+
+        // for example the memory segment of newer JDKs, usually null
+        private final MethodHandle[] fields;
+
+        HeapByteBufferSizer(MemoryMeterBase meter, Class<?> type, MethodHandle[] fields)
+        {
+            super(meter, type);
+            this.fields = fields;
+        }
+
+        @Override
+        long measureAndPushChildren(Object obj, VisitedTracker tracker, Deque<Object> stack) throws Throwable
+        {
+            push((Object) HB.invokeExact(obj), tracker, stack);
+            if (fields.length > 0)
+                pushFields(fields, obj, tracker, stack);
+            return shallowSize(obj);
+        }
+    }
+}
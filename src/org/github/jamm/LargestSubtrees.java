@@ -0,0 +1,119 @@
+package org.github.jamm;
+
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * The biggest subtrees of a measured object graph together with the reference paths leading to them, returned by
+ * {@link MemoryMeter#measureDeepWithPaths(Object, int)}.
+ * <p>
+ * A deep measurement visits every object once, following the first reference by which it has been reached. These
+ * first references form a spanning tree of the object graph. The subtree of an object consists of the object itself
+ * and of all objects, that have been reached through it first, so that the subtree sizes of the children of an
+ * object add up to its own subtree size minus its shallow size. Objects that are shared are attributed to a single
+ * subtree only.
+ */
+public final class LargestSubtrees
+{
+    private final long totalBytes;
+    private final long totalInstances;
+    private final List<Entry> entries;
+
+    LargestSubtrees(long totalBytes, long totalInstances, List<Entry> entries)
+    {
+        this.totalBytes = totalBytes;
+        this.totalInstances = totalInstances;
+        this.entries = Collections.unmodifiableList(entries);
+    }
+
+    /**
+     * @return the memory usage of the measured object including referenced objects, same as
+     * {@link MemoryMeter#measureDeep(Object)} would return
+     */
+    public long getTotalBytes()
+    {
+        return totalBytes;
+    }
+
+    /**
+     * @return the number of measured objects
+     */
+    public long getTotalInstances()
+    {
+        return totalInstances;
+    }
+
+    /**
+     * @return the biggest subtrees below the root, the biggest first
+     */
+    public List<Entry> entries()
+    {
+        return entries;
+    }
+
+    @Override
+    public String toString()
+    {
+        StringBuilder sb = new StringBuilder();
+        sb.append(String.format("%15s %15s  %s%n", "#bytes", "#shallow bytes", "path"));
+        for (Entry entry : entries)
+            sb.append(String.format("%15d %15d  %s (%s)%n", entry.bytes, entry.shallowBytes, entry.path, entry.type.getName()));
+        sb.append(String.format("%15d %15s  %s%n", totalBytes, "", "total"));
+        return sb.toString();
+    }
+
+    /**
+     * A single object, the size of its subtree and the path leading to it from the root.
+     */
+    public static final class Entry
+    {
+        private final String path;
+        private final Class<?> type;
+        private final long shallowBytes;
+        private final long bytes;
+
+        Entry(String path, Class<?> type, long shallowBytes, long bytes)
+        {
+            this.path = path;
+            this.type = type;
+            this.shallowBytes = shallowBytes;
+            this.bytes = bytes;
+        }
+
+        /**
+         * @return the references from the root to the object, for example {@code root.partitions.table[42].value},
+         * where the name of a field that cannot be determined is shown as {@code ?}
+         */
+        public String getPath()
+        {
+            return path;
+        }
+
+        public Class<?> getType()
+        {
+            return type;
+        }
+
+        /**
+         * @return the shallow size of the object
+         */
+        public long getShallowBytes()
+        {
+            return shallowBytes;
+        }
+
+        /**
+         * @return the size of the subtree of the object, including the object itself
+         */
+        public long getBytes()
+        {
+            return bytes;
+        }
+
+        @Override
+        public String toString()
+        {
+            return path + "{type=" + type.getName() + ", shallowBytes=" + shallowBytes + ", bytes=" + bytes + '}';
+        }
+    }
+}
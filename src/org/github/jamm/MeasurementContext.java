@@ -0,0 +1,67 @@
+package org.github.jamm;
+
+import java.util.ArrayDeque;
+
+/**
+ * Holds the visited set and the stack used by {@link MemoryMeter#measureDeep(Object, MeasurementContext)}, so that
+ * both can be reused across measurements instead of being allocated and grown for every call.
+ * <p>
+ * A context can only be used by one measurement at a time and is not thread-safe. Either keep one context per
+ * thread or use {@link MemoryMeter.Builder#reuseMeasurementContext(int, int)}.
+ */
+public final class MeasurementContext
+{
+    private static final int DEFAULT_MAX_RETAINED_OBJECTS = 1 << 16;
+
+    private final int maxRetainedObjects;
+
+    VisitedTracker tracker;
+    ArrayDeque<Object> stack;
+    boolean inUse;
+
+    public MeasurementContext()
+    {
+        this(0, DEFAULT_MAX_RETAINED_OBJECTS);
+    }
+
+    /**
+     * @param expectedObjects the number of objects the context can track without having to grow its tables
+     * @param maxRetainedObjects if a measurement visited more objects than this, the context drops its grown tables
+     *                           afterwards, so that a single huge measurement does not pin a lot of memory
+     */
+    public MeasurementContext(int expectedObjects, int maxRetainedObjects)
+    {
+        this(MemoryMeter.VisitedSetStrategy.OPEN_ADDRESSING, expectedObjects, maxRetainedObjects);
+    }
+
+    /**
+     * @param strategy the visited set implementation to use
+     * @param expectedObjects the number of objects the context can track without having to grow its tables
+     * @param maxRetainedObjects if a measurement visited more objects than this, the context drops its grown tables
+     *                           afterwards, so that a single huge measurement does not pin a lot of memory
+     */
+    public MeasurementContext(MemoryMeter.VisitedSetStrategy strategy, int expectedObjects, int maxRetainedObjects)
+    {
+        if (expectedObjects < 0 || maxRetainedObjects <= 0)
+            throw new IllegalArgumentException("expectedObjects must not be negative and maxRetainedObjects must be positive");
+
+        this.maxRetainedObjects = maxRetainedObjects;
+        this.tracker = strategy.create(expectedObjects);
+        this.stack = new ArrayDeque<>();
+    }
+
+    void acquire()
+    {
+        inUse = true;
+    }
+
+    void release()
+    {
+        // the stack is non-empty, if the measurement failed or stopped at its limit
+        stack.clear();
+        // the stack never holds more objects than have been visited, so it has to be dropped as well
+        if (!tracker.clear(maxRetainedObjects))
+            stack = new ArrayDeque<>();
+        inUse = false;
+    }
+}
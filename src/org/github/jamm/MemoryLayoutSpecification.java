@@ -4,6 +4,8 @@ import java.lang.management.ManagementFactory;
 import java.lang.management.MemoryPoolMXBean;
 import java.lang.management.RuntimeMXBean;
 
+import com.sun.management.HotSpotDiagnosticMXBean;
+
 abstract class MemoryLayoutSpecification
 {
     abstract int getArrayHeaderSize();
@@ -29,38 +31,119 @@ abstract class MemoryLayoutSpecification
                "]";
     }
 
+    /**
+     * @return the memory layout of the running JVM, which is detected when this method is called for the first time
+     */
     static MemoryLayoutSpecification getEffectiveMemoryLayoutSpecification() {
+        return Effective.SPEC;
+    }
+
+    // initialization-on-demand holder, so that the detection does not slow down the initialization of MemoryMeter
+    private static final class Effective {
+        static final MemoryLayoutSpecification SPEC = detect();
+    }
+
+    private static MemoryLayoutSpecification detect() {
 
         final String dataModel = System.getProperty("sun.arch.data.model");
         if ("32".equals(dataModel)) {
             // Running with 32-bit data model
-            return new MemoryLayoutSpecification() {
-                public String impl() {
-                    return "32";
-                }
+            return of("32", 12, 8, 8, 4, 4);
+        }
 
-                public int getArrayHeaderSize() {
-                    return 12;
-                }
+        MemoryLayoutSpecification spec = detectHotSpot();
+        if (spec != null)
+            return spec;
+
+        final String vmInfo = System.getProperty("java.vm.info", "");
+        if (System.getProperty("java.vm.name", "").contains("OpenJ9")) {
+            // OpenJ9 does not expose its VM options, but reports compressed references in java.vm.info,
+            // the header sizes are the same approximation as for HotSpot
+            return vmInfo.contains("Compressed References")
+                   ? of("openj9-compressed", 16, 12, getAlignment(), 4, 4)
+                   : of("openj9", 24, 16, getAlignment(), 8, 8);
+        }
 
-                public int getObjectHeaderSize() {
-                    return 8;
-                }
+        return guess();
+    }
 
-                public int getObjectAlignment() {
-                    return 8;
-                }
+    /**
+     * Reads the VM options, that determine the layout, through the {@code HotSpotDiagnosticMXBean}.
+     *
+     * @return the layout or {@code null}, if the {@code HotSpotDiagnosticMXBean} is not available
+     */
+    private static MemoryLayoutSpecification detectHotSpot() {
+        try {
+            HotSpotDiagnosticMXBean bean = ManagementFactory.getPlatformMXBean(HotSpotDiagnosticMXBean.class);
+            if (bean == null)
+                return null;
+
+            boolean compressedOops = booleanOption(bean, "UseCompressedOops");
+            // not available before Java 8, but implied by compressed oops
+            Boolean compressedClassPointers = optionalBooleanOption(bean, "UseCompressedClassPointers");
+            // not available before Java 24
+            Boolean compactHeaders = optionalBooleanOption(bean, "UseCompactObjectHeaders");
+            int alignment = Integer.parseInt(bean.getVMOption("ObjectAlignmentInBytes").getValue());
+
+            return forHotSpot(compressedOops,
+                              compressedClassPointers != null ? compressedClassPointers : compressedOops,
+                              compactHeaders != null && compactHeaders,
+                              alignment);
+        } catch (RuntimeException | LinkageError e) {
+            // not a HotSpot VM or the option is not supported
+            return null;
+        }
+    }
 
-                public int getReferenceSize() {
-                    return 4;
-                }
+    /**
+     * Models the layout of a 64-bit HotSpot VM with the given options.
+     */
+    static MemoryLayoutSpecification forHotSpot(boolean compressedOops,
+                                                boolean compressedClassPointers,
+                                                boolean compactHeaders,
+                                                int alignment) {
+        int referenceSize = compressedOops ? 4 : 8;
+        // 8 byte mark word, followed by the class pointer unless compact headers merge it into the mark word
+        int objectHeaderSize = compactHeaders ? 8 : compressedClassPointers ? 12 : 16;
+        // the array length follows the object header, the elements start at the next multiple of 8, unless the
+        // array length fits into the padding of a 12 byte header or follows a compact header
+        int arrayHeaderSize = compactHeaders ? 12 : objectHeaderSize == 12 ? 16 : 24;
+        String impl = "hotspot" +
+                      (compressedOops ? "-compressed-oops" : "") +
+                      (compactHeaders ? "-compact-headers" : compressedClassPointers ? "-compressed-class-pointers" : "");
+        return of(impl, arrayHeaderSize, objectHeaderSize, alignment, referenceSize, compressedOops ? 4 : 8);
+    }
 
-                public int getSuperclassFieldPadding() {
-                    return 4;
-                }
-            };
+    /**
+     * @return the value of the HotSpot VM option or {@code null}, if the VM does not know the option or does not
+     * expose its options
+     */
+    static String getVMOption(String name) {
+        try {
+            HotSpotDiagnosticMXBean bean = ManagementFactory.getPlatformMXBean(HotSpotDiagnosticMXBean.class);
+            return bean != null ? bean.getVMOption(name).getValue() : null;
+        } catch (RuntimeException | LinkageError e) {
+            return null;
+        }
+    }
+
+    private static boolean booleanOption(HotSpotDiagnosticMXBean bean, String name) {
+        return Boolean.parseBoolean(bean.getVMOption(name).getValue());
+    }
+
+    private static Boolean optionalBooleanOption(HotSpotDiagnosticMXBean bean, String name) {
+        try {
+            return booleanOption(bean, name);
+        } catch (IllegalArgumentException e) {
+            // the VM does not know the option
+            return null;
         }
+    }
 
+    /**
+     * The original detection, for JVMs that neither expose their VM options nor are known otherwise.
+     */
+    private static MemoryLayoutSpecification guess() {
         boolean modernJvm = true;
 
         final String strSpecVersion = System.getProperty("java.specification.version");
@@ -92,60 +175,45 @@ abstract class MemoryLayoutSpecification
             if (maxMemory < 30L * 1024 * 1024 * 1024) {
                 // HotSpot 17.0 and above use compressed OOPs below 30GB of RAM
                 // total for all memory pools (yes, including code cache).
-                return new MemoryLayoutSpecification() {
-                    public String impl() {
-                        return "modern";
-                    }
-
-                    public int getArrayHeaderSize() {
-                        return 16;
-                    }
-
-                    public int getObjectHeaderSize() {
-                        return 12;
-                    }
-
-                    public int getObjectAlignment() {
-                        return alignment;
-                    }
-
-                    public int getReferenceSize() {
-                        return 4;
-                    }
-
-                    public int getSuperclassFieldPadding() {
-                        return 4;
-                    }
-                };
+                return of("modern", 16, 12, alignment, 4, 4);
             }
         }
 
         /* Worst case we over count. */
 
         // In other cases, it's a 64-bit uncompressed OOPs object model
+        return of("64", 24, 16, alignment, 8, 8);
+    }
+
+    private static MemoryLayoutSpecification of(final String impl,
+                                                final int arrayHeaderSize,
+                                                final int objectHeaderSize,
+                                                final int objectAlignment,
+                                                final int referenceSize,
+                                                final int superclassFieldPadding) {
         return new MemoryLayoutSpecification() {
             public String impl() {
-                return "64";
+                return impl;
             }
 
             public int getArrayHeaderSize() {
-                return 24;
+                return arrayHeaderSize;
             }
 
             public int getObjectHeaderSize() {
-                return 16;
+                return objectHeaderSize;
             }
 
             public int getObjectAlignment() {
-                return alignment;
+                return objectAlignment;
             }
 
             public int getReferenceSize() {
-                return 8;
+                return referenceSize;
             }
 
             public int getSuperclassFieldPadding() {
-                return 8;
+                return superclassFieldPadding;
             }
         };
     }
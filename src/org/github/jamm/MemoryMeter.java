@@ -1,17 +1,54 @@
 package org.github.jamm;
 
 import java.lang.instrument.Instrumentation;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.List;
+import java.util.Objects;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ForkJoinPool;
 import java.util.function.Predicate;
 
+import javax.management.ObjectName;
+
 public abstract class MemoryMeter {
-    static final MemoryLayoutSpecification SPEC = MemoryLayoutSpecification.getEffectiveMemoryLayoutSpecification();
 
+    // built from the agent options, or on first use of defaultMeter()
+    private static volatile MemoryMeter defaultMeter;
+
+    /**
+     * Entry point of the agent, see {@link AgentOptions} for the supported options.
+     */
     public static void premain(String options, Instrumentation inst) {
         MemoryMeterInstrumentation.instrumentation = inst;
+        AgentOptions.parse(options).start(inst);
     }
 
     public static void agentmain(String options, Instrumentation inst) {
     	MemoryMeterInstrumentation.instrumentation = inst;
+        AgentOptions.parse(options).start(inst);
+    }
+
+    /**
+     * @return the meter shared by the whole process, which is configured by the options of the agent, if Jamm has been
+     * loaded as agent, or built with the default configuration on first use otherwise
+     */
+    public static MemoryMeter defaultMeter() {
+        MemoryMeter meter = defaultMeter;
+        if (meter == null) {
+            synchronized (MemoryMeter.class) {
+                meter = defaultMeter;
+                if (meter == null)
+                    defaultMeter = meter = builder().build();
+            }
+        }
+        return meter;
+    }
+
+    static synchronized void setDefaultMeter(MemoryMeter meter) {
+        defaultMeter = meter;
     }
 
     public enum Guess {
@@ -140,19 +177,82 @@ public abstract class MemoryMeter {
         abstract MemoryMeter createMeter(Builder builder);
     }
 
+    /**
+     * Implementations of the set that tracks the objects already visited by a deep measurement.
+     */
+    public enum VisitedSetStrategy {
+        /**
+         * A single open-addressing table that is kept at most 1/3 full. This is the fastest implementation
+         * for small and medium sized object graphs and the default.
+         */
+        OPEN_ADDRESSING {
+            @Override
+            VisitedTracker create(int expectedObjects)
+            {
+                return new MemoryMeterBase.VisitedSet(expectedObjects);
+            }
+        },
+        /**
+         * A fixed number of independently growing, lazily allocated open-addressing segments that are kept up to 2/3
+         * full. Needs about half the heap of {@link #OPEN_ADDRESSING} per visited object, only resizes one segment at
+         * a time and can track well beyond a billion objects. Use it for huge object graphs.
+         */
+        SEGMENTED {
+            @Override
+            VisitedTracker create(int expectedObjects)
+            {
+                return new SegmentedVisitedSet(expectedObjects);
+            }
+        };
+
+        abstract VisitedTracker create(int expectedObjects);
+    }
+
+    /**
+     * How {@link #measureDeep(Object)} and its variants read the reference fields of the visited objects.
+     */
+    public enum FieldAccess {
+        /**
+         * Reads fields through method handles obtained via reflection. The fields must be made accessible, which
+         * requires the containing packages to be opened to jamm on Java 9+ for classes of named modules, including the
+         * JDK's own classes. This is the default.
+         */
+        METHOD_HANDLES,
+        /**
+         * Reads fields through {@code sun.misc.Unsafe}, using a table of field offsets that is computed once per class.
+         * Does not require any field to be made accessible, so that classes of named modules can be measured without
+         * opening them. Classes for which {@code sun.misc.Unsafe} cannot provide field offsets, like records and hidden
+         * classes, still use method handles.
+         */
+        UNSAFE
+    }
+
     final Guess guess;
+    final VisitedSetStrategy visitedSetStrategy;
+    final FieldAccess fieldAccess;
     final byte byteBufferMode;
     final boolean ignoreOuterClassReference;
     final boolean ignoreKnownSingletons;
     final boolean ignoreNonStrongReferences;
     final boolean ignoreDontMeasure;
-
+    final int contextExpectedObjects;
+    final int contextMaxRetainedObjects;
+    // null, unless the meter has been built with Builder.withStatistics()
+    final MemoryMeterStatistics statistics;
+    // null, if the asynchronous measurements use VirtualThreads.defaultExecutor()
+    final Executor asyncExecutor;
+    final List<String> ignoredClasses;
+
+    // the classes ignored because of the configuration shared with other meters, see ClassMetadata
+    final Predicate<Class<?>> metadataIgnorePredicate;
     final Predicate<Class<?>> ignoreClassPredicate;
     final ClassValue<Boolean> ignoreClass = new ClassValue<Boolean>()
     {
         @Override
         protected Boolean computeValue(Class<?> type)
         {
+            if (statistics != null)
+                statistics.ignoreClassComputed();
             return ignoreClassPredicate.test(type);
         }
     };
@@ -163,11 +263,18 @@ public abstract class MemoryMeter {
 
     public Builder unbuild() {
         return new Builder(guess,
+                           visitedSetStrategy,
+                           fieldAccess,
                            byteBufferMode,
                            ignoreOuterClassReference,
                            ignoreKnownSingletons,
                            ignoreNonStrongReferences,
-                           ignoreDontMeasure
+                           ignoreDontMeasure,
+                           contextExpectedObjects,
+                           contextMaxRetainedObjects,
+                           statistics != null,
+                           asyncExecutor,
+                           ignoredClasses
         );
     }
 
@@ -178,38 +285,60 @@ public abstract class MemoryMeter {
 
     public static class Builder {
         private Guess guess = Guess.BEST;
+        private VisitedSetStrategy visitedSetStrategy = VisitedSetStrategy.OPEN_ADDRESSING;
+        private FieldAccess fieldAccess = FieldAccess.METHOD_HANDLES;
         private byte byteBufferMode = BB_MODE_NORMAL;
         private boolean ignoreOuterClassReference;
         private boolean ignoreKnownSingletons;
         private boolean ignoreNonStrongReferences;
         private boolean ignoreDontMeasure;
+        private int contextExpectedObjects;
+        private int contextMaxRetainedObjects;
+        private boolean statistics;
+        private Executor asyncExecutor;
+        private List<String> ignoredClasses = Collections.emptyList();
 
         private Builder() {
 
         }
 
         private Builder(Guess guess,
+                        VisitedSetStrategy visitedSetStrategy,
+                        FieldAccess fieldAccess,
                         byte byteBufferMode,
                         boolean ignoreOuterClassReference,
                         boolean ignoreKnownSingletons,
                         boolean ignoreNonStrongReferences,
-                        boolean ignoreDontMeasure) {
+                        boolean ignoreDontMeasure,
+                        int contextExpectedObjects,
+                        int contextMaxRetainedObjects,
+                        boolean statistics,
+                        Executor asyncExecutor,
+                        List<String> ignoredClasses) {
             this.guess = guess;
+            this.visitedSetStrategy = visitedSetStrategy;
+            this.fieldAccess = fieldAccess;
             this.byteBufferMode = byteBufferMode;
             this.ignoreOuterClassReference = ignoreOuterClassReference;
             this.ignoreKnownSingletons = ignoreKnownSingletons;
             this.ignoreNonStrongReferences = ignoreNonStrongReferences;
             this.ignoreDontMeasure = ignoreDontMeasure;
+            this.contextExpectedObjects = contextExpectedObjects;
+            this.contextMaxRetainedObjects = contextMaxRetainedObjects;
+            this.statistics = statistics;
+            this.asyncExecutor = asyncExecutor;
+            this.ignoredClasses = ignoredClasses;
         }
 
         public MemoryMeter build() {
+            if (fieldAccess == FieldAccess.UNSAFE && !MemoryMeterUnsafe.hasUnsafe())
+                throw new IllegalStateException("FieldAccess.UNSAFE requires sun.misc.Unsafe, which could not be obtained");
             return guess.createMeter(this);
         }
 
         /**
-         * Only counts the bytes remaining in a {@link java.nio.ByteBuffer}
+         * Only counts the bytes remaining in a {@link java.nio.Buffer} of any type
          * in measureDeep, rather than the full size of the backing array.
-         * TODO: handle other types of Buffers
          */
         public Builder omitSharedBufferOverhead() {
             byteBufferMode = BB_MODE_OMIT_SHARED;
@@ -247,6 +376,58 @@ public abstract class MemoryMeter {
             return this;
         }
 
+        /**
+         * Let {@link MemoryMeter#measureDeep(Object)} reuse a thread-local {@link MeasurementContext} instead of
+         * allocating a new visited set and stack for every call.
+         *
+         * @param expectedObjects the number of objects the context can track without having to grow its tables
+         * @param maxRetainedObjects the context drops its tables after a measurement that visited more objects than this
+         * @see MeasurementContext#MeasurementContext(int, int)
+         */
+        public Builder reuseMeasurementContext(int expectedObjects, int maxRetainedObjects) {
+            if (expectedObjects < 0 || maxRetainedObjects <= 0)
+                throw new IllegalArgumentException("expectedObjects must not be negative and maxRetainedObjects must be positive");
+            this.contextExpectedObjects = expectedObjects;
+            this.contextMaxRetainedObjects = maxRetainedObjects;
+            return this;
+        }
+
+        /**
+         * Let the meter collect statistics about the cost of its deep measurements, which are available through
+         * {@link MemoryMeter#statistics()} and can be exposed via JMX using {@link MemoryMeter#registerMXBean(String)}.
+         * Calls of {@link MemoryMeter#measureDeep(Object, long)} that stop at their limit are not recorded.
+         */
+        public Builder withStatistics() {
+            this.statistics = true;
+            return this;
+        }
+
+        /**
+         * Sets the executor running the measurements of {@link MemoryMeter#measureDeepAsync(Object)} and
+         * {@link MemoryMeter#measureAllAsync(Collection)}. By default, every measurement runs on a new virtual thread
+         * on Java 21+ and on the common {@link java.util.concurrent.ForkJoinPool} on older versions.
+         */
+        public Builder withAsyncExecutor(Executor asyncExecutor) {
+            this.asyncExecutor = Objects.requireNonNull(asyncExecutor);
+            return this;
+        }
+
+        /**
+         * See {@link VisitedSetStrategy} for the available implementations.
+         */
+        public Builder withVisitedSetStrategy(VisitedSetStrategy visitedSetStrategy) {
+            this.visitedSetStrategy = Objects.requireNonNull(visitedSetStrategy);
+            return this;
+        }
+
+        /**
+         * See {@link FieldAccess} for the available implementations.
+         */
+        public Builder withFieldAccess(FieldAccess fieldAccess) {
+            this.fieldAccess = Objects.requireNonNull(fieldAccess);
+            return this;
+        }
+
         /**
          * See {@link Guess} for possible guess-modes.
          */
@@ -266,6 +447,20 @@ public abstract class MemoryMeter {
             return this;
         }
 
+        /**
+         * Ignores the instances of the classes with the given names. A name ending in {@code .*} ignores all classes
+         * of a package and of its sub-packages, for example {@code com.example.cache.*}. Unlike {@link Unmetered},
+         * the subclasses and implementations of the named classes are not ignored.
+         */
+        public Builder ignoreClasses(Collection<String> classNames) {
+            List<String> names = new ArrayList<>(classNames);
+            for (String name : names)
+                if (name.isEmpty() || name.equals(".*"))
+                    throw new IllegalArgumentException("Invalid class name '" + name + "'");
+            this.ignoredClasses = Collections.unmodifiableList(names);
+            return this;
+        }
+
         /**
          * ignores space occupied by known singletons such as {@link Class} objects and {@code enum}s
          */
@@ -292,20 +487,40 @@ public abstract class MemoryMeter {
 
     MemoryMeter(Builder builder) {
         this.guess = builder.guess;
+        this.visitedSetStrategy = builder.visitedSetStrategy;
+        this.fieldAccess = builder.fieldAccess;
         this.byteBufferMode = builder.byteBufferMode;
         this.ignoreOuterClassReference = builder.ignoreOuterClassReference;
         this.ignoreKnownSingletons = builder.ignoreKnownSingletons;
         this.ignoreNonStrongReferences = builder.ignoreNonStrongReferences;
         this.ignoreDontMeasure = builder.ignoreDontMeasure;
+        this.contextExpectedObjects = builder.contextExpectedObjects;
+        this.contextMaxRetainedObjects = builder.contextMaxRetainedObjects;
+        this.statistics = builder.statistics ? new MemoryMeterStatistics() : null;
+        this.asyncExecutor = builder.asyncExecutor;
+        this.ignoredClasses = builder.ignoredClasses;
 
         Predicate<Class<?>> pred = c -> false;
         if (ignoreKnownSingletons)
             pred = pred.or(MemoryMeter::checkKnownSingleton);
         if (!ignoreDontMeasure)
             pred = pred.or(MemoryMeter::isAnnotationPresent);
+        this.metadataIgnorePredicate = pred;
+        if (!ignoredClasses.isEmpty())
+            pred = pred.or(c -> isIgnoredByName(c.getName(), ignoredClasses));
         this.ignoreClassPredicate = pred;
     }
 
+    static boolean isIgnoredByName(String className, List<String> ignoredClasses) {
+        for (String name : ignoredClasses) {
+            if (name.endsWith(".*")
+                ? className.startsWith(name.substring(0, name.length() - 1))
+                : className.equals(name))
+                return true;
+        }
+        return false;
+    }
+
     private static boolean checkKnownSingleton(Class<?> cls)
     {
         return cls == Class.class || cls.isEnum() || Thread.class.isAssignableFrom(cls);
@@ -332,16 +547,48 @@ public abstract class MemoryMeter {
         return guess;
     }
 
+    /**
+     * @return the statistics about the cost of the deep measurements of this meter
+     * @throws IllegalStateException if the meter has not been built with {@link Builder#withStatistics()}
+     */
+    public MemoryMeterMXBean statistics() {
+        if (statistics == null)
+            throw new IllegalStateException("Statistics are not enabled; build the meter with Builder.withStatistics()");
+        return statistics;
+    }
+
+    /**
+     * Registers the {@link #statistics()} of this meter with the platform MBean server under the name
+     * {@code org.github.jamm:type=MemoryMeter,name="<name>"}. Unregister the returned name from the platform MBean
+     * server, once the meter is no longer used.
+     *
+     * @return the name, under which the statistics have been registered
+     * @throws IllegalStateException if the meter has not been built with {@link Builder#withStatistics()} or if the
+     * registration failed, for example because the name is already in use
+     */
+    public ObjectName registerMXBean(String name) {
+        Objects.requireNonNull(name);
+        if (statistics == null)
+            throw new IllegalStateException("Statistics are not enabled; build the meter with Builder.withStatistics()");
+        return statistics.register(name);
+    }
+
     public String toString()
     {
         return getClass().getName() + "{" +
                "byteBufferMode=" + byteBufferMode +
                ", guess=" + guess +
+               ", visitedSetStrategy=" + visitedSetStrategy +
+               ", fieldAccess=" + fieldAccess +
                ", ignoreOuterClassReference=" + ignoreOuterClassReference +
                ", ignoreKnownSingletons=" + ignoreKnownSingletons +
                ", ignoreNonStrongReferences=" + ignoreNonStrongReferences +
                ", ignoreDontMeasure=" + ignoreDontMeasure +
-               ", spec=" + SPEC +
+               ", contextExpectedObjects=" + contextExpectedObjects +
+               ", contextMaxRetainedObjects=" + contextMaxRetainedObjects +
+               ", ignoredClasses=" + ignoredClasses +
+               ", statistics=" + (statistics != null) +
+               ", spec=" + spec() +
                '}';
     }
 
@@ -387,9 +634,9 @@ public abstract class MemoryMeter {
 
     @SuppressWarnings("unused")
     public long sizeOfArray(int length, Class<?> type) {
-        long sz = SPEC.getArrayHeaderSize();
+        long sz = spec().getArrayHeaderSize();
         sz += (long) sizeOfField(type) * (long) length;
-        return roundTo(sz, SPEC.getObjectAlignment());
+        return roundTo(sz, spec().getObjectAlignment());
     }
 
     /**
@@ -404,6 +651,159 @@ public abstract class MemoryMeter {
      */
     public abstract long measureDeep(Object object);
 
+    /**
+     * Same as {@link #measureDeep(Object)}, but stops traversing the object graph as soon as the memory usage
+     * counted so far exceeds {@code limit}. Use this method to cheaply check whether an object graph is bigger
+     * than a given number of bytes.
+     *
+     * @return the memory usage of @param object including referenced objects, if it is not bigger than
+     * {@code limit}, otherwise some value greater than {@code limit}
+     * @throws NullPointerException if object is null
+     */
+    public abstract long measureDeep(Object object, long limit);
+
+    /**
+     * Same as {@link #measureDeep(Object)}, but uses the visited set and stack of the given {@link MeasurementContext}
+     * instead of allocating new ones. This allows steady-state deep measurements that do not allocate at all.
+     *
+     * @return the memory usage of @param object including referenced objects
+     * @throws NullPointerException if object or context is null
+     * @throws IllegalStateException if the context is currently used by another measurement
+     */
+    public abstract long measureDeep(Object object, MeasurementContext context);
+
+    /**
+     * Measures a batch of roots, for example all entries of a cache, with a single visited set, so that objects
+     * shared by several roots are counted once and the set up cost is paid once for the whole batch. The roots are
+     * consumed lazily, one after the other, so a stream can be measured without collecting it first by passing
+     * {@code stream::iterator}. See {@link BatchSizes} for how the objects are attributed to the roots.
+     *
+     * @throws NullPointerException if roots is null
+     */
+    public abstract BatchSizes measureDeepAll(Iterable<?> roots);
+
+    /**
+     * Same as {@link #measureDeep(Object)}, but runs the measurement asynchronously on the executor set with
+     * {@link Builder#withAsyncExecutor(Executor)}, by default on a new virtual thread on Java 21+ and on the common
+     * {@link ForkJoinPool} on older versions. The caches of the meter are safe to use from many threads at once and
+     * do not lock once a class has been seen, so that the throughput scales with the number of cores.
+     *
+     * @return a future completed with the memory usage of @param object including referenced objects, or
+     * exceptionally, if the measurement failed
+     * @throws NullPointerException if object is null
+     */
+    public abstract CompletableFuture<Long> measureDeepAsync(Object object);
+
+    /**
+     * Measures every root independently and concurrently, like {@link #measureDeepAsync(Object)} does.
+     *
+     * @return a future completed with the memory usage of every root including referenced objects, in the order of
+     * the collection, or exceptionally, if any measurement failed
+     * @throws NullPointerException if roots or any root is null
+     */
+    public abstract CompletableFuture<long[]> measureAllAsync(Collection<?> roots);
+
+    /**
+     * Estimates the memory usage of {@code object} including referenced objects. Works like
+     * {@link #measureDeep(Object)}, but only measures a sample of the elements of large arrays of references
+     * (for example the tables of big {@link java.util.HashMap}s or the arrays of big {@link java.util.ArrayList}s)
+     * and extrapolates the result.
+     *
+     * @param sampleRate the fraction of the elements to measure, between 0 (exclusive) and 1, at least 32 elements
+     *                   per array are measured
+     * @param minArrayLength arrays with fewer elements are always measured completely
+     * @return the estimated memory usage including the 95% confidence interval of the estimate
+     * @throws NullPointerException if object is null
+     */
+    public abstract SizeEstimate measureDeepSampled(Object object, double sampleRate, int minArrayLength);
+
+    /**
+     * Same as {@link #measureDeepSampled(Object, double, int)}, but only samples arrays with at least 10000 elements.
+     */
+    public SizeEstimate measureDeepSampled(Object object, double sampleRate) {
+        return measureDeepSampled(object, sampleRate, 10000);
+    }
+
+    /**
+     * Same as {@link #measureDeep(Object)}, but additionally collects the number of instances and the sum of the
+     * shallow sizes per class of all measured objects.
+     *
+     * @throws NullPointerException if object is null
+     */
+    public abstract ClassHistogram measureDeepHistogram(Object object);
+
+    /**
+     * Same as {@link #measureDeep(Object)}, but additionally sums up the native memory behind the direct and mapped
+     * {@link java.nio.Buffer}s of all types in the object graph, once per allocation, see {@link DeepMemoryUsage}.
+     * <p>
+     * Deep measurements do not follow the cleaner of a direct buffer, which links it with all other direct buffers
+     * of the JVM, nor the file descriptor of a mapped buffer, which is shared with its file channel.
+     *
+     * @throws NullPointerException if object is null
+     */
+    public abstract DeepMemoryUsage measureDeepWithOffHeap(Object object);
+
+    /**
+     * Same as {@link #measureDeep(Object)}, but additionally determines the {@code topN} biggest subtrees of the
+     * object graph and the reference paths leading to them from {@code object}, see {@link LargestSubtrees}. Useful
+     * to find out why an object graph is bigger than expected.
+     *
+     * @throws NullPointerException if object is null
+     * @throws IllegalArgumentException if topN is negative
+     */
+    public abstract LargestSubtrees measureDeepWithPaths(Object object, int topN);
+
+    /**
+     * Measures the given roots together and determines, for each of them, how much memory it retains alone and how
+     * much it shares with the other roots, see {@link RetainedSizes}. Use this to find out how much memory would be
+     * freed by dropping one of several caches or tables, that may refer to the same objects.
+     *
+     * @throws NullPointerException if roots or any root is null
+     * @throws IllegalArgumentException if a root is contained more than once
+     */
+    public abstract RetainedSizes measureRetained(List<?> roots);
+
+    /**
+     * Creates a deep measurement of {@code object} that the caller advances in bounded slices using the
+     * {@code step} methods of the returned {@link IncrementalMeasurement}. No objects are measured by this method.
+     *
+     * @throws NullPointerException if object is null
+     */
+    public abstract IncrementalMeasurement measureDeepIncremental(Object object);
+
+    /**
+     * Same as {@link #measureDeep(Object)}, but splits the traversal of the object graph into work-stealing tasks
+     * that are executed by the given {@link ForkJoinPool}. This is only worth it for very large object graphs.
+     *
+     * @return the memory usage of @param object including referenced objects
+     * @throws NullPointerException if object or pool is null
+     */
+    public abstract long measureDeepParallel(Object object, ForkJoinPool pool);
+
+    /**
+     * Computes the metadata needed to measure the instances of the given classes ahead of their first measurement,
+     * on {@code parallelism} new daemon threads, see {@link WarmUp}. Call it during the start of the application, so
+     * that the first measurements do not pay for the reflection.
+     *
+     * @return the warm up, which can be used to follow its progress and to wait for its completion
+     * @throws IllegalArgumentException if parallelism is not positive
+     */
+    public abstract WarmUp warmUp(Collection<Class<?>> classes, int parallelism);
+
+    /**
+     * Same as {@link #warmUp(Collection, int)}, but loads the classes by their binary names from {@code loader}
+     * first, without initializing them. Classes that cannot be loaded are reported as failures of the warm up.
+     */
+    public abstract WarmUp warmUp(Collection<String> classNames, ClassLoader loader, int parallelism);
+
+    /**
+     * Same as {@link #warmUp(Collection, int)} for all classes loaded so far, that belong to the given packages or to
+     * their sub-packages.
+     *
+     * @throws IllegalStateException if Jamm has not been loaded as agent, which is needed to find the loaded classes
+     */
+    public abstract WarmUp warmUpPackages(Collection<String> packageNames, int parallelism);
+
     private static final Class<?> clsJLRModule;
     private static final Class<?> clsJLMModuleDescriptor;
     private static final Class<?> clsJLRAccessibleObject;
@@ -438,12 +838,19 @@ public abstract class MemoryMeter {
                || cls == clsJIRUnsafeFieldAccessorImpl || cls == clsJIRDelegatingMethodAccessorImpl;
     }
 
+    /**
+     * @return the memory layout of the running JVM, which is detected on first use
+     */
+    static MemoryLayoutSpecification spec() {
+        return MemoryLayoutSpecification.getEffectiveMemoryLayoutSpecification();
+    }
+
     /**
      * @return The memory size of a field of a class of the provided type; for Objects this is the size of the reference only
      */
     static int sizeOfField(Class<?> type) {
         if (!type.isPrimitive())
-            return SPEC.getReferenceSize();
+            return spec().getReferenceSize();
         if (type == boolean.class || type == byte.class)
             return 1;
         else if (type == char.class || type == short.class)
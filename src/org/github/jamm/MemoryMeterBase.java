@@ -2,32 +2,81 @@ package org.github.jamm;
 
 import java.lang.invoke.MethodHandle;
 import java.lang.invoke.MethodHandles;
+import java.lang.invoke.MethodType;
 import java.lang.ref.Reference;
 import java.lang.reflect.Field;
 import java.lang.reflect.Modifier;
+import java.nio.Buffer;
 import java.nio.ByteBuffer;
 import java.util.ArrayDeque;
 import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
 import java.util.Deque;
 import java.util.List;
 import java.util.Objects;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveTask;
+
+import sun.misc.Unsafe;
 
 abstract class MemoryMeterBase extends MemoryMeter
 {
     private static final String outerClassReference = "this\\$[0-9]+";
 
-    private final ClassValue<MethodHandle[]> declaredClassFieldsCache = new ClassValue<MethodHandle[]>()
+    private static final MethodType GETTER_TYPE = MethodType.methodType(Object.class, Object.class);
+
+    // (Object, long)Object, bound to the Unsafe instance, null if sun.misc.Unsafe is not available
+    private static final MethodHandle UNSAFE_GET_OBJECT;
+
+    static
+    {
+        MethodHandle getObject = null;
+        if (MemoryMeterUnsafe.unsafe != null)
+        {
+            try
+            {
+                getObject = MethodHandles.lookup()
+                                         .findVirtual(Unsafe.class, "getObject", MethodType.methodType(Object.class, Object.class, long.class))
+                                         .bindTo(MemoryMeterUnsafe.unsafe);
+            }
+            catch (ReflectiveOperationException e)
+            {
+                // byte buffers and references fall back to method handles, see getters()
+            }
+        }
+        UNSAFE_GET_OBJECT = getObject;
+    }
+
+    final ClassValue<ClassSizer> classSizers = new ClassValue<ClassSizer>()
     {
         @Override
-        protected MethodHandle[] computeValue(Class<?> type)
+        protected ClassSizer computeValue(Class<?> type)
         {
-            return declaredClassFields0(type);
+            if (statistics != null)
+                statistics.classSizerComputed();
+            return classSizer0(type);
         }
     };
 
+    // only set, if the meter has been built with Builder.reuseMeasurementContext()
+    private final ThreadLocal<MeasurementContext> threadLocalContext;
+
+    // the key of the configuration of this meter in the shared ClassMetadata
+    final int metadataConfiguration;
+
     MemoryMeterBase(Builder builder)
     {
         super(builder);
+        this.metadataConfiguration = ClassMetadata.configuration(fieldAccess == FieldAccess.UNSAFE,
+                                                                 ignoreOuterClassReference,
+                                                                 ignoreKnownSingletons,
+                                                                 ignoreDontMeasure);
+        this.threadLocalContext = contextMaxRetainedObjects > 0
+                                  ? ThreadLocal.withInitial(() -> new MeasurementContext(visitedSetStrategy, contextExpectedObjects, contextMaxRetainedObjects))
+                                  : null;
     }
 
     @Override
@@ -51,99 +100,537 @@ abstract class MemoryMeterBase extends MemoryMeter
      */
     @Override
     public final long measureDeep(Object object)
+    {
+        return measureDeep(object, Long.MAX_VALUE);
+    }
+
+    @Override
+    public final long measureDeep(Object object, long limit)
+    {
+        Objects.requireNonNull(object);
+
+        if (ignoreClass.get(object.getClass()))
+            return 0;
+
+        MeasurementContext context = threadLocalContext != null ? threadLocalContext.get() : null;
+        // the thread-local context might already be in use, if this method is called while another thread-local
+        // measurement is running on the same thread
+        if (context == null || context.inUse)
+            return measureDeep(object, visitedSetStrategy.create(0), new ArrayDeque<>(), limit);
+
+        context.acquire();
+        try
+        {
+            return measureDeep(object, context.tracker, context.stack, limit);
+        }
+        finally
+        {
+            context.release();
+        }
+    }
+
+    @Override
+    public final long measureDeep(Object object, MeasurementContext context)
     {
         Objects.requireNonNull(object);
+        Objects.requireNonNull(context);
 
         if (ignoreClass.get(object.getClass()))
             return 0;
 
-        VisitedSet tracker = new VisitedSet();
+        if (context.inUse)
+            throw new IllegalStateException("MeasurementContext is already in use");
+
+        context.acquire();
+        try
+        {
+            return measureDeep(object, context.tracker, context.stack, Long.MAX_VALUE);
+        }
+        finally
+        {
+            context.release();
+        }
+    }
+
+    private long measureDeep(Object object, VisitedTracker tracker, Deque<Object> stack, long limit)
+    {
+        long start = statistics != null ? System.nanoTime() : 0L;
+        long resizes = statistics != null ? tracker.resizes() : 0L;
+
         tracker.add(object);
 
         // track stack manually so we can handle deeper hierarchies than recursion
+        stack.push(object);
+
+        // counts the objects and bytes per class without contention, added to the shared statistics at the end
+        ClassHistogram histogram = statistics != null ? new ClassHistogram() : null;
+
+        long total = 0;
+        long objects = 0;
+        while (!stack.isEmpty())
+        {
+            Object current = stack.pop();
+            long size = measureAndPushChildren(current, tracker, stack);
+            total += size;
+            objects++;
+            if (histogram != null)
+                histogram.add(current.getClass(), size);
+            if (total > limit)
+                break;
+        }
+
+        // a walk stopped at the limit did not measure the whole graph, which would skew the statistics
+        if (statistics != null && total <= limit)
+            statistics.recordMeasurement(object.getClass(), objects, total, System.nanoTime() - start, tracker.resizes() - resizes, histogram);
+
+        return total;
+    }
+
+    @Override
+    public final CompletableFuture<Long> measureDeepAsync(Object object)
+    {
+        Objects.requireNonNull(object);
+        return CompletableFuture.supplyAsync(() -> measureDeepOnAnyThread(object), asyncExecutor());
+    }
+
+    @Override
+    public final CompletableFuture<long[]> measureAllAsync(Collection<?> roots)
+    {
+        Executor executor = asyncExecutor();
+        CompletableFuture<?>[] futures = new CompletableFuture<?>[roots.size()];
+        int i = 0;
+        for (Object root : roots)
+        {
+            Objects.requireNonNull(root);
+            futures[i++] = CompletableFuture.supplyAsync(() -> measureDeepOnAnyThread(root), executor);
+        }
+
+        return CompletableFuture.allOf(futures).thenApply(v -> {
+            long[] sizes = new long[futures.length];
+            for (int j = 0; j < sizes.length; j++)
+                sizes[j] = (Long) futures[j].join();
+            return sizes;
+        });
+    }
+
+    private Executor asyncExecutor()
+    {
+        return asyncExecutor != null ? asyncExecutor : VirtualThreads.defaultExecutor();
+    }
+
+    /**
+     * Same as {@link #measureDeep(Object)}, but does not create a thread-local {@link MeasurementContext} on virtual
+     * threads, which only live for a single measurement.
+     */
+    private long measureDeepOnAnyThread(Object object)
+    {
+        if (threadLocalContext == null || !VirtualThreads.isVirtual(Thread.currentThread()))
+            return measureDeep(object);
+
+        if (ignoreClass.get(object.getClass()))
+            return 0;
+        return measureDeep(object, visitedSetStrategy.create(0), new ArrayDeque<>(), Long.MAX_VALUE);
+    }
+
+    @Override
+    public final BatchSizes measureDeepAll(Iterable<?> roots)
+    {
+        Objects.requireNonNull(roots);
+
+        MeasurementContext context = threadLocalContext != null ? threadLocalContext.get() : null;
+        if (context == null || context.inUse)
+            return measureDeepAll(roots, visitedSetStrategy.create(0), new ArrayDeque<>());
+
+        context.acquire();
+        try
+        {
+            return measureDeepAll(roots, context.tracker, context.stack);
+        }
+        finally
+        {
+            context.release();
+        }
+    }
+
+    private BatchSizes measureDeepAll(Iterable<?> roots, VisitedTracker tracker, Deque<Object> stack)
+    {
+        long[] bytes = new long[16];
+        int count = 0;
+        long total = 0;
+        long size;
+        for (Object root : roots)
+        {
+            if (count == bytes.length)
+            {
+                if (count == Integer.MAX_VALUE - 8)
+                    throw new IllegalStateException("too many roots");
+                bytes = Arrays.copyOf(bytes, (int) Math.min(Integer.MAX_VALUE - 8, count * 2L));
+            }
+
+            size = 0;
+            // a root already reached from an earlier root has been attributed to that one
+            if (root != null && !ignoreClass.get(root.getClass()) && tracker.add(root))
+            {
+                stack.push(root);
+                while (!stack.isEmpty())
+                    size += measureAndPushChildren(stack.pop(), tracker, stack);
+            }
+            bytes[count++] = size;
+            total += size;
+        }
+        return new BatchSizes(total, bytes, count);
+    }
+
+    @Override
+    public final DeepMemoryUsage measureDeepWithOffHeap(Object object)
+    {
+        Objects.requireNonNull(object);
+
+        DirectBuffers.Accounting offHeap = new DirectBuffers.Accounting();
+        if (ignoreClass.get(object.getClass()))
+            return offHeap.toUsage(0);
+
+        VisitedTracker tracker = visitedSetStrategy.create(0);
+        tracker.add(object);
         Deque<Object> stack = new ArrayDeque<>();
         stack.push(object);
 
         long total = 0;
+        while (!stack.isEmpty())
+        {
+            Object current = stack.pop();
+            total += measureAndPushChildren(current, tracker, stack);
+            if (current instanceof Buffer)
+                offHeap.add((Buffer) current);
+        }
+        return offHeap.toUsage(total);
+    }
+
+    @Override
+    public final SizeEstimate measureDeepSampled(Object object, double sampleRate, int minArrayLength)
+    {
+        Objects.requireNonNull(object);
+        if (!(sampleRate > 0d && sampleRate <= 1d))
+            throw new IllegalArgumentException("sampleRate must be greater than 0 and not greater than 1");
+
+        return new DeepSampler(this, sampleRate, minArrayLength).measure(object);
+    }
+
+    @Override
+    public final ClassHistogram measureDeepHistogram(Object object)
+    {
+        Objects.requireNonNull(object);
+
+        ClassHistogram histogram = new ClassHistogram();
+        if (ignoreClass.get(object.getClass()))
+            return histogram;
+
+        VisitedTracker tracker = visitedSetStrategy.create(0);
+        tracker.add(object);
+
+        Deque<Object> stack = new ArrayDeque<>();
+        stack.push(object);
+
         Object current;
-        Class<?> type;
-        long size;
         while (!stack.isEmpty())
         {
             current = stack.pop();
-            type = current.getClass();
-            size = measure(current);
-            total += size;
+            histogram.add(current.getClass(), measureAndPushChildren(current, tracker, stack));
+        }
+
+        return histogram;
+    }
+
+    @Override
+    public final LargestSubtrees measureDeepWithPaths(Object object, int topN)
+    {
+        Objects.requireNonNull(object);
+        if (topN < 0)
+            throw new IllegalArgumentException("topN must not be negative");
+
+        return new PathTracer(this, topN).measure(object);
+    }
+
+    @Override
+    public final RetainedSizes measureRetained(List<?> roots)
+    {
+        for (Object root : roots)
+            Objects.requireNonNull(root);
+
+        return new RetainedSizeTracer(this, roots).measure();
+    }
+
+    @Override
+    public final IncrementalMeasurement measureDeepIncremental(Object object)
+    {
+        return new IncrementalMeasurement(this, Objects.requireNonNull(object));
+    }
+
+    @Override
+    public final long measureDeepParallel(Object object, ForkJoinPool pool)
+    {
+        Objects.requireNonNull(object);
+        Objects.requireNonNull(pool);
+
+        if (ignoreClass.get(object.getClass()))
+            return 0;
+
+        ConcurrentVisitedSet tracker = new ConcurrentVisitedSet(pool.getParallelism());
+        tracker.add(object);
+
+        Deque<Object> stack = new ArrayDeque<>();
+        stack.push(object);
+
+        return pool.invoke(new DeepTask(tracker, stack));
+    }
+
+    @Override
+    public final WarmUp warmUp(Collection<Class<?>> classes, int parallelism)
+    {
+        Class<?>[] array = classes.toArray(new Class<?>[0]);
+        return WarmUp.start(this, array.length, i -> Objects.requireNonNull(array[i]), parallelism);
+    }
 
-            if (type.isArray())
+    @Override
+    public final WarmUp warmUp(Collection<String> classNames, ClassLoader loader, int parallelism)
+    {
+        String[] names = classNames.toArray(new String[0]);
+        return WarmUp.start(this, names.length, i -> {
+            try
             {
-                if (!type.getComponentType().isPrimitive())
-                    for (Object child : (Object[]) current)
-                        if (child != null && tracker.add(child) && !ignoreClass.get(child.getClass()))
-                            stack.push(child);
-                continue;
+                return Class.forName(names[i], false, loader);
             }
+            catch (ClassNotFoundException e)
+            {
+                throw new IllegalArgumentException("Class " + names[i] + " not found", e);
+            }
+        }, parallelism);
+    }
+
+    @Override
+    public final WarmUp warmUpPackages(Collection<String> packageNames, int parallelism)
+    {
+        if (MemoryMeterInstrumentation.instrumentation == null)
+            throw new IllegalStateException("Instrumentation is not set; Jamm must be set as -javaagent to find the loaded classes");
+
+        List<Class<?>> classes = new ArrayList<>();
+        for (Class<?> type : MemoryMeterInstrumentation.instrumentation.getAllLoadedClasses())
+            if (!type.isArray() && !type.isPrimitive() && inPackages(type.getName(), packageNames))
+                classes.add(type);
+        return warmUp(classes, parallelism);
+    }
+
+    private static boolean inPackages(String className, Collection<String> packageNames)
+    {
+        for (String packageName : packageNames)
+            if (className.startsWith(packageName)
+                && className.length() > packageName.length()
+                && className.charAt(packageName.length()) == '.')
+                return true;
+        return false;
+    }
+
+    /**
+     * Computes the metadata needed to measure the instances of {@code type}, see {@link WarmUp}.
+     *
+     * @return {@code false}, if the instances of {@code type} do not need any metadata
+     */
+    final boolean warmUp(Class<?> type)
+    {
+        if (type.isInterface() || type.isArray() || type.isPrimitive() || ignoreClass.get(type))
+            return false;
+
+        classSizers.get(type);
+        if (!Modifier.isAbstract(type.getModifiers()))
+            warmUpShallowSize(type);
+        if (statistics != null)
+            statistics.classWarmedUp();
+        return true;
+    }
+
+    /**
+     * @return the shallow size of the instances of the non-array class {@code type}, without an instance at hand
+     */
+    abstract long shallowSizeOf(Class<?> type);
+
+    /**
+     * Computes the shallow size of the instances of {@code type} ahead of the first measurement, if that is possible
+     * without an instance.
+     */
+    void warmUpShallowSize(Class<?> type)
+    {
+    }
+
+    /**
+     * Measures the shallow size of {@code current} and pushes all its children, that have not been visited yet,
+     * onto {@code stack}.
+     *
+     * @return the number of bytes to add to the total for {@code current}
+     */
+    final long measureAndPushChildren(Object current, VisitedTracker tracker, Deque<Object> stack)
+    {
+        Class<?> type = current.getClass();
+
+        if (type.isArray())
+        {
+            if (!type.getComponentType().isPrimitive())
+                for (Object child : (Object[]) current)
+                    if (child != null && tracker.add(child) && !ignoreClass.get(child.getClass()))
+                        stack.push(child);
+            return measureArray(current, type);
+        }
+
+        try
+        {
+            return classSizers.get(type).measureAndPushChildren(current, tracker, stack);
+        }
+        catch (Throwable t)
+        {
+            throw new RuntimeException(t);
+        }
+    }
+
+    /**
+     * Work-stealing part of {@link #measureDeepParallel(Object, ForkJoinPool)}. Each task walks its own stack and
+     * hands off half of it to a new task whenever the pool is running out of queued work.
+     */
+    private final class DeepTask extends RecursiveTask<Long>
+    {
+        private static final long serialVersionUID = 1L;
+
+        // number of objects to process between two checks whether work should be split off
+        private static final int SPLIT_CHECK_INTERVAL = 64;
+        // minimum number of pending objects on the local stack required to split off work
+        private static final int SPLIT_THRESHOLD = 32;
+        // split off work if the pool has fewer than this number of surplus tasks queued
+        private static final int SURPLUS_TASKS = 2;
 
-            if (byteBufferMode != BB_MODE_NORMAL && ByteBuffer.class.isAssignableFrom(type))
+        private final ConcurrentVisitedSet tracker;
+        private final Deque<Object> stack;
+
+        DeepTask(ConcurrentVisitedSet tracker, Deque<Object> stack)
+        {
+            this.tracker = tracker;
+            this.stack = stack;
+        }
+
+        @Override
+        protected Long compute()
+        {
+            List<DeepTask> forked = null;
+            long total = 0;
+            int sinceCheck = 0;
+            while (!stack.isEmpty())
             {
-                ByteBuffer bb = (ByteBuffer) current;
-                if (byteBufferMode == BB_MODE_OMIT_SHARED)
-                {
-                    total += bb.remaining();
-                    continue;
-                }
-                if (byteBufferMode == BB_MODE_SHALLOW)
-                {
-                    continue;
-                }
-                if (byteBufferMode == BB_MODE_HEAP_ONLY_NO_SLICE)
+                total += measureAndPushChildren(stack.pop(), tracker, stack);
+
+                if (++sinceCheck == SPLIT_CHECK_INTERVAL)
                 {
-                    if (bb.isDirect())
-                        continue;
-                    // if we're only referencing a sub-portion of the ByteBuffer, don't count the array overhead (assume it's slab
-                    // allocated, so amortized over all the allocations the overhead is negligible and better to undercount than over)
-                    if (bb.capacity() > bb.remaining())
+                    sinceCheck = 0;
+                    if (stack.size() >= SPLIT_THRESHOLD && getSurplusQueuedTaskCount() < SURPLUS_TASKS)
                     {
-                        total -= size;
-                        total += bb.remaining();
-                        continue;
+                        if (forked == null)
+                            forked = new ArrayList<>();
+                        DeepTask task = new DeepTask(tracker, split());
+                        task.fork();
+                        forked.add(task);
                     }
                 }
             }
 
-            Object referent = (ignoreNonStrongReferences && (current instanceof Reference)) ? ((Reference<?>) current).get() : null;
-            try
-            {
-                Class<?> cls = current.getClass();
-                Object child;
-                for (MethodHandle field : declaredClassFields(cls))
-                {
-                    child = field.invoke(current);
+            if (forked != null)
+                for (DeepTask task : forked)
+                    total += task.join();
 
-                    if (child != null && tracker.add(child) && !ignoreClass.get(child.getClass()) && child != referent)
-                        stack.push(child);
-                }
-            }
-            catch (Throwable t)
-            {
-                throw new RuntimeException(t);
-            }
+            return total;
         }
 
-        return total;
+        /**
+         * Moves the bottom half of the local stack, i.e. the objects that were pushed first and are therefore
+         * most likely the roots of big sub-graphs, to a new stack.
+         */
+        private Deque<Object> split()
+        {
+            int n = stack.size() / 2;
+            Deque<Object> other = new ArrayDeque<>(n);
+            for (int i = 0; i < n; i++)
+                other.push(stack.pollLast());
+            return other;
+        }
     }
 
     // visible for testing
-    static final class VisitedSet
+    static final class VisitedSet implements VisitedTracker
     {
         int size;
+        private int resizes;
         // Open-addressing table for this set.
         // This table will never be fully populated (1/3) to keep enough "spare slots" that are `null`
         // so a loop checking for an element would not have to check too many slots (iteration stops
         // when an entry in the table is `null`).
-        Object[] table = new Object[16];
+        Object[] table;
+        private final int initialLength;
+        // number of consecutive clears, that removed at most a quarter of what the table can hold
+        private int underUsedClears;
 
-        boolean add(Object o)
+        VisitedSet()
+        {
+            this(0);
+        }
+
+        /**
+         * @param expectedObjects number of objects that can be added without having to resize the table
+         */
+        VisitedSet(int expectedObjects)
+        {
+            initialLength = capacityFor(expectedObjects);
+            table = new Object[initialLength];
+        }
+
+        /**
+         * @return the table length needed to hold the given number of objects, at least 16
+         */
+        static int capacityFor(int objects)
+        {
+            // 3 as the "magic size factor" to have enough 'null's in the open-addressing-map
+            long n = Math.max(16L, 3L * objects);
+            if (n > 1 << 30)
+                return 1 << 30;
+            return Integer.highestOneBit((int) n - 1) << 1;
+        }
+
+        @Override
+        public boolean clear(int maxRetainedObjects)
+        {
+            int used = size;
+            size = 0;
+            if (table.length > Math.max(initialLength, capacityFor(maxRetainedObjects)))
+            {
+                underUsedClears = 0;
+                table = new Object[initialLength];
+                return false;
+            }
+            // Clearing costs time proportional to the table length. Do not let a single big measurement make all
+            // following small measurements expensive, halve the table if it has been way too big for a while.
+            if (table.length > initialLength && capacityFor(used) * 4 <= table.length)
+            {
+                if (++underUsedClears >= SHRINK_AFTER_CLEARS)
+                {
+                    underUsedClears = 0;
+                    table = new Object[table.length / 2];
+                    return true;
+                }
+            }
+            else
+            {
+                underUsedClears = 0;
+            }
+            Arrays.fill(table, null);
+            return true;
+        }
+
+        @Override
+        public boolean add(Object o)
         {
             // no need for a null-check here, see call-sites
 
@@ -186,6 +673,7 @@ abstract class MemoryMeterBase extends MemoryMeter
             if (newLength < 0)
                 throw new IllegalStateException("too many objects visited");
 
+            resizes++;
             Object[] n = new Object[newLength];
             int mask = newLength - 1;
             int i;
@@ -202,6 +690,12 @@ abstract class MemoryMeterBase extends MemoryMeter
             table = n;
         }
 
+        @Override
+        public int resizes()
+        {
+            return resizes;
+        }
+
         private static int index(Object o, int mask)
         {
             return System.identityHashCode(o) & mask;
@@ -214,16 +708,113 @@ abstract class MemoryMeterBase extends MemoryMeter
         }
     }
 
-    private MethodHandle[] declaredClassFields(Class<?> cls)
+    private ClassSizer classSizer0(Class<?> type)
+    {
+        // the reflection is shared with all other meters of the same configuration
+        ClassMetadata metadata = ClassMetadata.get(type, this);
+        List<Field> fields = metadata.fields;
+
+        if (byteBufferMode == BB_MODE_OMIT_SHARED ? Buffer.class.isAssignableFrom(type)
+                                                  : byteBufferMode != BB_MODE_NORMAL && ByteBuffer.class.isAssignableFrom(type))
+            return new ClassSizer.BufferSizer(this, type, metadata.getters());
+
+        if (ignoreNonStrongReferences && Reference.class.isAssignableFrom(type))
+            return new ClassSizer.NonStrongReference(this, type, metadata.getters());
+
+        if (fields.isEmpty())
+            return new ClassSizer.Leaf(this, type);
+
+        ChildAccessor<Object> accessor = metadata.generatedAccessor(type);
+        if (accessor != null)
+            return new ClassSizer.Generated(this, type, accessor);
+
+        // the specialized sizers read the fields through reflection
+        if (metadata.offsets == null)
+        {
+            ClassSizer sizer = JdkSizers.forClass(this, type, fields);
+            if (sizer != null)
+                return sizer;
+        }
+
+        return new ClassSizer.Fields(this, type, metadata.getters(), metadata.pusher());
+    }
+
+    /**
+     * @return the accessor generated for {@code type} by the annotation processor or {@code null}, if there is none or
+     * if it does not read exactly the given fields
+     */
+    @SuppressWarnings("unchecked")
+    static ChildAccessor<Object> generatedAccessor(Class<?> type, List<Field> fields)
     {
-        return declaredClassFieldsCache.get(cls);
+        if (!type.isAnnotationPresent(GenerateSizer.class))
+            return null;
+
+        ChildAccessor<Object> accessor;
+        try
+        {
+            Class<?> accessorClass = Class.forName(type.getName() + ChildAccessor.CLASS_NAME_SUFFIX, true, type.getClassLoader());
+            accessor = (ChildAccessor<Object>) accessorClass.getConstructor().newInstance();
+        }
+        catch (ReflectiveOperationException | LinkageError e)
+        {
+            // the annotation processor did not run or the accessor could not read a private field
+            return null;
+        }
+
+        // the accessor reads all reference fields, so it cannot be used, if this meter ignores any of them, or if the
+        // class has synthetic fields, which the annotation processor does not see
+        return accessor.childCount() == fields.size() ? accessor : null;
     }
 
+    /**
+     * @return the non-static reference fields of {@code type} and its superclasses that are followed by this meter
+     */
+    final List<Field> referenceFields(Class<?> type)
+    {
+        return declaredClassFields0(type);
+    }
+
+    /**
+     * @return getters of type {@code (Object)Object} for the given fields, that read the fields through
+     * {@code sun.misc.Unsafe} at the given offsets, if not {@code null}, or through reflection otherwise
+     */
+    static MethodHandle[] getters(List<Field> fields, long[] offsets)
+    {
+        if (offsets == null || UNSAFE_GET_OBJECT == null)
+            return unreflectGetters(fields);
+
+        MethodHandle[] mhs = new MethodHandle[offsets.length];
+        for (int i = 0; i < mhs.length; i++)
+            mhs[i] = MethodHandles.insertArguments(UNSAFE_GET_OBJECT, 1, offsets[i]);
+        return mhs;
+    }
+
+    /**
+     * @return the {@code sun.misc.Unsafe} offsets of the given fields or {@code null}, if {@code sun.misc.Unsafe}
+     * does not support one of them, as it is the case for the fields of records and hidden classes
+     */
     @SuppressWarnings("deprecation")
-    private MethodHandle[] declaredClassFields0(Class<?> cls)
+    static long[] fieldOffsets(List<Field> fields)
     {
-        MethodHandles.Lookup lookup = MethodHandles.lookup();
-        List<MethodHandle> mhs = new ArrayList<>();
+        long[] offsets = new long[fields.size()];
+        try
+        {
+            for (int i = 0; i < offsets.length; i++)
+                offsets[i] = MemoryMeterUnsafe.unsafe.objectFieldOffset(fields.get(i));
+        }
+        catch (UnsupportedOperationException e)
+        {
+            return null;
+        }
+        return offsets;
+    }
+
+    /**
+     * @return the non-static reference fields of {@code cls} and its superclasses that are followed by this meter
+     */
+    private List<Field> declaredClassFields0(Class<?> cls)
+    {
+        List<Field> fields = new ArrayList<>();
         for (; !skipClass(cls); cls = cls.getSuperclass())
         {
             for (Field f : cls.getDeclaredFields())
@@ -232,27 +823,55 @@ abstract class MemoryMeterBase extends MemoryMeter
                     && !Modifier.isStatic(f.getModifiers())
                     && !f.isAnnotationPresent(Unmetered.class)
                     && !(ignoreOuterClassReference && f.getName().matches(outerClassReference))
-                    && !ignoreClass.get(f.getType()))
+                    && !DirectBuffers.isBookkeeping(f)
+                    && !ignoresFieldType(f.getType()))
                 {
-                    boolean acc = f.isAccessible();
-                    try
-                    {
-                        if (!acc)
-                            f.setAccessible(true);
-                        mhs.add(lookup.unreflectGetter(f));
-                    }
-                    catch (Exception e)
-                    {
-                        throw new RuntimeException(e);
-                    }
-                    finally
-                    {
-                        if (!acc)
-                            f.setAccessible(false);
-                    }
-               }
+                    fields.add(f);
+                }
+            }
+        }
+        return fields;
+    }
+
+    /**
+     * The fields in the {@link ClassMetadata} shared with other meters of the same configuration must not depend on
+     * the classes, that this meter ignores by name. The instances of those classes are still ignored, when they are
+     * reached.
+     */
+    private boolean ignoresFieldType(Class<?> type)
+    {
+        return ignoredClasses.isEmpty() ? ignoreClass.get(type) : metadataIgnorePredicate.test(type);
+    }
+
+    /**
+     * Returns getters for the given fields, adapted to {@code (Object)Object}, so that they can be called with
+     * {@link MethodHandle#invokeExact(Object...)} independently of the declared field types.
+     */
+    @SuppressWarnings("deprecation")
+    static MethodHandle[] unreflectGetters(List<Field> fields)
+    {
+        MethodHandles.Lookup lookup = MethodHandles.lookup();
+        MethodHandle[] mhs = new MethodHandle[fields.size()];
+        for (int i = 0; i < mhs.length; i++)
+        {
+            Field f = fields.get(i);
+            boolean acc = f.isAccessible();
+            try
+            {
+                if (!acc)
+                    f.setAccessible(true);
+                mhs[i] = lookup.unreflectGetter(f).asType(GETTER_TYPE);
+            }
+            catch (Exception e)
+            {
+                throw new RuntimeException(e);
+            }
+            finally
+            {
+                if (!acc)
+                    f.setAccessible(false);
             }
         }
-        return mhs.toArray(new MethodHandle[0]);
+        return mhs;
     }
 }
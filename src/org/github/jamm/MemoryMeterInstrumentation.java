@@ -2,7 +2,6 @@ package org.github.jamm;
 
 import java.lang.instrument.Instrumentation;
 import java.lang.reflect.Array;
-import java.util.concurrent.ConcurrentHashMap;
 
 final class MemoryMeterInstrumentation extends MemoryMeterBase
 {
@@ -18,10 +17,6 @@ final class MemoryMeterInstrumentation extends MemoryMeterBase
         super(builder);
     }
 
-    // Cannot use java.lang.ClassValue here, because ClassValue.computeValue() only passes the
-    // j.l.Class, but Instrumentation.getObjectSize() requires the actual j.l.Object.
-    private final ConcurrentHashMap<Class<?>, Long> shallowClassCache = new ConcurrentHashMap<>();
-
     @Override
     long measureArray(Object obj, Class<?> type)
     {
@@ -35,16 +30,38 @@ final class MemoryMeterInstrumentation extends MemoryMeterBase
     @Override
     long measureNonArray(Object obj, Class<?> type)
     {
-        // Could be rewritten as
-        //    return shallowClassCache.computeIfAbsent(type, x -> instrumentation.getObjectSize(obj));
-        // but that would involve a capturing lambda, which is bad in this case.
+        // The shallow sizes are kept in the registry shared by all meters, which, unlike a map, does not keep the
+        // classes from being unloaded. Instrumentation.getObjectSize() requires the actual j.l.Object, so the size
+        // can only be computed on first use, not in ClassValue.computeValue().
+
+        long sz = ClassMetadata.shallowSize(type, ClassMetadata.SHALLOW_SIZE_INSTRUMENTATION);
+        if (sz != 0)
+            return sz;
+
+        sz = instrumentation.getObjectSize(obj);
+        ClassMetadata.putShallowSize(type, ClassMetadata.SHALLOW_SIZE_INSTRUMENTATION, sz);
+        if (statistics != null)
+            statistics.shallowSizeComputed();
+        return sz;
+    }
+
+    /**
+     * Returns the size measured by instrumentation, once an instance of {@code type} has been measured, and the size
+     * computed from the model of the field layout otherwise, which is exact for HotSpot.
+     */
+    @Override
+    long shallowSizeOf(Class<?> type)
+    {
+        long sz = ClassMetadata.shallowSize(type, ClassMetadata.SHALLOW_SIZE_INSTRUMENTATION);
+        if (sz != 0)
+            return sz;
 
-        Long sz = shallowClassCache.get(type);
-        if (sz != null)
+        sz = ClassMetadata.shallowSize(type, ClassMetadata.SHALLOW_SIZE_SPEC);
+        if (sz != 0)
             return sz;
 
-        long szp = instrumentation.getObjectSize(obj);
-        shallowClassCache.put(type, szp);
-        return szp;
+        sz = FieldLayout.of(type, spec()).instanceSize;
+        ClassMetadata.putShallowSize(type, ClassMetadata.SHALLOW_SIZE_SPEC, sz);
+        return sz;
     }
 }
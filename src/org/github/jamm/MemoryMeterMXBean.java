@@ -0,0 +1,132 @@
+package org.github.jamm;
+
+import java.util.Map;
+
+/**
+ * Management interface exposing the cost of the deep measurements of a {@link MemoryMeter}, that has been built with
+ * {@link MemoryMeter.Builder#withStatistics()}. See {@link MemoryMeter#statistics()} and
+ * {@link MemoryMeter#registerMXBean(String)}.
+ * <p>
+ * All counters are cumulative since the meter has been built or since the last call to {@link #reset()}. They cover
+ * the {@code measureDeep} methods, but neither the sampled, histogram, incremental or parallel measurements nor
+ * shallow measurements.
+ */
+public interface MemoryMeterMXBean
+{
+    /**
+     * @return the number of deep measurements
+     */
+    long getCalls();
+
+    /**
+     * @return the number of objects measured by all deep measurements
+     */
+    long getObjects();
+
+    /**
+     * @return the number of bytes measured by all deep measurements
+     */
+    long getBytes();
+
+    /**
+     * @return the wall-clock time spent in all deep measurements in nanoseconds
+     */
+    long getNanos();
+
+    /**
+     * @return the number of times the visited set had to grow during a deep measurement
+     */
+    long getVisitedSetResizes();
+
+    /**
+     * @return the median latency of a deep measurement in nanoseconds, accurate to 25%
+     */
+    long getLatencyNanosP50();
+
+    /**
+     * @return the 99th percentile of the latency of a deep measurement in nanoseconds, accurate to 25%
+     */
+    long getLatencyNanosP99();
+
+    /**
+     * @return the 99.9th percentile of the latency of a deep measurement in nanoseconds, accurate to 25%
+     */
+    long getLatencyNanosP999();
+
+    /**
+     * @return the highest latency of a deep measurement in nanoseconds
+     */
+    long getLatencyNanosMax();
+
+    /**
+     * @return the time spent in deep measurements in nanoseconds by the name of the class of the measured root
+     */
+    Map<String, Long> getNanosByRootClass();
+
+    /**
+     * @return the number of objects measured by deep measurements by the name of the class of the measured root
+     */
+    Map<String, Long> getObjectsByRootClass();
+
+    /**
+     * @return the number of objects measured by deep measurements by the name of their class, for up to 1024 classes,
+     * the objects of the other classes are counted as {@code <other>}
+     */
+    Map<String, Long> getObjectsByClass();
+
+    /**
+     * @return the sum of the shallow sizes of the objects measured by deep measurements by the name of their class, for
+     * up to 1024 classes, the bytes of the other classes are counted as {@code <other>}
+     */
+    Map<String, Long> getBytesByClass();
+
+    /**
+     * @return the number of classes, for which the meter has computed how to traverse their instances
+     */
+    long getClassSizersComputed();
+
+    /**
+     * @return the number of classes, for which the meter has computed whether to ignore their instances
+     */
+    long getIgnoreClassComputed();
+
+    /**
+     * @return the number of classes, for which the meter has computed the shallow size of their instances, because
+     * no other meter had computed it before
+     */
+    long getShallowSizesComputed();
+
+    /**
+     * @return the number of classes warmed up ahead of their first measurement, see {@link MemoryMeter#warmUp}
+     */
+    long getClassesWarmedUp();
+
+    /**
+     * @return the number of times a meter found the metadata of a class in the registry shared by all meters of the
+     * process, instead of reflecting the class itself
+     */
+    long getSharedClassMetadataHits();
+
+    /**
+     * @return the number of times a meter did not find the metadata of a class in the registry shared by all meters
+     * of the process and had to reflect the class
+     */
+    long getSharedClassMetadataMisses();
+
+    /**
+     * @return the number of classes evicted from the registry shared by all meters of the process, because it
+     * exceeded its maximum size
+     */
+    long getSharedClassMetadataEvictions();
+
+    /**
+     * @return the number of classes in the registry shared by all meters of the process
+     */
+    int getSharedClassMetadataClasses();
+
+    /**
+     * Resets all counters except the ones for the computed class metadata, which is kept by the meter, and the ones
+     * of the registry shared by all meters.
+     */
+    void reset();
+}
@@ -5,20 +5,15 @@ import java.util.function.ToLongFunction;
 
 abstract class MemoryMeterRef extends MemoryMeterBase
 {
-    private final ClassValue<Long> classShallowSIze = new ClassValue<Long>()
-    {
-        @Override
-        protected Long computeValue(Class<?> type)
-        {
-            return shallowClassSizeProvider.applyAsLong(type);
-        }
-    };
     private final ToLongFunction<Class<?>> shallowClassSizeProvider;
+    // the kind of the shallow sizes provided in the shared ClassMetadata
+    private final int shallowSizeKind;
 
-    MemoryMeterRef(Builder builder, ToLongFunction<Class<?>> shallowClassSizeProvider)
+    MemoryMeterRef(Builder builder, ToLongFunction<Class<?>> shallowClassSizeProvider, int shallowSizeKind)
     {
         super(builder);
         this.shallowClassSizeProvider = shallowClassSizeProvider;
+        this.shallowSizeKind = shallowSizeKind;
     }
 
     long measureArray(Object obj, Class<?> type)
@@ -28,7 +23,27 @@ abstract class MemoryMeterRef extends MemoryMeterBase
 
     long measureNonArray(Object obj, Class<?> type)
     {
-        return classShallowSIze.get(type);
+        return shallowSizeOf(type);
+    }
+
+    @Override
+    void warmUpShallowSize(Class<?> type)
+    {
+        shallowSizeOf(type);
+    }
+
+    @Override
+    final long shallowSizeOf(Class<?> type)
+    {
+        long size = ClassMetadata.shallowSize(type, shallowSizeKind);
+        if (size != 0)
+            return size;
+
+        size = shallowClassSizeProvider.applyAsLong(type);
+        ClassMetadata.putShallowSize(type, shallowSizeKind, size);
+        if (statistics != null)
+            statistics.shallowSizeComputed();
+        return size;
     }
 
 }
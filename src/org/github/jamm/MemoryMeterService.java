@@ -0,0 +1,355 @@
+package org.github.jamm;
+
+import java.lang.management.GarbageCollectorMXBean;
+import java.lang.management.ManagementFactory;
+import java.lang.ref.WeakReference;
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Objects;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.DelayQueue;
+import java.util.concurrent.Delayed;
+import java.util.concurrent.TimeUnit;
+import java.util.function.LongConsumer;
+
+import javax.management.ListenerNotFoundException;
+import javax.management.Notification;
+import javax.management.NotificationEmitter;
+import javax.management.NotificationListener;
+import javax.management.openmbean.CompositeData;
+
+/**
+ * Measures registered roots periodically on a dedicated, low priority daemon thread, so that the cost of the
+ * measurements moves off the threads that use the roots.
+ * <p>
+ * The service limits itself in two ways:
+ * <ul>
+ * <li>It spends at most the configured fraction of the wall-clock time measuring, pausing after every
+ * measurement accordingly.</li>
+ * <li>It pauses measuring after every garbage collection pause for {@value #GC_BACKOFF_FACTOR} times the duration
+ * of the pause, so that it does not add to the allocation and memory bandwidth pressure while the heap is busy. The
+ * concurrent cycles of collectors like G1, ZGC or Shenandoah, which run alongside the application, are not waited
+ * for, and a root does not wait for longer than its interval, so that measurements are postponed, but never
+ * starved.</li>
+ * </ul>
+ * <p>
+ * Exceptions and errors thrown by a measurement or a threshold callback are passed to the uncaught exception handler of
+ * the service thread, which then carries on with the next measurement.
+ * <p>
+ * The latest size of a root can be read at any time without locking through {@link Registration#size()}.
+ * <p>
+ * The service only holds weak references to the roots, a registration is cancelled once its root has been garbage
+ * collected.
+ */
+public final class MemoryMeterService implements AutoCloseable
+{
+    /**
+     * After a garbage collection pause, measurements are paused for this many times the duration of the pause.
+     */
+    public static final int GC_BACKOFF_FACTOR = 10;
+
+    // com.sun.management.GarbageCollectionNotificationInfo.GARBAGE_COLLECTION_NOTIFICATION
+    private static final String GC_NOTIFICATION = "com.sun.management.gc.notification";
+
+    private final MemoryMeter meter;
+    private final double maxDutyCycle;
+    private final DelayQueue<Registration> queue = new DelayQueue<>();
+    private final MeasurementContext context;
+    private final Thread thread;
+    private final List<NotificationEmitter> gcEmitters = new ArrayList<>();
+    private final NotificationListener gcListener = this::onGarbageCollection;
+
+    // System.nanoTime() until which measurements are paused because of a garbage collection
+    private volatile long gcBackoffUntil;
+
+    private volatile boolean closed;
+
+    /**
+     * Creates a service, that spends at most 10% of the wall-clock time measuring.
+     */
+    public MemoryMeterService(MemoryMeter meter)
+    {
+        this(meter, 0.1);
+    }
+
+    /**
+     * @param meter the meter used for the measurements
+     * @param maxDutyCycle the maximum fraction of the wall-clock time spent measuring, greater than 0 and at most 1
+     */
+    public MemoryMeterService(MemoryMeter meter, double maxDutyCycle)
+    {
+        if (!(maxDutyCycle > 0 && maxDutyCycle <= 1))
+            throw new IllegalArgumentException("maxDutyCycle must be greater than 0 and at most 1");
+
+        this.meter = Objects.requireNonNull(meter);
+        this.maxDutyCycle = maxDutyCycle;
+        this.context = new MeasurementContext(meter.visitedSetStrategy, 0, 1 << 16);
+        this.gcBackoffUntil = System.nanoTime();
+
+        for (GarbageCollectorMXBean gc : ManagementFactory.getGarbageCollectorMXBeans())
+        {
+            if (gc instanceof NotificationEmitter)
+            {
+                NotificationEmitter emitter = (NotificationEmitter) gc;
+                emitter.addNotificationListener(gcListener, null, null);
+                gcEmitters.add(emitter);
+            }
+        }
+
+        this.thread = new Thread(this::run, "jamm-memory-meter-service");
+        thread.setDaemon(true);
+        thread.setPriority(Thread.MIN_PRIORITY);
+        thread.start();
+    }
+
+    /**
+     * Registers {@code root} to be measured deeply every {@code interval}, starting as soon as possible.
+     *
+     * @throws IllegalStateException if the service has been closed
+     */
+    public Registration register(Object root, Duration interval)
+    {
+        Objects.requireNonNull(root);
+        if (interval.isNegative() || interval.isZero())
+            throw new IllegalArgumentException("interval must be positive");
+        if (closed)
+            throw new IllegalStateException("The service has been closed");
+
+        Registration registration = new Registration(root, interval.toNanos());
+        queue.add(registration);
+        return registration;
+    }
+
+    /**
+     * Stops the measurements. A measurement in progress is completed, but its result is not published.
+     */
+    @Override
+    public void close()
+    {
+        closed = true;
+        thread.interrupt();
+        for (NotificationEmitter emitter : gcEmitters)
+        {
+            try
+            {
+                emitter.removeNotificationListener(gcListener);
+            }
+            catch (ListenerNotFoundException e)
+            {
+                // already removed
+            }
+        }
+        queue.clear();
+    }
+
+    private void onGarbageCollection(Notification notification, Object handback)
+    {
+        if (!GC_NOTIFICATION.equals(notification.getType()))
+            return;
+
+        // the user data is a com.sun.management.GarbageCollectionNotificationInfo, read without depending on it
+        CompositeData info = (CompositeData) notification.getUserData();
+        if (!isPause((String) info.get("gcName"), (String) info.get("gcAction")))
+            return;
+
+        CompositeData gcInfo = (CompositeData) info.get("gcInfo");
+        long durationMillis = (Long) gcInfo.get("duration");
+        long until = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(durationMillis * GC_BACKOFF_FACTOR);
+        if (until - gcBackoffUntil > 0)
+            gcBackoffUntil = until;
+    }
+
+    /**
+     * @return {@code false} for the notifications of the concurrent cycles, e.g. "G1 Concurrent GC", "ZGC Cycles" or
+     * "Shenandoah Cycles", which report the duration of work done alongside the application
+     */
+    static boolean isPause(String gcName, String gcAction)
+    {
+        return !gcName.contains("Concurrent") && !gcName.endsWith("Cycles") && !gcAction.contains("cycle");
+    }
+
+    private void run()
+    {
+        try
+        {
+            while (!closed)
+            {
+                Registration registration = queue.take();
+                if (registration.cancelled)
+                    continue;
+
+                // repeated collections may extend the back-off, a root waits for at most its interval, and a
+                // collected root does not have to wait at all
+                long waitUntil = System.nanoTime() + registration.intervalNanos;
+                long now;
+                long backoff;
+                while ((backoff = Math.min(gcBackoffUntil - (now = System.nanoTime()), waitUntil - now)) > 0
+                       && registration.root.get() != null)
+                    TimeUnit.NANOSECONDS.sleep(backoff);
+
+                Object root = registration.root.get();
+                if (root == null)
+                {
+                    registration.cancel();
+                    continue;
+                }
+
+                long start = System.nanoTime();
+                try
+                {
+                    long size = meter.measureDeep(root, context);
+                    if (!closed)
+                        registration.publish(size);
+                }
+                catch (Throwable t)
+                {
+                    // e.g. a StackOverflowError of a custom sizer, or an error thrown by a threshold callback
+                    thread.getUncaughtExceptionHandler().uncaughtException(thread, t);
+                }
+                // do not keep the root reachable while pausing
+                root = null;
+                long end = System.nanoTime();
+
+                registration.nextRun = end + registration.intervalNanos;
+                if (!registration.cancelled && !closed)
+                    queue.add(registration);
+
+                // rate limit: idle long enough to keep the fraction of the time spent measuring below maxDutyCycle
+                long pause = (long) ((end - start) * (1 / maxDutyCycle - 1));
+                if (pause > 0)
+                    TimeUnit.NANOSECONDS.sleep(pause);
+            }
+        }
+        catch (InterruptedException e)
+        {
+            // closed
+        }
+    }
+
+    /**
+     * A root registered with a {@link MemoryMeterService}.
+     */
+    public final class Registration implements Delayed
+    {
+        private final WeakReference<Object> root;
+        private final long intervalNanos;
+        private final CopyOnWriteArrayList<Threshold> thresholds = new CopyOnWriteArrayList<>();
+        private volatile long nextRun = System.nanoTime();
+        // size and time are published together, so that readers never see the size of one measurement with the time
+        // of another one
+        private volatile Measurement latest = Measurement.NONE;
+        private volatile boolean cancelled;
+
+        private Registration(Object root, long intervalNanos)
+        {
+            this.root = new WeakReference<>(root);
+            this.intervalNanos = intervalNanos;
+        }
+
+        /**
+         * @return the size of the root measured most recently, or -1 if it has not been measured yet
+         */
+        public long size()
+        {
+            return latest.size;
+        }
+
+        /**
+         * @return the {@link System#nanoTime()} of the end of the most recent measurement, only meaningful once
+         * {@link #size()} is not -1
+         */
+        public long measuredAt()
+        {
+            return latest.measuredAt;
+        }
+
+        /**
+         * Calls {@code callback} on the thread of the service with the new size, whenever a measurement reaches
+         * {@code bytes}, while the previous one was below it (or there was none).
+         *
+         * @return this registration
+         */
+        public Registration onThreshold(long bytes, LongConsumer callback)
+        {
+            thresholds.add(new Threshold(bytes, Objects.requireNonNull(callback)));
+            return this;
+        }
+
+        /**
+         * Stops measuring the root. A measurement in progress is completed and published.
+         */
+        public void cancel()
+        {
+            cancelled = true;
+            queue.remove(this);
+        }
+
+        /**
+         * @return {@code true}, if the registration has been cancelled or its root has been garbage collected
+         */
+        public boolean isCancelled()
+        {
+            return cancelled;
+        }
+
+        private void publish(long size)
+        {
+            long previous = latest.size;
+            latest = new Measurement(size, System.nanoTime());
+            for (Threshold threshold : thresholds)
+            {
+                if (size >= threshold.bytes && previous < threshold.bytes)
+                {
+                    try
+                    {
+                        threshold.callback.accept(size);
+                    }
+                    catch (Throwable t)
+                    {
+                        // the other callbacks are still called
+                        thread.getUncaughtExceptionHandler().uncaughtException(thread, t);
+                    }
+                }
+            }
+        }
+
+        @Override
+        public long getDelay(TimeUnit unit)
+        {
+            return unit.convert(nextRun - System.nanoTime(), TimeUnit.NANOSECONDS);
+        }
+
+        @Override
+        public int compareTo(Delayed other)
+        {
+            return Long.signum(nextRun - ((Registration) other).nextRun);
+        }
+    }
+
+    private static final class Measurement
+    {
+        static final Measurement NONE = new Measurement(-1, 0);
+
+        final long size;
+        final long measuredAt;
+
+        Measurement(long size, long measuredAt)
+        {
+            this.size = size;
+            this.measuredAt = measuredAt;
+        }
+    }
+
+    private static final class Threshold
+    {
+        final long bytes;
+        final LongConsumer callback;
+
+        Threshold(long bytes, LongConsumer callback)
+        {
+            this.bytes = bytes;
+            this.callback = callback;
+        }
+    }
+}
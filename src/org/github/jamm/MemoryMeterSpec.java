@@ -1,11 +1,9 @@
 package org.github.jamm;
 
-import java.lang.reflect.Field;
-import java.lang.reflect.Modifier;
-
 /**
- * Inaccurate guessing. Does not consider any {@code @Contended} or proper, VM dependent field reordering, etc.
- * TL;DR the object sizes are likely incorrect, but hopefully rather too big (better safe than sorry).
+ * Guessing based on the memory layout of the JVM and a model of the HotSpot field layout, see {@link FieldLayout}.
+ * The sizes are exact for HotSpot, as long as the layout is detected correctly and the class has no fields, that are
+ * injected by the JVM or hidden from reflection. For other JVMs the sizes are only an approximation.
  */
 final class MemoryMeterSpec extends MemoryMeterRef
 {
@@ -13,7 +11,7 @@ final class MemoryMeterSpec extends MemoryMeterRef
 
     MemoryMeterSpec(Builder builder)
     {
-        super(builder, MemoryMeterSpec::sizeOf);
+        super(builder, MemoryMeterSpec::sizeOf, ClassMetadata.SHALLOW_SIZE_SPEC);
         maybeWarn();
     }
 
@@ -36,41 +34,6 @@ final class MemoryMeterSpec extends MemoryMeterRef
 
     private static long sizeOf(Class<?> type)
     {
-        long size = sizeOf(SPEC.getObjectHeaderSize(), type);
-
-        size = roundTo(size, SPEC.getObjectAlignment());
-
-        return size;
-    }
-
-    private static long sizeOf(long size, Class<?> type)
-    {
-        Class<?> superclass = type.getSuperclass();
-        if (superclass != Object.class && superclass != null)
-            size = sizeOf(size, superclass);
-
-        size = sizeOfDeclaredFields(size, type);
-
-        return size;
-    }
-
-
-    private static long sizeOfDeclaredFields(long size, Class<?> type)
-    {
-        boolean any = false;
-        for (Field f : type.getDeclaredFields())
-        {
-            if (!Modifier.isStatic(f.getModifiers()))
-            {
-                Class<?> t = f.getType();
-                if (!any && (t == long.class || !t.isPrimitive() || t == double.class))
-                {
-                    any = true;
-                    size = roundTo(size, SPEC.getObjectAlignment());
-                }
-                size += sizeOfField(t);
-            }
-        }
-        return size;
+        return FieldLayout.of(type, spec()).instanceSize;
     }
 }
@@ -0,0 +1,346 @@
+package org.github.jamm;
+
+import java.lang.management.ManagementFactory;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.LongAccumulator;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.ToLongFunction;
+
+import javax.management.JMException;
+import javax.management.ObjectName;
+
+/**
+ * Collects the statistics exposed by {@link MemoryMeterMXBean}.
+ * <p>
+ * All counters are {@link LongAdder}s, which stripe updates over several cells once threads contend, so that
+ * concurrent measurements do not serialize on the statistics. The latencies are recorded in a log-linear histogram
+ * with four buckets per power of two, which bounds the error of the percentiles to 25%.
+ * <p>
+ * The objects and bytes per traversed class are first counted in a {@link ClassHistogram} per measurement, which is
+ * keyed by the process-wide class ids and not shared, and then added to the shared counters once per class.
+ */
+final class MemoryMeterStatistics implements MemoryMeterMXBean
+{
+    static final String DOMAIN = "org.github.jamm";
+
+    // the costs per root class are only tracked for this many classes, the remaining ones are summed up as OTHER
+    static final int MAX_ROOT_CLASSES = 256;
+    // the costs per traversed class are only tracked for this many classes, the remaining ones are summed up as OTHER
+    static final int MAX_CLASSES = 1024;
+    static final String OTHER = "<other>";
+
+    // 2 bits below the highest one bit, for nanos up to 2^63
+    private static final int SUB_BUCKET_BITS = 2;
+    private static final int SUB_BUCKETS = 1 << SUB_BUCKET_BITS;
+    private static final int BUCKETS = (63 - SUB_BUCKET_BITS) * SUB_BUCKETS + SUB_BUCKETS;
+
+    private final LongAdder calls = new LongAdder();
+    private final LongAdder objects = new LongAdder();
+    private final LongAdder bytes = new LongAdder();
+    private final LongAdder nanos = new LongAdder();
+    private final LongAdder visitedSetResizes = new LongAdder();
+    private final LongAdder[] latencies = new LongAdder[BUCKETS];
+    private final LongAccumulator maxLatency = new LongAccumulator(Math::max, 0);
+    private final ConcurrentHashMap<String, ClassCost> rootClasses = new ConcurrentHashMap<>();
+    private final ConcurrentHashMap<String, ClassCost> classes = new ConcurrentHashMap<>();
+
+    private final LongAdder classSizersComputed = new LongAdder();
+    private final LongAdder ignoreClassComputed = new LongAdder();
+    private final LongAdder shallowSizesComputed = new LongAdder();
+    private final LongAdder classesWarmedUp = new LongAdder();
+
+    MemoryMeterStatistics()
+    {
+        for (int i = 0; i < BUCKETS; i++)
+            latencies[i] = new LongAdder();
+    }
+
+    /**
+     * Records a deep measurement.
+     *
+     * @param histogram the objects and bytes of the measurement per class
+     */
+    void recordMeasurement(Class<?> rootClass, long objects, long bytes, long nanos, long visitedSetResizes, ClassHistogram histogram)
+    {
+        calls.increment();
+        this.objects.add(objects);
+        this.bytes.add(bytes);
+        this.nanos.add(nanos);
+        if (visitedSetResizes != 0)
+            this.visitedSetResizes.add(visitedSetResizes);
+        latencies[bucket(nanos)].increment();
+        maxLatency.accumulate(nanos);
+
+        ClassCost cost = cost(rootClasses, rootClass, MAX_ROOT_CLASSES);
+        cost.nanos.add(nanos);
+        cost.objects.add(objects);
+
+        histogram.forEach(entry -> {
+            ClassCost classCost = cost(classes, entry.getType(), MAX_CLASSES);
+            classCost.objects.add(entry.getInstances());
+            classCost.bytes.add(entry.getBytes());
+        });
+    }
+
+    private static ClassCost cost(ConcurrentHashMap<String, ClassCost> costs, Class<?> type, int maxClasses)
+    {
+        ClassCost cost = costs.get(type.getName());
+        if (cost == null)
+            cost = costs.computeIfAbsent(costs.size() < maxClasses ? type.getName() : OTHER, name -> new ClassCost());
+        return cost;
+    }
+
+    void classSizerComputed()
+    {
+        classSizersComputed.increment();
+    }
+
+    void ignoreClassComputed()
+    {
+        ignoreClassComputed.increment();
+    }
+
+    void shallowSizeComputed()
+    {
+        shallowSizesComputed.increment();
+    }
+
+    void classWarmedUp()
+    {
+        classesWarmedUp.increment();
+    }
+
+    /**
+     * Registers this instance with the platform MBean server.
+     *
+     * @return the name, under which this instance has been registered
+     * @throws IllegalStateException if the registration failed, for example because the name is already in use
+     */
+    ObjectName register(String name)
+    {
+        try
+        {
+            ObjectName objectName = new ObjectName(DOMAIN + ":type=MemoryMeter,name=" + ObjectName.quote(name));
+            ManagementFactory.getPlatformMBeanServer().registerMBean(this, objectName);
+            return objectName;
+        }
+        catch (JMException e)
+        {
+            throw new IllegalStateException("Could not register the MXBean for " + name, e);
+        }
+    }
+
+    /**
+     * @return the index of the histogram bucket for {@code nanos}
+     */
+    static int bucket(long nanos)
+    {
+        if (nanos < SUB_BUCKETS)
+            return (int) Math.max(0, nanos);
+        int exponent = 63 - Long.numberOfLeadingZeros(nanos);
+        int subBucket = (int) (nanos >>> (exponent - SUB_BUCKET_BITS)) & (SUB_BUCKETS - 1);
+        return (exponent - SUB_BUCKET_BITS + 1) * SUB_BUCKETS + subBucket;
+    }
+
+    /**
+     * @return the highest value that falls into the histogram bucket {@code index}
+     */
+    static long bucketUpperBound(int index)
+    {
+        if (index < SUB_BUCKETS)
+            return index;
+        int shift = index / SUB_BUCKETS - 1;
+        long lower = (long) (SUB_BUCKETS + index % SUB_BUCKETS) << shift;
+        return lower + (1L << shift) - 1;
+    }
+
+    private long percentile(double percentile)
+    {
+        long[] counts = new long[BUCKETS];
+        long total = 0;
+        for (int i = 0; i < BUCKETS; i++)
+            total += counts[i] = latencies[i].sum();
+        if (total == 0)
+            return 0;
+
+        long rank = (long) Math.ceil(total * percentile);
+        long seen = 0;
+        for (int i = 0; i < BUCKETS; i++)
+        {
+            seen += counts[i];
+            if (seen >= rank)
+                return Math.min(bucketUpperBound(i), getLatencyNanosMax());
+        }
+        return getLatencyNanosMax();
+    }
+
+    @Override
+    public long getCalls()
+    {
+        return calls.sum();
+    }
+
+    @Override
+    public long getObjects()
+    {
+        return objects.sum();
+    }
+
+    @Override
+    public long getBytes()
+    {
+        return bytes.sum();
+    }
+
+    @Override
+    public long getNanos()
+    {
+        return nanos.sum();
+    }
+
+    @Override
+    public long getVisitedSetResizes()
+    {
+        return visitedSetResizes.sum();
+    }
+
+    @Override
+    public long getLatencyNanosP50()
+    {
+        return percentile(0.5);
+    }
+
+    @Override
+    public long getLatencyNanosP99()
+    {
+        return percentile(0.99);
+    }
+
+    @Override
+    public long getLatencyNanosP999()
+    {
+        return percentile(0.999);
+    }
+
+    @Override
+    public long getLatencyNanosMax()
+    {
+        return maxLatency.get();
+    }
+
+    @Override
+    public Map<String, Long> getNanosByRootClass()
+    {
+        return byRootClass(cost -> cost.nanos.sum());
+    }
+
+    @Override
+    public Map<String, Long> getObjectsByRootClass()
+    {
+        return byRootClass(cost -> cost.objects.sum());
+    }
+
+    @Override
+    public Map<String, Long> getObjectsByClass()
+    {
+        return byClass(classes, cost -> cost.objects.sum());
+    }
+
+    @Override
+    public Map<String, Long> getBytesByClass()
+    {
+        return byClass(classes, cost -> cost.bytes.sum());
+    }
+
+    private Map<String, Long> byRootClass(ToLongFunction<ClassCost> value)
+    {
+        return byClass(rootClasses, value);
+    }
+
+    private static Map<String, Long> byClass(ConcurrentHashMap<String, ClassCost> costs, ToLongFunction<ClassCost> value)
+    {
+        Map<String, Long> result = new HashMap<>();
+        for (Map.Entry<String, ClassCost> entry : costs.entrySet())
+            result.put(entry.getKey(), value.applyAsLong(entry.getValue()));
+        return result;
+    }
+
+    @Override
+    public long getClassSizersComputed()
+    {
+        return classSizersComputed.sum();
+    }
+
+    @Override
+    public long getIgnoreClassComputed()
+    {
+        return ignoreClassComputed.sum();
+    }
+
+    @Override
+    public long getShallowSizesComputed()
+    {
+        return shallowSizesComputed.sum();
+    }
+
+    @Override
+    public long getClassesWarmedUp()
+    {
+        return classesWarmedUp.sum();
+    }
+
+    @Override
+    public long getSharedClassMetadataHits()
+    {
+        return ClassMetadata.hits.sum();
+    }
+
+    @Override
+    public long getSharedClassMetadataMisses()
+    {
+        return ClassMetadata.misses.sum();
+    }
+
+    @Override
+    public long getSharedClassMetadataEvictions()
+    {
+        return ClassMetadata.evictions.sum();
+    }
+
+    @Override
+    public int getSharedClassMetadataClasses()
+    {
+        return ClassMetadata.size();
+    }
+
+    /**
+     * Resets the counters. Measurements that run concurrently may be partially counted.
+     */
+    @Override
+    public void reset()
+    {
+        calls.reset();
+        objects.reset();
+        bytes.reset();
+        nanos.reset();
+        visitedSetResizes.reset();
+        for (LongAdder latency : latencies)
+            latency.reset();
+        maxLatency.reset();
+        rootClasses.clear();
+        classes.clear();
+    }
+
+    /**
+     * The costs of a root class, which only use {@link #nanos} and {@link #objects}, or of a traversed class, which
+     * only use {@link #objects} and {@link #bytes}.
+     */
+    private static final class ClassCost
+    {
+        final LongAdder nanos = new LongAdder();
+        final LongAdder objects = new LongAdder();
+        final LongAdder bytes = new LongAdder();
+    }
+}
@@ -9,7 +9,7 @@ final class MemoryMeterUnsafe extends MemoryMeterRef
 {
     private static boolean warned;
 
-    private static final Unsafe unsafe;
+    static final Unsafe unsafe;
 
     static
     {
@@ -34,7 +34,7 @@ final class MemoryMeterUnsafe extends MemoryMeterRef
 
     MemoryMeterUnsafe(Builder builder)
     {
-        super(builder, MemoryMeterUnsafe::sizeOf);
+        super(builder, MemoryMeterUnsafe::sizeOf, ClassMetadata.SHALLOW_SIZE_UNSAFE);
         maybeWarn();
     }
 
@@ -70,10 +70,10 @@ final class MemoryMeterUnsafe extends MemoryMeterRef
                     size = Math.max(size, unsafe.objectFieldOffset(f) + sizeOfField(f.getType()));
 
             if (size > 0)
-                return roundTo(size, SPEC.getObjectAlignment());
+                return roundTo(size, spec().getObjectAlignment());
             type = type.getSuperclass();
         }
 
-        return roundTo(SPEC.getObjectHeaderSize(), SPEC.getObjectAlignment());
+        return roundTo(spec().getObjectHeaderSize(), spec().getObjectAlignment());
     }
 }
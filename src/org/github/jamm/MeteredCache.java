@@ -0,0 +1,469 @@
+package org.github.jamm;
+
+import java.util.Objects;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongFieldUpdater;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * A concurrent cache, that is bounded by the memory usage of its entries as measured by a {@link MemoryMeter}.
+ * <p>
+ * Every entry is weighed once, when it is put into the cache, by measuring its key and its value deeply. The
+ * measurement happens on the calling thread without holding any lock, and the total weight of the cache is kept in a
+ * {@link LongAdder}, so that concurrent writers do not contend on a single counter. When the total weight exceeds the
+ * capacity, entries are evicted in {@link Eviction#LRU LRU} or {@link Eviction#CLOCK CLOCK} order until it fits again.
+ * As the total is only approximate while other threads modify the cache, the capacity may be exceeded briefly.
+ * <p>
+ * If a cached value is modified in place, {@link #reweigh(Object)} measures it again and adjusts the total weight.
+ * Objects shared between several entries are counted for every entry.
+ */
+public final class MeteredCache<K, V>
+{
+    /**
+     * The order, in which entries are evicted.
+     */
+    public enum Eviction
+    {
+        /**
+         * Evicts the least recently used entry first. Reads are recorded in striped buffers without locking and moved
+         * to the end of a list in batches, by whichever thread gets the lock of the list without waiting for it. A read
+         * is dropped, if its buffer is full, so the order is approximate under heavy concurrent reading.
+         */
+        LRU,
+
+        /**
+         * Evicts entries in insertion order, but gives entries, that have been read since the last time the eviction
+         * passed them, a second chance. Reads only set a flag and do not lock.
+         */
+        CLOCK
+    }
+
+    private final MemoryMeter meter;
+    private final long capacity;
+    private final ConcurrentHashMap<K, Node<K, V>> map = new ConcurrentHashMap<>();
+    private final LongAdder weight = new LongAdder();
+    private final Policy<K, V> policy;
+
+    /**
+     * @param meter the meter used to weigh the entries
+     * @param capacity the maximum total weight of the entries in bytes
+     * @param eviction the order, in which entries are evicted
+     */
+    public MeteredCache(MemoryMeter meter, long capacity, Eviction eviction)
+    {
+        if (capacity <= 0)
+            throw new IllegalArgumentException("capacity must be positive");
+        this.meter = Objects.requireNonNull(meter);
+        this.capacity = capacity;
+        this.policy = Objects.requireNonNull(eviction) == Eviction.LRU ? new Lru<>() : new Clock<>();
+    }
+
+    /**
+     * @return the value of the entry for {@code key}, or {@code null}, if there is none
+     */
+    public V get(K key)
+    {
+        Node<K, V> node = map.get(key);
+        if (node == null)
+            return null;
+        policy.onAccess(node);
+        return node.value;
+    }
+
+    /**
+     * Weighs the entry, adds it to the cache, replacing any previous entry for {@code key}, and evicts entries, if
+     * the capacity is exceeded. If the entry alone is heavier than the capacity, it is evicted as well.
+     *
+     * @return the previous value for {@code key}, or {@code null}, if there was none
+     */
+    public V put(K key, V value)
+    {
+        Node<K, V> node = new Node<>(key, value, weigh(key, value));
+        weight.add(node.weight);
+        Node<K, V> previous = map.put(key, node);
+        // only once the node is in the map, so that an eviction cannot miss it
+        policy.onInsert(node);
+        if (previous != null)
+            release(previous);
+        evict();
+        return previous != null ? previous.value : null;
+    }
+
+    /**
+     * Removes the entry for {@code key}.
+     *
+     * @return the value of the removed entry, or {@code null}, if there was none
+     */
+    public V remove(K key)
+    {
+        Node<K, V> node = map.remove(key);
+        if (node == null)
+            return null;
+        release(node);
+        return node.value;
+    }
+
+    /**
+     * Measures the entry for {@code key} again, after its value has been modified, adjusts the total weight and
+     * evicts entries, if the capacity is exceeded.
+     *
+     * @return {@code true}, if there was an entry for {@code key}
+     */
+    public boolean reweigh(K key)
+    {
+        Node<K, V> node = map.get(key);
+        if (node == null)
+            return false;
+
+        long newWeight = weigh(node.key, node.value);
+        long oldWeight;
+        do
+        {
+            oldWeight = node.weight;
+            if (oldWeight < 0)
+                return false; // removed concurrently
+        }
+        while (!Node.WEIGHT.compareAndSet(node, oldWeight, newWeight));
+        weight.add(newWeight - oldWeight);
+        evict();
+        return true;
+    }
+
+    /**
+     * Removes all entries.
+     */
+    public void clear()
+    {
+        for (K key : map.keySet())
+            remove(key);
+    }
+
+    /**
+     * @return the number of entries
+     */
+    public int size()
+    {
+        return map.size();
+    }
+
+    /**
+     * @return the total weight of the entries in bytes
+     */
+    public long weightedSize()
+    {
+        return weight.sum();
+    }
+
+    /**
+     * @return the maximum total weight of the entries in bytes
+     */
+    public long capacity()
+    {
+        return capacity;
+    }
+
+    private long weigh(K key, V value)
+    {
+        return meter.measureDeep(key) + meter.measureDeep(value);
+    }
+
+    private void evict()
+    {
+        while (weight.sum() > capacity)
+        {
+            Node<K, V> victim = policy.victim();
+            if (victim == null)
+                return;
+            if (map.remove(victim.key, victim))
+                release(victim);
+        }
+    }
+
+    /**
+     * Subtracts the weight of a node, that is no longer in the map, exactly once.
+     */
+    private void release(Node<K, V> node)
+    {
+        long nodeWeight = Node.WEIGHT.getAndSet(node, Node.REMOVED);
+        if (nodeWeight != Node.REMOVED)
+        {
+            weight.add(-nodeWeight);
+            policy.onRemove(node);
+        }
+    }
+
+    private static final class Node<K, V>
+    {
+        static final long REMOVED = -1;
+
+        @SuppressWarnings("rawtypes")
+        static final AtomicLongFieldUpdater<Node> WEIGHT = AtomicLongFieldUpdater.newUpdater(Node.class, "weight");
+
+        final K key;
+        final V value;
+
+        // the weight, or REMOVED once the node has been removed from the map
+        volatile long weight;
+
+        // CLOCK: whether the node has been read since the eviction passed it
+        volatile boolean referenced;
+
+        // LRU: the neighbours in the list, guarded by the policy
+        Node<K, V> prev;
+        Node<K, V> next;
+
+        Node(K key, V value, long weight)
+        {
+            this.key = key;
+            this.value = value;
+            this.weight = weight;
+        }
+
+        boolean isRemoved()
+        {
+            return weight == REMOVED;
+        }
+    }
+
+    private static abstract class Policy<K, V>
+    {
+        abstract void onInsert(Node<K, V> node);
+
+        abstract void onAccess(Node<K, V> node);
+
+        abstract void onRemove(Node<K, V> node);
+
+        /**
+         * @return the next node to evict, which may have been removed concurrently, or {@code null} if there is none
+         */
+        abstract Node<K, V> victim();
+    }
+
+    /**
+     * A doubly linked list from the least to the most recently used node, guarded by a lock.
+     * <p>
+     * Reads do not take the lock. They are recorded in one of several ring buffers, chosen by the reading thread, and
+     * the thread, that fills a buffer up to the drain threshold, replays the recorded reads on the list, if it gets the
+     * lock without waiting. Writes, which take the lock anyway, replay them as well, so that the eviction sees every
+     * read, that has not been dropped because its buffer was full.
+     */
+    private static final class Lru<K, V> extends Policy<K, V>
+    {
+        private static final int BUFFERS = Math.min(64, Integer.highestOneBit(4 * Runtime.getRuntime().availableProcessors() - 1) << 1);
+        private static final int BUFFER_SIZE = 16;
+        private static final int DRAIN_THRESHOLD = BUFFER_SIZE / 2;
+
+        private final ReentrantLock lock = new ReentrantLock();
+        private final Node<K, V> head = new Node<>(null, null, 0);
+        private final ReadBuffer[] readBuffers = new ReadBuffer[BUFFERS];
+
+        Lru()
+        {
+            head.prev = head;
+            head.next = head;
+            for (int i = 0; i < BUFFERS; i++)
+                readBuffers[i] = new ReadBuffer();
+        }
+
+        @Override
+        void onInsert(Node<K, V> node)
+        {
+            lock.lock();
+            try
+            {
+                drainReadBuffers();
+                // the node may have been removed, before it was inserted here
+                if (!node.isRemoved())
+                    linkLast(node);
+            }
+            finally
+            {
+                lock.unlock();
+            }
+        }
+
+        @Override
+        void onAccess(Node<K, V> node)
+        {
+            ReadBuffer buffer = readBuffers[(int) Thread.currentThread().getId() & (BUFFERS - 1)];
+            if (buffer.offer(node) >= DRAIN_THRESHOLD && lock.tryLock())
+            {
+                try
+                {
+                    drainReadBuffers();
+                }
+                finally
+                {
+                    lock.unlock();
+                }
+            }
+        }
+
+        @Override
+        void onRemove(Node<K, V> node)
+        {
+            lock.lock();
+            try
+            {
+                if (node.next != null)
+                    unlink(node);
+            }
+            finally
+            {
+                lock.unlock();
+            }
+        }
+
+        @Override
+        Node<K, V> victim()
+        {
+            lock.lock();
+            try
+            {
+                drainReadBuffers();
+                Node<K, V> node = head.next;
+                if (node == head)
+                    return null;
+                unlink(node);
+                return node;
+            }
+            finally
+            {
+                lock.unlock();
+            }
+        }
+
+        @SuppressWarnings("unchecked")
+        private void drainReadBuffers()
+        {
+            for (ReadBuffer buffer : readBuffers)
+            {
+                Node<K, V> node;
+                while ((node = (Node<K, V>) buffer.poll()) != null)
+                {
+                    // a node, that has been removed or evicted concurrently, must not be linked again
+                    if (node.next != null)
+                    {
+                        unlink(node);
+                        linkLast(node);
+                    }
+                }
+            }
+        }
+
+        private void linkLast(Node<K, V> node)
+        {
+            node.prev = head.prev;
+            node.next = head;
+            head.prev.next = node;
+            head.prev = node;
+        }
+
+        private void unlink(Node<K, V> node)
+        {
+            node.prev.next = node.next;
+            node.next.prev = node.prev;
+            node.prev = null;
+            node.next = null;
+        }
+    }
+
+    /**
+     * A lossy ring buffer of the nodes read, written by any thread and read by the thread holding the lock of the
+     * {@link Lru} list.
+     */
+    private static final class ReadBuffer
+    {
+        private final AtomicReferenceArray<Node<?, ?>> slots = new AtomicReferenceArray<>(Lru.BUFFER_SIZE);
+        private final AtomicLong writes = new AtomicLong();
+        // only written by the thread holding the lock
+        private volatile long reads;
+
+        /**
+         * Records a read, unless the buffer is full or another thread records a read at the same time.
+         *
+         * @return the number of reads recorded, but not polled yet
+         */
+        int offer(Node<?, ?> node)
+        {
+            long r = reads;
+            long w = writes.get();
+            if (w - r >= Lru.BUFFER_SIZE || !writes.compareAndSet(w, w + 1))
+                return (int) (w - r);
+            slots.lazySet((int) w & (Lru.BUFFER_SIZE - 1), node);
+            return (int) (w + 1 - r);
+        }
+
+        /**
+         * @return the node read first, that has not been polled yet, or {@code null}, if there is none
+         */
+        Node<?, ?> poll()
+        {
+            long r = reads;
+            int index = (int) r & (Lru.BUFFER_SIZE - 1);
+            // null, if the buffer is empty or the node has not been stored yet by the thread, that recorded it
+            Node<?, ?> node = slots.get(index);
+            if (r == writes.get() || node == null)
+                return null;
+            slots.lazySet(index, null);
+            reads = r + 1;
+            return node;
+        }
+    }
+
+    /**
+     * A queue of the nodes in insertion order. Removed nodes are skipped by the eviction and purged from the queue,
+     * once there are as many of them as live nodes.
+     */
+    private static final class Clock<K, V> extends Policy<K, V>
+    {
+        private final ConcurrentLinkedQueue<Node<K, V>> queue = new ConcurrentLinkedQueue<>();
+        private final AtomicInteger live = new AtomicInteger();
+        private final AtomicInteger removed = new AtomicInteger();
+
+        @Override
+        void onInsert(Node<K, V> node)
+        {
+            queue.add(node);
+            live.incrementAndGet();
+        }
+
+        @Override
+        void onAccess(Node<K, V> node)
+        {
+            // avoid writing to the shared node, if the flag is already set
+            if (!node.referenced)
+                node.referenced = true;
+        }
+
+        @Override
+        void onRemove(Node<K, V> node)
+        {
+            live.decrementAndGet();
+            if (removed.incrementAndGet() > Math.max(live.get(), 16))
+            {
+                removed.set(0);
+                queue.removeIf(Node::isRemoved);
+            }
+        }
+
+        @Override
+        Node<K, V> victim()
+        {
+            // every node gets a single second chance per pass, so that concurrent reads cannot stall the eviction
+            for (int i = live.get(); ; i--)
+            {
+                Node<K, V> node = queue.poll();
+                if (node == null || node.isRemoved() || !node.referenced || i <= 0)
+                    return node;
+                node.referenced = false;
+                queue.add(node);
+            }
+        }
+    }
+}
@@ -0,0 +1,197 @@
+package org.github.jamm;
+
+import java.lang.invoke.MethodHandle;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.Deque;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.PriorityQueue;
+
+/**
+ * Implementation of {@link MemoryMeter#measureDeepWithPaths(Object, int)}.
+ * <p>
+ * The object graph is traversed depth-first like {@link MemoryMeter#measureDeep(Object)} does. In addition, a chain
+ * of frames from the root to the object measured last is maintained, one frame per object on that chain, that sums up
+ * the sizes of the subtree of its object. A frame is completed once all the children its object has pushed have been
+ * popped from the stack, its sum is then added to its parent frame and offered to a min-heap of the {@code topN}
+ * biggest subtrees. Apart from the visited set, the memory needed is therefore proportional to the depth of the graph
+ * and to {@code topN}, as only the frames in the heap and their parents are retained.
+ * <p>
+ * The paths are only resolved for the final entries, by looking up which field of a parent refers to the child.
+ */
+final class PathTracer
+{
+    private static final Comparator<Frame> BY_BYTES = Comparator.comparingLong(frame -> frame.bytes);
+
+    private static final MethodHandle[] NO_GETTERS = new MethodHandle[0];
+
+    private final MemoryMeterBase meter;
+    private final int topN;
+    private final PriorityQueue<Frame> largest;
+
+    // per class, the getters of the reference fields, only used to resolve the paths
+    private final Map<Class<?>, MethodHandle[]> getters = new HashMap<>();
+
+    PathTracer(MemoryMeterBase meter, int topN)
+    {
+        this.meter = meter;
+        this.topN = topN;
+        this.largest = new PriorityQueue<>(Math.max(1, topN), BY_BYTES);
+    }
+
+    LargestSubtrees measure(Object root)
+    {
+        if (meter.ignoreClass.get(root.getClass()))
+            return new LargestSubtrees(0, 0, new ArrayList<>());
+
+        VisitedTracker tracker = meter.visitedSetStrategy.create(0);
+        tracker.add(root);
+
+        Deque<Object> stack = new ArrayDeque<>();
+        stack.push(root);
+
+        // the innermost frame, whose subtree is not complete yet
+        Frame current = null;
+        long instances = 0;
+        Object object;
+        int base;
+        while (!stack.isEmpty())
+        {
+            // complete the frames, whose children have all been popped
+            while (current != null && current.stackBase >= stack.size())
+                current = complete(current);
+
+            object = stack.pop();
+            base = stack.size();
+            current = new Frame(object, current, base, meter.measureAndPushChildren(object, tracker, stack));
+            instances++;
+        }
+
+        Frame rootFrame = null;
+        while (current != null)
+        {
+            rootFrame = current;
+            current = complete(current);
+        }
+
+        List<Frame> frames = new ArrayList<>(largest);
+        frames.sort(Collections.reverseOrder(BY_BYTES));
+        List<LargestSubtrees.Entry> entries = new ArrayList<>(frames.size());
+        for (Frame frame : frames)
+            entries.add(new LargestSubtrees.Entry(path(frame), frame.object.getClass(), frame.shallowBytes, frame.bytes));
+
+        return new LargestSubtrees(rootFrame.bytes, instances, entries);
+    }
+
+    /**
+     * Adds the subtree of {@code frame} to its parent and offers it to the heap, unless it is the root.
+     *
+     * @return the parent of {@code frame}
+     */
+    private Frame complete(Frame frame)
+    {
+        Frame parent = frame.parent;
+        if (parent == null)
+            return null;
+
+        parent.bytes += frame.bytes;
+        if (largest.size() < topN)
+        {
+            largest.add(frame);
+        }
+        else if (topN > 0 && frame.bytes > largest.peek().bytes)
+        {
+            largest.poll();
+            largest.add(frame);
+        }
+        return parent;
+    }
+
+    private String path(Frame frame)
+    {
+        List<Frame> chain = new ArrayList<>();
+        for (; frame.parent != null; frame = frame.parent)
+            chain.add(frame);
+
+        StringBuilder path = new StringBuilder("root");
+        for (int i = chain.size() - 1; i >= 0; i--)
+            appendReference(path, chain.get(i).parent.object, chain.get(i).object);
+        return path.toString();
+    }
+
+    /**
+     * Appends the name of the field of {@code parent} or the index in the array {@code parent}, that refers to
+     * {@code child}.
+     */
+    private void appendReference(StringBuilder path, Object parent, Object child)
+    {
+        Class<?> type = parent.getClass();
+        if (type.isArray())
+        {
+            Object[] array = (Object[]) parent;
+            for (int i = 0; i < array.length; i++)
+                if (array[i] == child)
+                {
+                    path.append('[').append(i).append(']');
+                    return;
+                }
+            path.append("[?]");
+            return;
+        }
+
+        ClassMetadata metadata = ClassMetadata.get(type, meter);
+        MethodHandle[] typeGetters = getters.get(type);
+        if (typeGetters == null)
+        {
+            try
+            {
+                typeGetters = metadata.getters();
+            }
+            catch (RuntimeException e)
+            {
+                // the fields cannot be read through reflection, the sizer of the class did not use them
+                typeGetters = NO_GETTERS;
+            }
+            getters.put(type, typeGetters);
+        }
+
+        try
+        {
+            for (int i = 0; i < typeGetters.length; i++)
+                if ((Object) typeGetters[i].invokeExact(parent) == child)
+                {
+                    path.append('.').append(metadata.fields.get(i).getName());
+                    return;
+                }
+        }
+        catch (Throwable t)
+        {
+            // fall through
+        }
+        path.append(".?");
+    }
+
+    private static final class Frame
+    {
+        final Object object;
+        final Frame parent;
+        // the size of the stack, when the children of the object had not been pushed yet
+        final int stackBase;
+        final long shallowBytes;
+        // the size of the subtree, complete once the frame has been completed
+        long bytes;
+
+        Frame(Object object, Frame parent, int stackBase, long shallowBytes)
+        {
+            this.object = object;
+            this.parent = parent;
+            this.stackBase = stackBase;
+            this.shallowBytes = shallowBytes;
+            this.bytes = shallowBytes;
+        }
+    }
+}
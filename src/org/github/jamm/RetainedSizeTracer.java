@@ -0,0 +1,160 @@
+package org.github.jamm;
+
+import java.util.ArrayDeque;
+import java.util.Deque;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Implementation of {@link MemoryMeter#measureRetained(List)}.
+ * <p>
+ * The roots are traversed one after the other like {@link MemoryMeter#measureDeep(Object)} does, each one with its
+ * own visited set, but without following other roots. A table shared by all traversals labels every object with the
+ * index of the only root it has been reached from, or as shared, once a second root reaches it. As a traversal does
+ * not pass through other roots, an object keeps the label of a root exactly if that root dominates it. The retained
+ * size of a root is the sum of the shallow sizes of the objects with its label, which is maintained while the labels
+ * change, so that no second pass over the objects is needed.
+ */
+final class RetainedSizeTracer
+{
+    private final MemoryMeterBase meter;
+    private final List<?> roots;
+    private final Map<Object, Integer> rootIndexes;
+    private final Labels labels = new Labels();
+
+    private final long[] retainedBytes;
+    private final long[] reachableBytes;
+    private final boolean[] referencedByOtherRoots;
+    private long totalBytes;
+    private long sharedBytes;
+
+    RetainedSizeTracer(MemoryMeterBase meter, List<?> roots)
+    {
+        this.meter = meter;
+        this.roots = roots;
+        this.rootIndexes = new IdentityHashMap<>(roots.size());
+        for (int i = 0; i < roots.size(); i++)
+            if (rootIndexes.put(roots.get(i), i) != null)
+                throw new IllegalArgumentException("root " + i + " is contained more than once");
+        this.retainedBytes = new long[roots.size()];
+        this.reachableBytes = new long[roots.size()];
+        this.referencedByOtherRoots = new boolean[roots.size()];
+    }
+
+    RetainedSizes measure()
+    {
+        for (int i = 0; i < roots.size(); i++)
+            traverse(i, roots.get(i));
+        return new RetainedSizes(totalBytes, sharedBytes, retainedBytes, reachableBytes, referencedByOtherRoots);
+    }
+
+    private void traverse(int index, Object root)
+    {
+        if (meter.ignoreClass.get(root.getClass()))
+            return;
+
+        VisitedTracker tracker = meter.visitedSetStrategy.create(0);
+        tracker.add(root);
+
+        Deque<Object> stack = new ArrayDeque<>();
+        stack.push(root);
+
+        Object current;
+        Integer other;
+        long size;
+        int previous;
+        while (!stack.isEmpty())
+        {
+            current = stack.pop();
+            if (current != root && (other = rootIndexes.get(current)) != null)
+            {
+                referencedByOtherRoots[other] = true;
+                continue;
+            }
+
+            size = meter.measureAndPushChildren(current, tracker, stack);
+            reachableBytes[index] += size;
+            previous = labels.label(current, index);
+            if (previous == Labels.ABSENT)
+            {
+                totalBytes += size;
+                retainedBytes[index] += size;
+            }
+            else if (previous != Labels.SHARED)
+            {
+                // reached from a second root, no longer retained by the first one
+                retainedBytes[previous] -= size;
+                sharedBytes += size;
+            }
+        }
+    }
+
+    /**
+     * Identity based map from objects to labels, implemented as an open-addressing table, that is kept at most half
+     * full, with the labels in a parallel primitive array.
+     */
+    static final class Labels
+    {
+        static final int ABSENT = -1;
+        static final int SHARED = -2;
+
+        private Object[] keys = new Object[64];
+        private int[] values = new int[64];
+        private int size;
+
+        /**
+         * Labels {@code o} with {@code label}, if it has no label yet, or as {@link #SHARED}, if it has another label.
+         *
+         * @return the previous label or {@link #ABSENT}
+         */
+        int label(Object o, int label)
+        {
+            int mask = keys.length - 1;
+            int i = System.identityHashCode(o) & mask;
+            Object key;
+            while ((key = keys[i]) != null)
+            {
+                if (key == o)
+                {
+                    int previous = values[i];
+                    if (previous != label)
+                        values[i] = SHARED;
+                    return previous;
+                }
+                i = (i + 1) & mask;
+            }
+
+            keys[i] = o;
+            values[i] = label;
+            if (++size * 2 > keys.length)
+                resize();
+            return ABSENT;
+        }
+
+        private void resize()
+        {
+            Object[] oldKeys = keys;
+            int[] oldValues = values;
+            int newLength = oldKeys.length << 1;
+            if (newLength < 0)
+                throw new IllegalStateException("too many objects visited");
+
+            keys = new Object[newLength];
+            values = new int[newLength];
+            int mask = newLength - 1;
+            int i;
+            for (int j = 0; j < oldKeys.length; j++)
+            {
+                if (oldKeys[j] != null)
+                {
+                    i = System.identityHashCode(oldKeys[j]) & mask;
+                    while (keys[i] != null)
+                        i = (i + 1) & mask;
+                    keys[i] = oldKeys[j];
+                    values[i] = oldValues[j];
+                }
+            }
+        }
+    }
+}
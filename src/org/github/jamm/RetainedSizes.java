@@ -0,0 +1,105 @@
+package org.github.jamm;
+
+/**
+ * The memory usage of several roots measured together, returned by {@link MemoryMeter#measureRetained(java.util.List)}.
+ * <p>
+ * For every root, the objects reachable from it are split into the objects that are retained by the root alone and
+ * the objects that are shared with other roots. An object is retained by a root, if every path from any of the roots
+ * to the object passes through that root, i.e. if the root dominates the object in the graph spanned by all roots.
+ * Paths are not followed through other roots: a root referenced by another root is neither retained nor shared by
+ * the referencing root, but {@link #isReferencedByOtherRoots(int)} reports that the root will not become unreachable
+ * by just dropping it.
+ */
+public final class RetainedSizes
+{
+    private final long totalBytes;
+    private final long sharedBytes;
+    private final long[] retainedBytes;
+    private final long[] reachableBytes;
+    private final boolean[] referencedByOtherRoots;
+
+    RetainedSizes(long totalBytes, long sharedBytes, long[] retainedBytes, long[] reachableBytes, boolean[] referencedByOtherRoots)
+    {
+        this.totalBytes = totalBytes;
+        this.sharedBytes = sharedBytes;
+        this.retainedBytes = retainedBytes;
+        this.reachableBytes = reachableBytes;
+        this.referencedByOtherRoots = referencedByOtherRoots;
+    }
+
+    /**
+     * @return the number of roots
+     */
+    public int size()
+    {
+        return retainedBytes.length;
+    }
+
+    /**
+     * @return the memory usage of all roots together, counting every object once
+     */
+    public long getTotalBytes()
+    {
+        return totalBytes;
+    }
+
+    /**
+     * @return the memory usage of the objects reachable from more than one root
+     */
+    public long getSharedBytes()
+    {
+        return sharedBytes;
+    }
+
+    /**
+     * @return the memory usage of the objects retained by the root with the given index alone, which would be freed,
+     * if the root became unreachable
+     */
+    public long getRetainedBytes(int root)
+    {
+        return retainedBytes[root];
+    }
+
+    /**
+     * @return the memory usage of the objects reachable from the root with the given index, which are also reachable
+     * from other roots
+     */
+    public long getSharedBytes(int root)
+    {
+        return reachableBytes[root] - retainedBytes[root];
+    }
+
+    /**
+     * @return the memory usage of all objects reachable from the root with the given index, without following other
+     * roots
+     */
+    public long getReachableBytes(int root)
+    {
+        return reachableBytes[root];
+    }
+
+    /**
+     * @return {@code true}, if the root with the given index is referenced by the objects of another root, so that
+     * dropping it alone does not free any memory
+     */
+    public boolean isReferencedByOtherRoots(int root)
+    {
+        return referencedByOtherRoots[root];
+    }
+
+    @Override
+    public String toString()
+    {
+        StringBuilder sb = new StringBuilder();
+        sb.append(String.format("%5s %15s %15s %15s%n", "root", "#retained bytes", "#shared bytes", "#reachable bytes"));
+        for (int i = 0; i < size(); i++)
+            sb.append(String.format("%5d %15d %15d %15d%s%n",
+                                    i,
+                                    retainedBytes[i],
+                                    getSharedBytes(i),
+                                    reachableBytes[i],
+                                    referencedByOtherRoots[i] ? "  (referenced by other roots)" : ""));
+        sb.append(String.format("%5s %15d %15d %15d%n", "total", totalBytes - sharedBytes, sharedBytes, totalBytes));
+        return sb.toString();
+    }
+}
@@ -0,0 +1,153 @@
+package org.github.jamm;
+
+import java.util.Arrays;
+
+/**
+ * Visited set for very large object graphs.
+ * <p>
+ * Objects are distributed over a fixed number of open-addressing segments using the upper bits of their (spread)
+ * identity hash code. Compared to {@link MemoryMeterBase.VisitedSet} this implementation
+ * <ul>
+ *     <li>keeps the tables up to 2/3 full instead of 1/3, which halves the heap needed per visited object,</li>
+ *     <li>only resizes one segment at a time, so a resize temporarily needs a fraction of the memory of the whole set
+ *     instead of twice the memory of the whole set and</li>
+ *     <li>is not limited to a single array, so it can hold far more than a billion objects.</li>
+ * </ul>
+ * Segments are allocated lazily and the per-segment bookkeeping is kept in primitive arrays.
+ */
+final class SegmentedVisitedSet implements VisitedTracker
+{
+    private static final int SEGMENT_BITS = 8;
+    private static final int SEGMENTS = 1 << SEGMENT_BITS;
+    private static final int MIN_SEGMENT_LENGTH = 16;
+    private static final int MAX_SEGMENT_LENGTH = 1 << 30;
+
+    private final Object[][] tables = new Object[SEGMENTS][];
+    private final int[] sizes = new int[SEGMENTS];
+    // per segment, the number of consecutive clears, that removed at most a quarter of what the segment can hold
+    private final byte[] underUsedClears = new byte[SEGMENTS];
+    private final int initialSegmentLength;
+    long size;
+    private int resizes;
+
+    SegmentedVisitedSet(int expectedObjects)
+    {
+        initialSegmentLength = segmentLengthFor(expectedObjects / SEGMENTS + 1);
+    }
+
+    /**
+     * @return the segment length needed to hold the given number of objects
+     */
+    static int segmentLengthFor(long objects)
+    {
+        long n = Math.max(MIN_SEGMENT_LENGTH, (objects * 3 + 1) / 2);
+        if (n >= MAX_SEGMENT_LENGTH)
+            return MAX_SEGMENT_LENGTH;
+        return Integer.highestOneBit((int) n - 1) << 1;
+    }
+
+    @Override
+    public boolean add(Object o)
+    {
+        int hash = System.identityHashCode(o);
+        int segment = (hash * 0x9E3779B9) >>> (32 - SEGMENT_BITS);
+
+        Object[] tab = tables[segment];
+        if (tab == null)
+            tables[segment] = tab = new Object[initialSegmentLength];
+
+        int mask = tab.length - 1;
+        int i = hash & mask;
+        Object item;
+        while ((item = tab[i]) != null)
+        {
+            if (item == o)
+                return false;
+            i = (i + 1) & mask;
+        }
+
+        int s = sizes[segment] + 1;
+        // keep at least 1/3 of the slots 'null', so that a lookup does not have to check too many slots
+        if (s * 3L > tab.length * 2L)
+        {
+            tab = resize(segment, tab);
+            mask = tab.length - 1;
+            i = hash & mask;
+            while (tab[i] != null)
+                i = (i + 1) & mask;
+        }
+
+        tab[i] = o;
+        sizes[segment] = s;
+        size++;
+        return true;
+    }
+
+    private Object[] resize(int segment, Object[] tab)
+    {
+        if (tab.length == MAX_SEGMENT_LENGTH)
+            throw new IllegalStateException("too many objects visited");
+
+        resizes++;
+        int newLength = tab.length << 1;
+        Object[] n = new Object[newLength];
+        int mask = newLength - 1;
+        int i;
+        for (Object o : tab)
+        {
+            if (o != null)
+            {
+                i = System.identityHashCode(o) & mask;
+                while (n[i] != null)
+                    i = (i + 1) & mask;
+                n[i] = o;
+            }
+        }
+        tables[segment] = n;
+        return n;
+    }
+
+    @Override
+    public int resizes()
+    {
+        return resizes;
+    }
+
+    @Override
+    public boolean clear(int maxRetainedObjects)
+    {
+        int maxRetainedLength = Math.max(initialSegmentLength, segmentLengthFor(maxRetainedObjects / SEGMENTS + 1));
+        boolean kept = true;
+        Object[] tab;
+        for (int segment = 0; segment < SEGMENTS; segment++)
+        {
+            tab = tables[segment];
+            if (tab == null)
+                continue;
+            if (tab.length > maxRetainedLength)
+            {
+                // allocated again lazily
+                tables[segment] = null;
+                underUsedClears[segment] = 0;
+                kept = false;
+            }
+            else if (tab.length > initialSegmentLength && segmentLengthFor(sizes[segment]) * 4 <= tab.length
+                     && ++underUsedClears[segment] >= SHRINK_AFTER_CLEARS)
+            {
+                // way too big for a while, do not let clearing it make the following measurements expensive
+                tables[segment] = new Object[tab.length / 2];
+                underUsedClears[segment] = 0;
+            }
+            else
+            {
+                if (segmentLengthFor(sizes[segment]) * 4 > tab.length)
+                    underUsedClears[segment] = 0;
+                if (sizes[segment] > 0)
+                    Arrays.fill(tab, null);
+            }
+            sizes[segment] = 0;
+        }
+        size = 0;
+        return kept;
+    }
+}
@@ -0,0 +1,82 @@
+package org.github.jamm;
+
+/**
+ * Result of {@link MemoryMeter#measureDeepSampled(Object, double, int)}: the estimated memory usage of an object
+ * graph and the standard error of that estimate.
+ */
+public final class SizeEstimate
+{
+    // z-value of the two-sided 95% confidence interval of the normal distribution
+    private static final double Z_95 = 1.96;
+
+    private final long estimate;
+    private final double standardError;
+    private final int sampledArrays;
+
+    SizeEstimate(long estimate, double standardError, int sampledArrays)
+    {
+        this.estimate = estimate;
+        this.standardError = standardError;
+        this.sampledArrays = sampledArrays;
+    }
+
+    /**
+     * @return the estimated memory usage in bytes
+     */
+    public long getEstimate()
+    {
+        return estimate;
+    }
+
+    /**
+     * @return the estimated standard error of {@link #getEstimate()} in bytes
+     */
+    public double getStandardError()
+    {
+        return standardError;
+    }
+
+    /**
+     * @return the lower bound of the 95% confidence interval of the memory usage in bytes
+     */
+    public long getLowerBound()
+    {
+        return Math.max(0L, (long) Math.floor(estimate - Z_95 * standardError));
+    }
+
+    /**
+     * @return the upper bound of the 95% confidence interval of the memory usage in bytes
+     */
+    public long getUpperBound()
+    {
+        return (long) Math.ceil(estimate + Z_95 * standardError);
+    }
+
+    /**
+     * @return the number of arrays whose elements have been sampled instead of measured
+     */
+    public int getSampledArrays()
+    {
+        return sampledArrays;
+    }
+
+    /**
+     * @return {@code true} if no array has been sampled, i.e. the estimate is the exact result of
+     * {@link MemoryMeter#measureDeep(Object)}
+     */
+    public boolean isExact()
+    {
+        return sampledArrays == 0;
+    }
+
+    @Override
+    public String toString()
+    {
+        return "SizeEstimate{" +
+               "estimate=" + estimate +
+               ", standardError=" + standardError +
+               ", 95% interval=[" + getLowerBound() + ", " + getUpperBound() + ']' +
+               ", sampledArrays=" + sampledArrays +
+               '}';
+    }
+}
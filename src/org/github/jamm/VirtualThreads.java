@@ -0,0 +1,76 @@
+package org.github.jamm;
+
+import java.lang.invoke.MethodHandle;
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.MethodType;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ForkJoinPool;
+
+/**
+ * Access to virtual threads, which are only available on Java 21+, without depending on them at compile time.
+ */
+final class VirtualThreads
+{
+    // (Thread)boolean, null if virtual threads are not available
+    private static final MethodHandle IS_VIRTUAL;
+
+    // one executor starting a new virtual thread per task, shared by all meters, null if not available
+    private static final Executor EXECUTOR;
+
+    static
+    {
+        MethodHandle isVirtual = null;
+        Executor executor = null;
+        try
+        {
+            MethodHandles.Lookup lookup = MethodHandles.publicLookup();
+            MethodHandle newExecutor = lookup.findStatic(Executors.class,
+                                                         "newVirtualThreadPerTaskExecutor",
+                                                         MethodType.methodType(ExecutorService.class));
+            isVirtual = lookup.findVirtual(Thread.class, "isVirtual", MethodType.methodType(boolean.class));
+            executor = (Executor) newExecutor.invoke();
+        }
+        catch (Throwable t)
+        {
+            // Java < 21
+            isVirtual = null;
+            executor = null;
+        }
+        IS_VIRTUAL = isVirtual;
+        EXECUTOR = executor;
+    }
+
+    private VirtualThreads()
+    {
+    }
+
+    static boolean isAvailable()
+    {
+        return EXECUTOR != null;
+    }
+
+    /**
+     * @return an executor starting a new virtual thread per task, if virtual threads are available, the common
+     * {@link ForkJoinPool} otherwise
+     */
+    static Executor defaultExecutor()
+    {
+        return EXECUTOR != null ? EXECUTOR : ForkJoinPool.commonPool();
+    }
+
+    static boolean isVirtual(Thread thread)
+    {
+        if (IS_VIRTUAL == null)
+            return false;
+        try
+        {
+            return (boolean) IS_VIRTUAL.invokeExact(thread);
+        }
+        catch (Throwable t)
+        {
+            return false;
+        }
+    }
+}
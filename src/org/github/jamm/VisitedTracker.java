@@ -0,0 +1,35 @@
+package org.github.jamm;
+
+/**
+ * Identity based set of the objects already visited by a deep measurement.
+ */
+interface VisitedTracker
+{
+    /**
+     * @return {@code true} if {@code o} has not been visited before, {@code false} otherwise
+     */
+    boolean add(Object o);
+
+    /**
+     * Removes all objects. Tables that have grown beyond what is needed to hold {@code maxRetainedObjects} objects
+     * are replaced with their initial, small variants. Tables that have been much bigger than what was needed for the
+     * objects removed by {@link #SHRINK_AFTER_CLEARS} consecutive clears are halved, so that the time needed to clear
+     * them follows the number of objects, without reallocating them when big and small measurements alternate.
+     *
+     * @return {@code false} if any table has been replaced, because it had grown beyond {@code maxRetainedObjects},
+     * {@code true} otherwise
+     */
+    boolean clear(int maxRetainedObjects);
+
+    /**
+     * The number of consecutive clears, which removed at most a quarter of what a table could hold, before the
+     * table is halved.
+     */
+    int SHRINK_AFTER_CLEARS = 8;
+
+    /**
+     * @return the number of times a table had to grow since this tracker has been created, not reset by
+     * {@link #clear(int)}
+     */
+    int resizes();
+}
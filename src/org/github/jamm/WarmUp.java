@@ -0,0 +1,203 @@
+package org.github.jamm;
+
+import java.util.Collections;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.IntFunction;
+
+/**
+ * A running or completed pre-computation of the metadata, that a meter needs to measure the instances of a number of
+ * classes, returned by {@link MemoryMeter#warmUp(java.util.Collection, int)} and its variants.
+ * <p>
+ * The first deep measurement, that meets a class, reflects its fields and those of its superclasses, makes them
+ * accessible and creates the getters reading them. Warming up does this ahead of time for the given classes, on a few
+ * daemon threads, so that the first measurements after the start of an application do not pay for it. The metadata
+ * ends up in the registry shared by all meters with the same configuration, and in the meter itself. The shallow sizes
+ * of the instances are precomputed as well, unless the meter uses instrumentation, which can only measure instances.
+ * <p>
+ * The progress can be followed through the getters of this class, which may be called at any time.
+ */
+public final class WarmUp
+{
+    private final int classes;
+    private final AtomicInteger warmed = new AtomicInteger();
+    private final AtomicInteger skipped = new AtomicInteger();
+    private final Map<String, Throwable> failures = new ConcurrentHashMap<>();
+    private final CompletableFuture<WarmUp> done = new CompletableFuture<>();
+    private final long startNanos = System.nanoTime();
+    private volatile long nanos = -1;
+
+    private WarmUp(int classes)
+    {
+        this.classes = classes;
+    }
+
+    /**
+     * Warms up the {@code count} classes returned by {@code resolver} on {@code parallelism} new daemon threads, which
+     * take the next class from a shared index until all classes have been warmed up.
+     *
+     * @param resolver returns the class at the given index, may throw, if the class cannot be loaded
+     */
+    static WarmUp start(MemoryMeterBase meter, int count, IntFunction<Class<?>> resolver, int parallelism)
+    {
+        if (parallelism <= 0)
+            throw new IllegalArgumentException("parallelism must be positive");
+
+        WarmUp warmUp = new WarmUp(count);
+        int threads = Math.min(parallelism, count);
+        if (threads == 0)
+        {
+            warmUp.complete();
+            return warmUp;
+        }
+
+        AtomicInteger next = new AtomicInteger();
+        AtomicInteger running = new AtomicInteger(threads);
+        for (int i = 0; i < threads; i++)
+        {
+            Thread thread = new Thread(() -> {
+                try
+                {
+                    for (int index; (index = next.getAndIncrement()) < count; )
+                        warmUp.warmUp(meter, index, resolver);
+                }
+                finally
+                {
+                    if (running.decrementAndGet() == 0)
+                        warmUp.complete();
+                }
+            }, "jamm-warm-up-" + i);
+            thread.setDaemon(true);
+            thread.start();
+        }
+        return warmUp;
+    }
+
+    private void warmUp(MemoryMeterBase meter, int index, IntFunction<Class<?>> resolver)
+    {
+        Class<?> type = null;
+        try
+        {
+            type = resolver.apply(index);
+            if (meter.warmUp(type))
+                warmed.incrementAndGet();
+            else
+                skipped.incrementAndGet();
+        }
+        catch (RuntimeException | LinkageError e)
+        {
+            failures.put(type != null ? type.getName() : "#" + index, e);
+        }
+    }
+
+    private void complete()
+    {
+        nanos = System.nanoTime() - startNanos;
+        done.complete(this);
+    }
+
+    /**
+     * @return the number of classes to warm up
+     */
+    public int getClasses()
+    {
+        return classes;
+    }
+
+    /**
+     * @return the number of classes, whose metadata has been computed or was already known
+     */
+    public int getWarmedClasses()
+    {
+        return warmed.get();
+    }
+
+    /**
+     * @return the number of classes, that do not need any metadata, because they are interfaces, arrays or primitive
+     * types, or because the meter ignores their instances
+     */
+    public int getSkippedClasses()
+    {
+        return skipped.get();
+    }
+
+    /**
+     * @return the number of classes, that could not be loaded or reflected
+     */
+    public int getFailedClasses()
+    {
+        return failures.size();
+    }
+
+    /**
+     * @return the exceptions by the name of the class, that could not be loaded or reflected, or by {@code #index}, if
+     * the class could not be loaded
+     */
+    public Map<String, Throwable> getFailures()
+    {
+        return Collections.unmodifiableMap(failures);
+    }
+
+    /**
+     * @return whether all classes have been warmed up
+     */
+    public boolean isDone()
+    {
+        return done.isDone();
+    }
+
+    /**
+     * @return the time, that the warm up has taken so far in nanoseconds
+     */
+    public long getNanos()
+    {
+        long n = nanos;
+        return n >= 0 ? n : System.nanoTime() - startNanos;
+    }
+
+    /**
+     * @return a future completed with this instance, once all classes have been warmed up
+     */
+    public CompletableFuture<WarmUp> future()
+    {
+        return done;
+    }
+
+    /**
+     * Waits until all classes have been warmed up.
+     *
+     * @return this instance
+     * @throws TimeoutException if the warm up did not complete within the timeout
+     * @throws InterruptedException if the current thread has been interrupted while waiting
+     */
+    public WarmUp await(long timeout, TimeUnit unit) throws TimeoutException, InterruptedException
+    {
+        try
+        {
+            return done.get(timeout, unit);
+        }
+        catch (ExecutionException e)
+        {
+            // never completed exceptionally
+            throw new IllegalStateException(e);
+        }
+    }
+
+    @Override
+    public String toString()
+    {
+        return "WarmUp{" +
+               "classes=" + classes +
+               ", warmed=" + warmed.get() +
+               ", skipped=" + skipped.get() +
+               ", failed=" + failures.size() +
+               ", nanos=" + getNanos() +
+               ", done=" + isDone() +
+               '}';
+    }
+}
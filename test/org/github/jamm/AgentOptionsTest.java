@@ -0,0 +1,125 @@
+package org.github.jamm;
+
+import java.util.Arrays;
+import java.util.Collections;
+
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+public class AgentOptionsTest
+{
+    static class Ignored
+    {
+    }
+
+    static class Holder
+    {
+        Object ignored = new Ignored();
+        Object kept = new Object();
+    }
+
+    @Test
+    public void testDefaults()
+    {
+        for (String options : Arrays.asList(null, "", "  "))
+        {
+            AgentOptions parsed = AgentOptions.parse(options);
+            assertEquals(MemoryMeter.Guess.BEST, parsed.guess);
+            assertEquals(MemoryMeter.BB_MODE_NORMAL, parsed.byteBufferMode);
+            assertEquals(Collections.emptyList(), parsed.ignoredClasses);
+            assertFalse(parsed.statistics);
+            assertNull(parsed.mbeanName);
+            assertEquals(2, parsed.warmUpThreads);
+        }
+    }
+
+    @Test
+    public void testParse()
+    {
+        AgentOptions parsed = AgentOptions.parse("guess=always-spec, visited-set=segmented,bytebuffers=omit-shared,"
+                                                 + "ignore=com.example.Cache;com.example.generated.*,ignore-known-singletons,"
+                                                 + "statistics=false,mbean=default,metrics-interval=60,metrics-file=/tmp/jamm.log,"
+                                                 + "warmup=com.example;org.example,warmup-threads=4");
+        assertEquals(MemoryMeter.Guess.ALWAYS_SPEC, parsed.guess);
+        assertEquals(MemoryMeter.VisitedSetStrategy.SEGMENTED, parsed.visitedSetStrategy);
+        assertEquals(MemoryMeter.BB_MODE_OMIT_SHARED, parsed.byteBufferMode);
+        assertEquals(Arrays.asList("com.example.Cache", "com.example.generated.*"), parsed.ignoredClasses);
+        assertTrue(parsed.ignoreKnownSingletons);
+        assertFalse(parsed.ignoreDontMeasure);
+        assertFalse(parsed.statistics);
+        assertEquals("default", parsed.mbeanName);
+        assertEquals(60, parsed.metricsIntervalSeconds);
+        assertEquals("/tmp/jamm.log", parsed.metricsFile);
+        assertEquals(Arrays.asList("com.example", "org.example"), parsed.warmUpPackages);
+        assertEquals(4, parsed.warmUpThreads);
+
+        MemoryMeter meter = parsed.builder().build();
+        assertEquals(MemoryMeter.Guess.ALWAYS_SPEC, meter.getGuess());
+        assertEquals(MemoryMeter.BB_MODE_OMIT_SHARED, meter.byteBufferMode);
+        assertTrue(meter.ignoreKnownSingletons);
+        // implied by mbean and metrics-interval
+        assertEquals(0, meter.statistics().getCalls());
+    }
+
+    @Test
+    public void testInvalid()
+    {
+        for (String options : Arrays.asList("unknown", "guess", "guess=never-heard-of", "bytebuffers=all",
+                                            "statistics=yes", "warmup-threads=0", "metrics-interval=soon", "ignore="))
+        {
+            try
+            {
+                AgentOptions.parse(options);
+                fail(options);
+            }
+            catch (IllegalArgumentException e)
+            {
+                assertTrue(e.getMessage(), e.getMessage().startsWith("Invalid jamm agent option"));
+            }
+        }
+    }
+
+    @Test
+    public void testStartedOnce()
+    {
+        try
+        {
+            AgentOptions.parse(null).start(null);
+        }
+        catch (IllegalStateException e)
+        {
+            // the tests run with Jamm as agent
+        }
+
+        MemoryMeter defaultMeter = MemoryMeter.defaultMeter();
+        try
+        {
+            AgentOptions.parse("guess=always-spec").start(null);
+            fail();
+        }
+        catch (IllegalStateException e)
+        {
+            assertEquals("The jamm agent has already been started", e.getMessage());
+        }
+        assertSame(defaultMeter, MemoryMeter.defaultMeter());
+    }
+
+    @Test
+    public void testIgnoredClasses()
+    {
+        MemoryMeter meter = AgentOptions.parse("guess=always-spec").builder().build();
+        MemoryMeter ignoring = AgentOptions.parse("guess=always-spec,ignore=" + Ignored.class.getName()).builder().build();
+        MemoryMeter ignoringPackage = AgentOptions.parse("guess=always-spec,ignore=org.github.*").builder().build();
+
+        Holder holder = new Holder();
+        assertEquals(meter.measureDeep(holder) - meter.measure(holder.ignored), ignoring.measureDeep(holder));
+        assertEquals(0, ignoringPackage.measureDeep(holder));
+        assertEquals(meter.measure(holder.kept), ignoringPackage.measureDeep(holder.kept));
+    }
+}
@@ -0,0 +1,202 @@
+package org.github.jamm;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Map;
+
+import org.junit.After;
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+public class AllocationProfilerTest
+{
+    public static class ProfiledBase
+    {
+        public long value;
+
+        public ProfiledBase()
+        {
+        }
+
+        public ProfiledBase(int value)
+        {
+            this();
+            this.value = value;
+        }
+    }
+
+    public static class Profiled extends ProfiledBase
+    {
+        public Object text;
+
+        // branches, a switch, a loop, an exception handler and a new with a conditional argument, which needs stack
+        // map frames with uninitialized values
+        public Profiled(int value)
+        {
+            super(value);
+            text = new StringBuilder(value > 2 ? "large" : "small");
+            try
+            {
+                switch (value % 3)
+                {
+                    case 0:
+                        this.value += 10;
+                        break;
+                    case 1:
+                        this.value += 20;
+                        break;
+                    default:
+                        throw new IllegalStateException();
+                }
+            }
+            catch (IllegalStateException e)
+            {
+                this.value = -this.value;
+            }
+            for (int i = 0; i < value; i++)
+                this.value += i;
+        }
+    }
+
+    public static class Allocator
+    {
+        public static long allocate(int count)
+        {
+            long checksum = 0;
+            for (int i = 0; i < count; i++)
+                checksum += new Profiled(i).value;
+            for (int i = 0; i < count / 2; i++)
+                checksum += new ProfiledBase(i).value;
+            return checksum;
+        }
+    }
+
+    /**
+     * Loads the nested classes of this test with their constructors instrumented.
+     */
+    private static final class InstrumentingLoader extends ClassLoader
+    {
+        private final AllocationProfiler profiler;
+
+        InstrumentingLoader(AllocationProfiler profiler)
+        {
+            super(AllocationProfilerTest.class.getClassLoader());
+            this.profiler = profiler;
+        }
+
+        @Override
+        protected Class<?> loadClass(String name, boolean resolve) throws ClassNotFoundException
+        {
+            if (!name.startsWith(AllocationProfilerTest.class.getName() + '$') || name.endsWith("InstrumentingLoader"))
+                return super.loadClass(name, resolve);
+
+            synchronized (getClassLoadingLock(name))
+            {
+                Class<?> loaded = findLoadedClass(name);
+                if (loaded != null)
+                    return loaded;
+
+                byte[] classFile = read(name);
+                byte[] instrumented = profiler.instrument(this, name.replace('.', '/'), null, classFile);
+                if (instrumented != null)
+                    classFile = instrumented;
+                return defineClass(name, classFile, 0, classFile.length);
+            }
+        }
+
+        private byte[] read(String name) throws ClassNotFoundException
+        {
+            try (InputStream in = getParent().getResourceAsStream(name.replace('.', '/') + ".class"))
+            {
+                ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+                byte[] buffer = new byte[4096];
+                for (int n; (n = in.read(buffer)) > 0; )
+                    bytes.write(buffer, 0, n);
+                return bytes.toByteArray();
+            }
+            catch (IOException | NullPointerException e)
+            {
+                throw new ClassNotFoundException(name, e);
+            }
+        }
+    }
+
+    @After
+    public void disable()
+    {
+        AllocationProfiler.disable();
+    }
+
+    @Test
+    public void testProfile() throws Exception
+    {
+        MemoryMeter meter = MemoryMeter.builder().build();
+        AllocationProfiler.enable(1, Collections.singletonList(AllocationProfilerTest.class.getPackage().getName()), meter);
+        AllocationProfiler profiler = AllocationProfiler.get();
+
+        ClassLoader loader = new InstrumentingLoader(profiler);
+        Class<?> allocator = loader.loadClass(Allocator.class.getName());
+        long checksum = (Long) allocator.getMethod("allocate", int.class).invoke(null, 10);
+
+        // the instrumented constructors still do the same
+        assertEquals(Allocator.allocate(10), checksum);
+        assertEquals(3, profiler.getInstrumentedClasses());
+
+        Map<String, AllocationProfiler.Entry> entries = new HashMap<>();
+        for (AllocationProfiler.Entry entry : profiler.entries())
+        {
+            assertTrue(entry.getSite(), entry.getSite().contains(Allocator.class.getName() + ".allocate("));
+            entries.put(entry.getClassName(), entry);
+        }
+        assertEquals(2, entries.size());
+
+        // the constructors of the superclass and the delegating constructors do not count the instances again
+        AllocationProfiler.Entry profiled = entries.get(Profiled.class.getName());
+        assertEquals(10, profiled.getEstimatedInstances());
+        assertEquals(10 * meter.measure(new Profiled(1)), profiled.getEstimatedBytes());
+        AllocationProfiler.Entry base = entries.get(ProfiledBase.class.getName());
+        assertEquals(5, base.getEstimatedInstances());
+        assertEquals(5 * meter.measure(new ProfiledBase()), base.getEstimatedBytes());
+        assertEquals(15, profiler.getSamples());
+        assertTrue(profiler.dump(1).contains(Profiled.class.getName()));
+
+        profiler.reset();
+        assertEquals(0, profiler.getSamples());
+        assertEquals(new ArrayList<>(), profiler.entries());
+    }
+
+    @Test
+    public void testNotInstrumented() throws Exception
+    {
+        MemoryMeter meter = MemoryMeter.builder().build();
+        AllocationProfiler.enable(1, Collections.singletonList("com.example"), meter);
+        AllocationProfiler profiler = AllocationProfiler.get();
+
+        ClassLoader loader = new InstrumentingLoader(profiler);
+        loader.loadClass(Allocator.class.getName()).getMethod("allocate", int.class).invoke(null, 10);
+        assertEquals(0, profiler.getInstrumentedClasses());
+        assertEquals(0, profiler.getSamples());
+        assertNull(profiler.instrument(loader, "java/lang/Runnable", null, new byte[0]));
+    }
+
+    @Test
+    public void testLoaderNotDelegatingToJamm()
+    {
+        MemoryMeter meter = MemoryMeter.builder().build();
+        AllocationProfiler.enable(1, Collections.singletonList(ProfiledBase.class.getPackage().getName()), meter);
+        AllocationProfiler profiler = AllocationProfiler.get();
+
+        // a loader, that does not delegate to the one of Jamm, cannot link the calls of the instrumented constructors
+        ClassLoader isolated = new ClassLoader(null)
+        {
+        };
+        assertNull(profiler.instrument(isolated, ProfiledBase.class.getName().replace('.', '/'), null, new byte[0]));
+    }
+}
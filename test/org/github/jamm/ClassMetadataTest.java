@@ -0,0 +1,74 @@
+package org.github.jamm;
+
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotEquals;
+import static org.junit.Assert.assertNotSame;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+public class ClassMetadataTest
+{
+    static class Shared
+    {
+        Object child = new Object();
+        long[] payload = new long[4];
+    }
+
+    static class Evicted
+    {
+        Object child;
+    }
+
+    @Test
+    public void testSharedBetweenMeters()
+    {
+        MemoryMeter first = MemoryMeter.builder().withStatistics().build();
+        long hits = first.statistics().getSharedClassMetadataHits();
+
+        long size = first.measureDeep(new Shared());
+        ClassMetadata metadata = ClassMetadata.get(Shared.class, (MemoryMeterBase) first);
+        assertEquals(2, metadata.fields.size());
+        assertNotEquals(0, ClassMetadata.shallowSize(Shared.class, kind(first)));
+
+        // a new meter with the same configuration does not reflect the class again
+        MemoryMeter second = first.unbuild().build();
+        assertEquals(size, second.measureDeep(new Shared()));
+        assertEquals(0, second.statistics().getShallowSizesComputed());
+        assertSame(metadata, ClassMetadata.get(Shared.class, (MemoryMeterBase) second));
+        assertTrue(first.statistics().getSharedClassMetadataHits() > hits);
+
+        // a meter with another configuration does
+        MemoryMeter other = first.unbuild().ignoreKnownSingletons().build();
+        assertEquals(size, other.measureDeep(new Shared()));
+        assertNotSame(metadata, ClassMetadata.get(Shared.class, (MemoryMeterBase) other));
+    }
+
+    @Test
+    public void testEviction()
+    {
+        MemoryMeter meter = MemoryMeter.builder().withStatistics().build();
+        meter.measureDeep(new Evicted());
+        ClassMetadata metadata = ClassMetadata.get(Evicted.class, (MemoryMeterBase) meter);
+        assertTrue(ClassMetadata.size() > 0);
+
+        long evictions = meter.statistics().getSharedClassMetadataEvictions();
+        ClassMetadata.evict(0);
+        assertEquals(0, ClassMetadata.size());
+        assertTrue(meter.statistics().getSharedClassMetadataEvictions() > evictions);
+
+        // evicted classes are reflected again on their next use
+        assertNotSame(metadata, ClassMetadata.get(Evicted.class, (MemoryMeterBase) meter));
+        assertEquals(1, ClassMetadata.size());
+        // the meter itself keeps the sizer
+        assertEquals(meter.measure(new Evicted()), meter.measureDeep(new Evicted()));
+    }
+
+    private static int kind(MemoryMeter meter)
+    {
+        if (meter instanceof MemoryMeterInstrumentation)
+            return ClassMetadata.SHALLOW_SIZE_INSTRUMENTATION;
+        return meter instanceof MemoryMeterUnsafe ? ClassMetadata.SHALLOW_SIZE_UNSAFE : ClassMetadata.SHALLOW_SIZE_SPEC;
+    }
+}
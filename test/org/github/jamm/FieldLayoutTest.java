@@ -0,0 +1,132 @@
+package org.github.jamm;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+
+import org.junit.Test;
+
+import static org.hamcrest.CoreMatchers.is;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assume.assumeThat;
+
+/**
+ * Compares the modelled layouts against the offsets reported by {@code Unsafe} and the sizes reported by the
+ * instrumentation. Run with different VM options to cover the different layouts.
+ */
+public class FieldLayoutTest
+{
+    static class Empty
+    {
+    }
+
+    static class Gap
+    {
+        byte b;
+        long l;
+    }
+
+    static class GapFilled extends Gap
+    {
+        int i;
+        short s;
+        Object o;
+        byte b2;
+    }
+
+    static class ReferencesOnly extends Empty
+    {
+        Object o1;
+        Object o2;
+        Object o3;
+    }
+
+    static class Mixed extends ReferencesOnly
+    {
+        boolean z;
+        char c;
+        float f;
+        double d;
+        Object o4;
+        byte b;
+        long l;
+    }
+
+    static class MixedSubclass extends Mixed
+    {
+        byte b;
+        short s;
+        double d;
+    }
+
+    static class LongsOnly extends Gap
+    {
+        long l1;
+        long l2;
+    }
+
+    private static final Class<?>[] CLASSES = { Object.class,
+                                                Empty.class,
+                                                Gap.class,
+                                                GapFilled.class,
+                                                ReferencesOnly.class,
+                                                Mixed.class,
+                                                MixedSubclass.class,
+                                                LongsOnly.class,
+                                                String.class,
+                                                Integer.class,
+                                                Long.class,
+                                                ArrayList.class,
+                                                HashMap.class,
+                                                classForName("java.util.HashMap$Node"),
+                                                // @Contended classes
+                                                classForName("java.util.concurrent.ConcurrentHashMap$CounterCell"),
+                                                classForName("java.util.concurrent.atomic.Striped64$Cell") };
+
+    @Test
+    public void testOffsets()
+    {
+        assumeHotSpot();
+        assumeThat(MemoryMeterUnsafe.hasUnsafe(), is(true));
+
+        MemoryLayoutSpecification spec = MemoryLayoutSpecification.getEffectiveMemoryLayoutSpecification();
+        for (Class<?> type : CLASSES)
+        {
+            FieldLayout layout = FieldLayout.of(type, spec);
+            for (int i = 0; i < layout.fields.length; i++)
+                assertEquals(spec + " " + type.getName() + "." + layout.fields[i].getName(),
+                             MemoryMeterUnsafe.unsafe.objectFieldOffset(layout.fields[i]),
+                             layout.offsets[i]);
+        }
+    }
+
+    @Test
+    public void testInstanceSizes() throws InstantiationException
+    {
+        assumeHotSpot();
+        assumeThat(MemoryMeterUnsafe.hasUnsafe(), is(true));
+        assumeThat(MemoryMeterInstrumentation.hasInstrumentation(), is(true));
+
+        MemoryLayoutSpecification spec = MemoryLayoutSpecification.getEffectiveMemoryLayoutSpecification();
+        for (Class<?> type : CLASSES)
+            assertEquals(spec + " " + type.getName(),
+                         MemoryMeterInstrumentation.instrumentation.getObjectSize(MemoryMeterUnsafe.unsafe.allocateInstance(type)),
+                         FieldLayout.of(type, spec).instanceSize);
+    }
+
+    private static void assumeHotSpot()
+    {
+        assumeThat(MemoryLayoutSpecification.getEffectiveMemoryLayoutSpecification().impl().startsWith("hotspot"), is(true));
+    }
+
+    private static Class<?> classForName(String name)
+    {
+        try
+        {
+            return Class.forName(name);
+        }
+        catch (ClassNotFoundException e)
+        {
+            throw new AssertionError(e);
+        }
+    }
+}
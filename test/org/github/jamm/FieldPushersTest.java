@@ -0,0 +1,59 @@
+package org.github.jamm;
+
+import java.lang.invoke.MethodHandle;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Deque;
+
+import org.github.jamm.MemoryMeterBase.VisitedSet;
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assume.assumeNotNull;
+
+public class FieldPushersTest
+{
+    static class Wide
+    {
+        Object a = "a";
+        Object b = new Object();
+        Object c;
+        int[] d = new int[2];
+        Wide e;
+        String f = "f";
+    }
+
+    @Test
+    public void testPushesLikeTheLoop() throws Throwable
+    {
+        MemoryMeter meter = MemoryMeter.builder().build();
+        for (MemoryMeter m : new MemoryMeter[] { meter, meter.unbuild().withFieldAccess(MemoryMeter.FieldAccess.UNSAFE).build() })
+        {
+            MemoryMeterBase base = (MemoryMeterBase) m;
+            ClassMetadata metadata = ClassMetadata.get(Wide.class, base);
+            FieldPushers.Pusher pusher = FieldPushers.generate(metadata.getters());
+            // hidden classes require Java 15+
+            assumeNotNull(pusher);
+            assertNotNull(metadata.pusher());
+
+            Wide wide = new Wide();
+            wide.e = new Wide();
+            Deque<Object> expected = new ArrayDeque<>();
+            Deque<Object> actual = new ArrayDeque<>();
+            long size = new ClassSizer.Fields(base, Wide.class, metadata.getters(), null).measureAndPushChildren(wide, new VisitedSet(), expected);
+            assertEquals(size, new ClassSizer.Fields(base, Wide.class, metadata.getters(), pusher).measureAndPushChildren(wide, new VisitedSet(), actual));
+            // all fields, but the null one
+            assertEquals(5, actual.size());
+            assertEquals(new ArrayList<>(expected), new ArrayList<>(actual));
+        }
+    }
+
+    @Test
+    public void testFallsBackToTheLoop()
+    {
+        assertNull(FieldPushers.generate(new MethodHandle[0]));
+        assertNull(FieldPushers.generate(new MethodHandle[FieldPushers.MAX_FIELDS + 1]));
+    }
+}
@@ -168,7 +168,8 @@ public class GuessTest {
 
     @SuppressWarnings("deprecation")
     private boolean verify(long instrumented, long guessed, String format, Object... args) {
-        if (GuessTest.this.guess == MemoryMeter.Guess.ALWAYS_SPEC) {
+        // SPEC models the HotSpot field layout, so it has to be exact on HotSpot
+        if (GuessTest.this.guess == MemoryMeter.Guess.ALWAYS_SPEC && !MemoryMeter.spec().impl().startsWith("hotspot")) {
             long allowed = Math.max(instrumented / 10, 16);
             long min = instrumented - allowed;
             long max = instrumented + allowed;
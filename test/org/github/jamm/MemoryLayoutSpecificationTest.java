@@ -0,0 +1,53 @@
+package org.github.jamm;
+
+import java.lang.reflect.Array;
+
+import org.junit.Test;
+
+import static org.hamcrest.CoreMatchers.is;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assume.assumeThat;
+
+public class MemoryLayoutSpecificationTest
+{
+    @Test
+    public void hotSpotLayouts()
+    {
+        assertLayout(MemoryLayoutSpecification.forHotSpot(true, true, false, 8), 12, 16, 4);
+        assertLayout(MemoryLayoutSpecification.forHotSpot(false, true, false, 8), 12, 16, 8);
+        assertLayout(MemoryLayoutSpecification.forHotSpot(false, false, false, 8), 16, 24, 8);
+        assertLayout(MemoryLayoutSpecification.forHotSpot(true, true, true, 8), 8, 12, 4);
+        assertLayout(MemoryLayoutSpecification.forHotSpot(false, true, true, 8), 8, 12, 8);
+        assertEquals(16, MemoryLayoutSpecification.forHotSpot(true, true, false, 16).getObjectAlignment());
+    }
+
+    private static void assertLayout(MemoryLayoutSpecification spec, int objectHeaderSize, int arrayHeaderSize, int referenceSize)
+    {
+        assertEquals(spec.toString(), objectHeaderSize, spec.getObjectHeaderSize());
+        assertEquals(spec.toString(), arrayHeaderSize, spec.getArrayHeaderSize());
+        assertEquals(spec.toString(), referenceSize, spec.getReferenceSize());
+    }
+
+    /**
+     * Compares the detected layout of the running JVM against the sizes reported by the instrumentation, run with
+     * different VM options to cover the different layouts.
+     */
+    @Test
+    public void effectiveLayout()
+    {
+        assumeThat(MemoryMeterInstrumentation.hasInstrumentation(), is(true));
+
+        MemoryLayoutSpecification spec = MemoryLayoutSpecification.getEffectiveMemoryLayoutSpecification();
+        MemoryMeter meter = MemoryMeter.builder().withGuessing(MemoryMeter.Guess.ALWAYS_INSTRUMENTATION).build();
+
+        assertEquals(spec.toString(),
+                     MemoryMeter.roundTo(spec.getObjectHeaderSize(), spec.getObjectAlignment()),
+                     meter.measure(new Object()));
+
+        for (Class<?> type : new Class<?>[]{ byte.class, int.class, long.class, Object.class })
+            for (int length = 0; length < 20; length++)
+                assertEquals(spec + " " + type + "[" + length + "]",
+                             meter.measure(Array.newInstance(type, length)),
+                             meter.sizeOfArray(length, type));
+    }
+}
@@ -0,0 +1,131 @@
+package org.github.jamm;
+
+import java.time.Duration;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.function.BooleanSupplier;
+
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+public class MemoryMeterServiceTest
+{
+    private final MemoryMeter meter = MemoryMeter.builder().build();
+
+    static class Bag
+    {
+        volatile Object[] items = new Object[0];
+    }
+
+    @Test
+    public void testPeriodicMeasurement() throws InterruptedException
+    {
+        try (MemoryMeterService service = new MemoryMeterService(meter, 1))
+        {
+            Bag bag = new Bag();
+            BlockingQueue<Long> exceeded = new ArrayBlockingQueue<>(10);
+            MemoryMeterService.Registration registration = service.register(bag, Duration.ofMillis(10))
+                                                                  .onThreshold(1000, exceeded::add);
+
+            long initial = meter.measureDeep(bag);
+            awaitTrue(() -> registration.size() == initial);
+            assertNull(exceeded.poll());
+
+            bag.items = new Object[]{ new long[200] };
+            long grown = meter.measureDeep(bag);
+            awaitTrue(() -> registration.size() == grown);
+            assertEquals(grown, (long) exceeded.poll(10, TimeUnit.SECONDS));
+
+            // the callback is only called again after the size went below the threshold
+            bag.items = new Object[]{ new long[300] };
+            long grownMore = meter.measureDeep(bag);
+            awaitTrue(() -> registration.size() == grownMore);
+            assertNull(exceeded.poll());
+
+            registration.cancel();
+            assertTrue(registration.isCancelled());
+            bag.items = new Object[0];
+            Thread.sleep(100);
+            assertEquals(grownMore, registration.size());
+        }
+    }
+
+    @Test
+    public void testCollectedRoot() throws InterruptedException
+    {
+        try (MemoryMeterService service = new MemoryMeterService(meter, 1))
+        {
+            MemoryMeterService.Registration registration = service.register(new Bag(), Duration.ofMillis(10));
+            awaitTrue(() -> {
+                System.gc();
+                return registration.isCancelled();
+            });
+        }
+    }
+
+    @Test
+    public void testFailingCallback() throws InterruptedException
+    {
+        try (MemoryMeterService service = new MemoryMeterService(meter, 1))
+        {
+            Bag grown = new Bag();
+            BlockingQueue<Long> exceeded = new ArrayBlockingQueue<>(10);
+            service.register(grown, Duration.ofMillis(10))
+                   .onThreshold(1000, size -> { throw new AssertionError("Expected"); })
+                   .onThreshold(1000, exceeded::add);
+            grown.items = new Object[]{ new long[200] };
+            assertNotNull(exceeded.poll(10, TimeUnit.SECONDS));
+
+            // the service thread survived the error
+            Bag bag = new Bag();
+            MemoryMeterService.Registration registration = service.register(bag, Duration.ofMillis(10));
+            long size = meter.measureDeep(bag);
+            awaitTrue(() -> registration.size() == size);
+        }
+    }
+
+    @Test
+    public void testGcPauses()
+    {
+        assertTrue(MemoryMeterService.isPause("G1 Young Generation", "end of minor GC"));
+        assertTrue(MemoryMeterService.isPause("ZGC Pauses", "end of GC pause"));
+        assertFalse(MemoryMeterService.isPause("G1 Concurrent GC", "end of concurrent GC pause"));
+        assertFalse(MemoryMeterService.isPause("ZGC Cycles", "end of GC cycle"));
+        assertFalse(MemoryMeterService.isPause("Shenandoah Cycles", "end of GC cycle"));
+    }
+
+    @Test
+    public void testClose()
+    {
+        MemoryMeterService service = new MemoryMeterService(meter);
+        assertNotNull(service.register(new Bag(), Duration.ofSeconds(1)));
+        service.close();
+        try
+        {
+            service.register(new Bag(), Duration.ofSeconds(1));
+            fail();
+        }
+        catch (IllegalStateException e)
+        {
+            // expected
+        }
+    }
+
+    private static void awaitTrue(BooleanSupplier condition) throws InterruptedException
+    {
+        long deadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(10);
+        while (!condition.getAsBoolean())
+        {
+            if (System.nanoTime() - deadline > 0)
+                fail("Timed out");
+            Thread.sleep(10);
+        }
+    }
+}
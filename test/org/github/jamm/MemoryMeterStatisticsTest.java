@@ -0,0 +1,145 @@
+package org.github.jamm;
+
+import java.lang.management.ManagementFactory;
+import java.util.Map;
+
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+import javax.management.openmbean.TabularData;
+
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+public class MemoryMeterStatisticsTest
+{
+    static class Node
+    {
+        Node next;
+        long[] payload = new long[4];
+    }
+
+    @Test
+    public void testCounters()
+    {
+        MemoryMeter meter = MemoryMeter.builder().withStatistics().build();
+        MemoryMeterMXBean statistics = meter.statistics();
+
+        Node head = null;
+        for (int i = 0; i < 100; i++)
+        {
+            Node node = new Node();
+            node.next = head;
+            head = node;
+        }
+
+        long size = meter.measureDeep(head);
+        meter.measureDeep(new long[10]);
+
+        assertEquals(2, statistics.getCalls());
+        assertEquals(201, statistics.getObjects());
+        assertEquals(size + meter.measure(new long[10]), statistics.getBytes());
+        assertTrue(statistics.getNanos() > 0);
+        // the visited set starts with 16 slots
+        assertTrue(statistics.getVisitedSetResizes() > 0);
+        assertTrue(statistics.getClassSizersComputed() >= 1);
+        assertTrue(statistics.getIgnoreClassComputed() >= 2);
+
+        assertTrue(statistics.getLatencyNanosP50() <= statistics.getLatencyNanosP99());
+        assertTrue(statistics.getLatencyNanosP99() <= statistics.getLatencyNanosMax());
+        assertTrue(statistics.getLatencyNanosMax() <= statistics.getNanos());
+
+        Map<String, Long> objects = statistics.getObjectsByRootClass();
+        assertEquals(2, objects.size());
+        assertEquals(200L, (long) objects.get(Node.class.getName()));
+        assertEquals(1L, (long) objects.get(long[].class.getName()));
+
+        // the objects of the lists are attributed to their own classes
+        Map<String, Long> objectsByClass = statistics.getObjectsByClass();
+        assertEquals(2, objectsByClass.size());
+        assertEquals(100L, (long) objectsByClass.get(Node.class.getName()));
+        assertEquals(101L, (long) objectsByClass.get(long[].class.getName()));
+        Map<String, Long> bytesByClass = statistics.getBytesByClass();
+        assertEquals(100 * meter.measure(head), (long) bytesByClass.get(Node.class.getName()));
+        assertEquals(100 * meter.measure(head.payload) + meter.measure(new long[10]), (long) bytesByClass.get(long[].class.getName()));
+
+        // a walk stopped at its limit is not recorded, one within its limit is
+        assertTrue(meter.measureDeep(head, size / 2) > size / 2);
+        assertEquals(2, statistics.getCalls());
+        assertEquals(size, meter.measureDeep(head, size));
+        assertEquals(3, statistics.getCalls());
+
+        statistics.reset();
+        assertEquals(0, statistics.getCalls());
+        assertEquals(0, statistics.getLatencyNanosMax());
+        assertTrue(statistics.getNanosByRootClass().isEmpty());
+        assertTrue(statistics.getBytesByClass().isEmpty());
+    }
+
+    @Test
+    public void testDisabled()
+    {
+        MemoryMeter meter = MemoryMeter.builder().build();
+        try
+        {
+            meter.statistics();
+            fail();
+        }
+        catch (IllegalStateException e)
+        {
+            // expected
+        }
+        // statistics survive unbuild()
+        meter.unbuild().withStatistics().build().unbuild().build().statistics();
+    }
+
+    @Test
+    public void testHistogramBuckets()
+    {
+        long previousUpperBound = -1;
+        for (int bucket = 0; bucket < 248; bucket++)
+        {
+            long upperBound = MemoryMeterStatistics.bucketUpperBound(bucket);
+            assertEquals(bucket, MemoryMeterStatistics.bucket(upperBound));
+            assertEquals(bucket, MemoryMeterStatistics.bucket(previousUpperBound + 1));
+            // at most 25% relative error
+            assertTrue(upperBound - previousUpperBound - 1 <= (previousUpperBound + 1) / 4);
+            previousUpperBound = upperBound;
+        }
+        assertEquals(Long.MAX_VALUE, previousUpperBound);
+    }
+
+    @Test
+    public void testMXBean() throws Exception
+    {
+        MemoryMeter meter = MemoryMeter.builder().withStatistics().build();
+        ObjectName name = meter.registerMXBean("test");
+        MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+        try
+        {
+            for (int i = 0; i < 10; i++)
+                meter.measureDeep(new Node());
+
+            assertEquals(10L, server.getAttribute(name, "Calls"));
+            assertEquals(20L, server.getAttribute(name, "Objects"));
+            TabularData byClass = (TabularData) server.getAttribute(name, "ObjectsByRootClass");
+            assertEquals(1, byClass.size());
+
+            try
+            {
+                meter.registerMXBean("test");
+                fail();
+            }
+            catch (IllegalStateException e)
+            {
+                // expected, the name is in use
+            }
+        }
+        finally
+        {
+            server.unregisterMBean(name);
+        }
+    }
+}
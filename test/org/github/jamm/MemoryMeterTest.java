@@ -4,21 +4,39 @@ import static org.hamcrest.CoreMatchers.anyOf;
 import static org.hamcrest.CoreMatchers.is;
 import static org.hamcrest.CoreMatchers.not;
 import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
 import static org.junit.Assert.assertNotEquals;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+import static org.junit.Assume.assumeFalse;
 import static org.junit.Assume.assumeThat;
+import static org.junit.Assume.assumeTrue;
 
+import java.io.File;
+import java.io.RandomAccessFile;
 import java.lang.reflect.Field;
 import java.lang.reflect.InvocationTargetException;
 import java.lang.reflect.Method;
+import java.lang.reflect.Modifier;
 import java.lang.ref.SoftReference;
 import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.time.Duration;
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.Collection;
 import java.util.Date;
 import java.util.HashMap;
 import java.util.LinkedHashMap;
 import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
 import java.util.concurrent.ConcurrentSkipListMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicReference;
 import java.util.concurrent.locks.ReentrantReadWriteLock;
 
 import org.junit.Ignore;
@@ -416,9 +434,7 @@ public class MemoryMeterTest
         assertEquals("Embedded int field only " + guess, 24, meter.measure(new IntCharHolder()));
         assertEquals("Only 4 bytes available " + guess, 24, meter.measure(new FiveByteHolder()));
 
-        assertEquals("4 bytes always available " + guess,
-                     (guess != MemoryMeter.Guess.ALWAYS_SPEC) ? 24 : 32, // "Specification" mode overcounts here
-                     meter.measure(new LongIntHolder()));
+        assertEquals("4 bytes always available " + guess, 24, meter.measure(new LongIntHolder()));
 
         // The assumes a very JVM-specific object layout
         // assertEquals("4 bytes not available if parent has a field " + guess, 32, meter.measure(new LongIntHolder2()));
@@ -524,6 +540,50 @@ public class MemoryMeterTest
         assertEquals(900, m4.measureDeep(sl900));
     }
 
+    @Test
+    public void testDeepWithOffHeap() throws Exception {
+        MemoryMeter meter = MemoryMeter.builder().withGuessing(guess).build();
+
+        ByteBuffer direct = ByteBuffer.allocateDirect(1000);
+        direct.position(200);
+        ByteBuffer slice = direct.slice();
+        Object[] buffers = { direct, slice, direct.duplicate(), direct.asLongBuffer(), slice.asCharBuffer() };
+        DeepMemoryUsage usage = meter.measureDeepWithOffHeap(buffers);
+        assertEquals("for " + guess, meter.measureDeep(buffers), usage.getHeapBytes());
+        assertEquals("for " + guess, 1000, usage.getDirectBytes());
+        assertEquals("for " + guess, 0, usage.getMappedBytes());
+        assertEquals("for " + guess, 1, usage.getOffHeapAllocations());
+        assertEquals("for " + guess, 5, usage.getDirectBuffers());
+
+        // the allocated buffer is not part of the graph, only a view of it
+        usage = meter.measureDeepWithOffHeap(ByteBuffer.allocateDirect(64).asIntBuffer());
+        assertEquals("for " + guess, 64, usage.getDirectBytes());
+        assertEquals("for " + guess, 1, usage.getOffHeapAllocations());
+
+        ByteBuffer heap = ByteBuffer.allocate(1000);
+        usage = meter.measureDeepWithOffHeap(heap.asLongBuffer());
+        assertEquals("for " + guess, meter.measureDeep(heap.asLongBuffer()), usage.getHeapBytes());
+        assertEquals("for " + guess, 0, usage.getOffHeapBytes());
+        assertEquals("for " + guess, 0, usage.getDirectBuffers());
+
+        // the cleaners link all direct buffers with each other
+        long size = meter.measureDeep(ByteBuffer.allocateDirect(10));
+        List<ByteBuffer> others = new ArrayList<>();
+        for (int i = 0; i < 100; i++)
+            others.add(ByteBuffer.allocateDirect(10));
+        assertEquals("for " + guess, size, meter.measureDeep(ByteBuffer.allocateDirect(10)));
+
+        File file = File.createTempFile("jamm", ".bin");
+        file.deleteOnExit();
+        try (RandomAccessFile raf = new RandomAccessFile(file, "rw"); FileChannel channel = raf.getChannel()) {
+            MappedByteBuffer mapped = channel.map(FileChannel.MapMode.READ_WRITE, 0, 4096);
+            usage = meter.measureDeepWithOffHeap(new Object[] { mapped, mapped.slice(), mapped.asShortBuffer() });
+            assertEquals("for " + guess, 0, usage.getDirectBytes());
+            assertEquals("for " + guess, 4096, usage.getMappedBytes());
+            assertEquals("for " + guess, 1, usage.getOffHeapAllocations());
+        }
+    }
+
     @Test
     public void testCycle() {
         MemoryMeter meter = MemoryMeter.builder().withGuessing(guess).build();
@@ -582,6 +642,557 @@ public class MemoryMeterTest
         assertEquals("for " + guess, objectSize(0, 1, 0, 0, 1) * 100001, meter.measureDeep(root));
     }
 
+    @Test
+    public void testDeepParallel() {
+        MemoryMeter meter = MemoryMeter.builder().withGuessing(guess).build();
+
+        Recursive root = new Recursive();
+        Recursive recursive = root;
+        for (int i = 0; i < 100000; i++) {
+            recursive.child = new Recursive();
+            recursive = recursive.child;
+        }
+
+        List<Object> wide = new ArrayList<>();
+        for (int i = 0; i < 1000; i++) {
+            List<Object> inner = new ArrayList<>();
+            for (int j = 0; j < 100; j++)
+                inner.add(new Recursive());
+            // shared between all inner lists
+            inner.add(root);
+            wide.add(inner);
+        }
+
+        ForkJoinPool pool = new ForkJoinPool(4);
+        try {
+            assertEquals("for " + guess, meter.measureDeep(root), meter.measureDeepParallel(root, pool));
+            assertEquals("for " + guess, meter.measureDeep(wide), meter.measureDeepParallel(wide, pool));
+        } finally {
+            pool.shutdown();
+        }
+    }
+
+    @Test
+    public void testDeepWithLimit() {
+        MemoryMeter meter = MemoryMeter.builder().withGuessing(guess).build();
+
+        Recursive root = new Recursive();
+        Recursive recursive = root;
+        for (int i = 0; i < 1000; i++) {
+            recursive.child = new Recursive();
+            recursive = recursive.child;
+        }
+        long size = meter.measureDeep(root);
+        long objectSize = meter.measure(root);
+
+        assertEquals("for " + guess, size, meter.measureDeep(root, size));
+        assertEquals("for " + guess, size, meter.measureDeep(root, Long.MAX_VALUE));
+        assertEquals("for " + guess, size, meter.measureDeep(root, size - 1));
+        // stops right after the first object that exceeds the limit
+        assertEquals("for " + guess, objectSize, meter.measureDeep(root, 0));
+        assertEquals("for " + guess, 11 * objectSize, meter.measureDeep(root, 10 * objectSize));
+    }
+
+    @Test
+    public void testDeepIncremental() {
+        MemoryMeter meter = MemoryMeter.builder().withGuessing(guess).build();
+
+        Recursive root = new Recursive();
+        Recursive recursive = root;
+        for (int i = 0; i < 1000; i++) {
+            recursive.child = new Recursive();
+            recursive = recursive.child;
+        }
+        long size = meter.measureDeep(root);
+        long objectSize = meter.measure(root);
+
+        IncrementalMeasurement measurement = meter.measureDeepIncremental(root);
+        assertEquals(0, measurement.getTotal());
+        for (int i = 1; i <= 10; i++) {
+            assertFalse(measurement.step(100));
+            assertEquals("for " + guess, 100 * i * objectSize, measurement.getTotal());
+            assertEquals(100 * i, measurement.getVisitedObjects());
+        }
+        assertTrue(measurement.step(100));
+        assertTrue(measurement.isDone());
+        assertEquals("for " + guess, size, measurement.getTotal());
+
+        measurement = meter.measureDeepIncremental(root);
+        assertTrue(measurement.step(Duration.ofSeconds(10)));
+        assertEquals("for " + guess, size, measurement.getTotal());
+        assertEquals("for " + guess, size, meter.measureDeepIncremental(root).complete());
+
+        measurement = meter.measureDeepIncremental(root);
+        assertFalse(measurement.step(10));
+        measurement.cancel();
+        assertTrue(measurement.isDone());
+        assertTrue(measurement.isCancelled());
+        assertTrue(measurement.step(10));
+        assertEquals("for " + guess, 10 * objectSize, measurement.getTotal());
+    }
+
+    @Test
+    public void testJdkClasses() throws ClassNotFoundException {
+        MemoryMeter meter = MemoryMeter.builder().withGuessing(guess).build();
+
+        LinkedHashMap<Integer, String> linkedHashMap = new LinkedHashMap<>();
+        HashMap<Integer, String> hashMap = new HashMap<>();
+        ConcurrentHashMap<Integer, String> concurrentHashMap = new ConcurrentHashMap<>();
+        ArrayList<String> arrayList = new ArrayList<>();
+        for (int i = 0; i < 100; i++) {
+            linkedHashMap.put(1000 + i, "l" + i);
+            hashMap.put(2000 + i, "h" + i);
+            concurrentHashMap.put(3000 + i, "c" + i);
+            arrayList.add("a" + i);
+        }
+
+        ClassHistogram histogram = meter.measureDeepHistogram(linkedHashMap);
+        assertEquals(100, histogram.get(Class.forName("java.util.LinkedHashMap$Entry")).getInstances());
+        assertEquals(100, histogram.get(Integer.class).getInstances());
+        assertEquals(100, histogram.get(String.class).getInstances());
+
+        histogram = meter.measureDeepHistogram(hashMap);
+        assertEquals(100, histogram.get(Class.forName("java.util.HashMap$Node")).getInstances());
+        assertEquals(100, histogram.get(Integer.class).getInstances());
+        assertEquals(100, histogram.get(String.class).getInstances());
+
+        histogram = meter.measureDeepHistogram(concurrentHashMap);
+        assertEquals(100, histogram.get(Class.forName("java.util.concurrent.ConcurrentHashMap$Node")).getInstances());
+        assertEquals(100, histogram.get(Integer.class).getInstances());
+        assertEquals(100, histogram.get(String.class).getInstances());
+
+        histogram = meter.measureDeepHistogram(arrayList);
+        assertEquals(1, histogram.get(Object[].class).getInstances());
+        assertEquals(100, histogram.get(String.class).getInstances());
+
+        String s = "some string";
+        histogram = meter.measureDeepHistogram(s);
+        assertEquals(2, histogram.getTotalInstances());
+        assertEquals("for " + guess, meter.measureDeep(s), histogram.getTotalBytes());
+        assertEquals("for " + guess, meter.measure(s), histogram.get(String.class).getBytes());
+
+        // the specialized sizers count the same bytes as the generic field path, which the UNSAFE field access uses
+        assumeThat(MemoryMeterUnsafe.hasUnsafe(), is(true));
+        MemoryMeter generic = meter.unbuild().withFieldAccess(MemoryMeter.FieldAccess.UNSAFE).build();
+        ByteBuffer heapBuffer = ByteBuffer.allocate(100);
+        heapBuffer.put((byte) 1);
+        Object[] graphs = { linkedHashMap, hashMap, concurrentHashMap, arrayList, s, heapBuffer, heapBuffer.asReadOnlyBuffer(), heapBuffer.slice() };
+        for (Object graph : graphs)
+            assertEquals("for " + guess + " and " + graph.getClass(), generic.measureDeep(graph), meter.measureDeep(graph));
+        assertEquals("for " + guess, generic.measureDeep(graphs), meter.measureDeep(graphs));
+
+        Class<?>[] specialized = { String.class, ArrayList.class, Class.forName("java.util.HashMap$Node"),
+                                   Class.forName("java.util.LinkedHashMap$Entry"), Class.forName("java.util.concurrent.ConcurrentHashMap$Node"),
+                                   heapBuffer.getClass(), heapBuffer.asReadOnlyBuffer().getClass() };
+        for (Class<?> type : specialized) {
+            assertEquals("for " + type, JdkSizers.class, ((MemoryMeterBase) meter).classSizers.get(type).getClass().getEnclosingClass());
+            assertNotEquals("for " + type, JdkSizers.class, ((MemoryMeterBase) generic).classSizers.get(type).getClass().getEnclosingClass());
+        }
+    }
+
+    @Test
+    @SuppressWarnings("deprecation")
+    public void testFieldAccessUnsafe() {
+        assumeThat(MemoryMeterUnsafe.hasUnsafe(), is(true));
+        // the reference meter reads the fields through reflection
+        assumeTrue(canAccessFields(HashMap.class, ArrayList.class, String.class, Date.class, ByteBuffer.allocate(0).getClass(), SoftReference.class));
+
+        MemoryMeter meter = MemoryMeter.builder().withGuessing(guess).build();
+        MemoryMeter unsafeMeter = MemoryMeter.builder().withGuessing(guess).withFieldAccess(MemoryMeter.FieldAccess.UNSAFE).build();
+
+        HashMap<Integer, String> hashMap = new HashMap<>();
+        ArrayList<Object> arrayList = new ArrayList<>();
+        for (int i = 0; i < 100; i++) {
+            hashMap.put(i, "h" + i);
+            arrayList.add(new Object[] { "a" + i, new Date(i) });
+        }
+        Recursive recursive = new Recursive();
+        recursive.child = new Recursive();
+        Object[] objects = { hashMap, arrayList, recursive, new HasReferenceField(), new LinkedHashMap<>(hashMap), "some string" };
+
+        for (Object obj : objects)
+            assertEquals("for " + guess + " and " + obj.getClass(), meter.measureDeep(obj), unsafeMeter.measureDeep(obj));
+
+        ByteBuffer buffer = ByteBuffer.allocate(100);
+        buffer.position(10);
+        ByteBuffer slice = buffer.slice();
+        meter = MemoryMeter.builder().withGuessing(guess).omitSharedBufferOverhead().build();
+        unsafeMeter = meter.unbuild().withFieldAccess(MemoryMeter.FieldAccess.UNSAFE).build();
+        assertEquals("for " + guess, meter.measureDeep(slice), unsafeMeter.measureDeep(slice));
+
+        SoftReference<Object> ref = new SoftReference<>(new Object[100]);
+        meter = MemoryMeter.builder().withGuessing(guess).ignoreNonStrongReferences().build();
+        unsafeMeter = meter.unbuild().withFieldAccess(MemoryMeter.FieldAccess.UNSAFE).build();
+        assertEquals("for " + guess, meter.measureDeep(ref), unsafeMeter.measureDeep(ref));
+    }
+
+    @Test
+    public void testFieldAccessUnsafeWithoutOpens() {
+        assumeThat(MemoryMeterUnsafe.hasUnsafe(), is(true));
+        // java.util.concurrent.atomic is not opened, which denies reflective access on Java 9+, unless permitted
+        assumeFalse(canAccessFields(AtomicReference.class));
+
+        MemoryMeter unsafeMeter = MemoryMeter.builder().withGuessing(guess).withFieldAccess(MemoryMeter.FieldAccess.UNSAFE).build();
+        long[] value = new long[100];
+        AtomicReference<Object> atomic = new AtomicReference<>(value);
+        assertEquals("for " + guess, unsafeMeter.measure(atomic) + unsafeMeter.measure(value), unsafeMeter.measureDeep(atomic));
+        AtomicReference<Object> outer = new AtomicReference<>(atomic);
+        assertEquals("for " + guess, 2 * unsafeMeter.measure(atomic) + unsafeMeter.measure(value), unsafeMeter.measureDeep(outer));
+    }
+
+    /**
+     * @return {@code true} if the declared fields of all given classes can be made accessible
+     */
+    private static boolean canAccessFields(Class<?>... types) {
+        try {
+            for (Class<?> type : types)
+                for (Field field : type.getDeclaredFields())
+                    if (!Modifier.isStatic(field.getModifiers()))
+                        field.setAccessible(true);
+            return true;
+        } catch (RuntimeException e) {
+            // InaccessibleObjectException on Java 9+
+            return false;
+        }
+    }
+
+    @Test
+    public void testDeepSampled() {
+        MemoryMeter meter = MemoryMeter.builder().withGuessing(guess).build();
+
+        Recursive small = new Recursive();
+        small.child = new Recursive();
+        SizeEstimate exact = meter.measureDeepSampled(small, 0.01);
+        assertTrue(exact.isExact());
+        assertEquals("for " + guess, meter.measureDeep(small), exact.getEstimate());
+        assertEquals(0d, exact.getStandardError(), 0d);
+
+        HashMap<Integer, List<Object>> map = new HashMap<>();
+        for (int i = 0; i < 100000; i++) {
+            List<Object> value = new ArrayList<>();
+            for (int j = 0; j < i % 5; j++)
+                value.add(new Recursive());
+            map.put(i, value);
+        }
+        long size = meter.measureDeep(map);
+        SizeEstimate estimate = meter.measureDeepSampled(map, 0.01);
+        assertFalse(estimate.isExact());
+        assertEquals(1, estimate.getSampledArrays());
+        assertTrue("for " + guess + ": " + estimate, Math.abs(estimate.getEstimate() - size) < size * 0.05);
+        assertTrue("for " + guess + ": " + estimate, estimate.getLowerBound() <= estimate.getEstimate());
+        assertTrue("for " + guess + ": " + estimate, estimate.getUpperBound() > estimate.getEstimate());
+
+        // the entries are linked with each other, the walk of a sample must not follow the links to the other ones
+        LinkedHashMap<Integer, List<Object>> linked = new LinkedHashMap<>(map);
+        size = meter.measureDeep(linked);
+        estimate = meter.measureDeepSampled(linked, 0.01);
+        assertEquals(1, estimate.getSampledArrays());
+        assertTrue("for " + guess + ": " + estimate, Math.abs(estimate.getEstimate() - size) < size * 0.1);
+        assertTrue("for " + guess + ": " + estimate, estimate.getUpperBound() < size * 2);
+    }
+
+    @Test
+    public void testDeepHistogram() {
+        MemoryMeter meter = MemoryMeter.builder().withGuessing(guess).build();
+
+        List<Object> list = new ArrayList<>();
+        for (int i = 0; i < 100; i++) {
+            list.add(new Recursive());
+            list.add(new Parent());
+            list.add(new Parent());
+        }
+        for (int i = 0; i < 1000; i++)
+            list.add(new Object[0]);
+
+        ClassHistogram histogram = meter.measureDeepHistogram(list);
+        assertEquals("for " + guess, meter.measureDeep(list), histogram.getTotalBytes());
+        // the list, its array and all elements
+        assertEquals(2 + 1300, histogram.getTotalInstances());
+        assertEquals(100, histogram.get(Recursive.class).getInstances());
+        assertEquals("for " + guess, 100 * meter.measure(new Recursive()), histogram.get(Recursive.class).getBytes());
+        assertEquals(200, histogram.get(Parent.class).getInstances());
+        assertEquals(1000, histogram.get(Object[].class).getInstances() - 1);
+        assertEquals(null, histogram.get(String.class));
+
+        List<ClassHistogram.Entry> top = histogram.top(2);
+        assertEquals(2, top.size());
+        assertEquals(Object[].class, top.get(0).getType());
+        assertTrue(top.get(0).getBytes() >= top.get(1).getBytes());
+        assertEquals(4, histogram.entries().size());
+    }
+
+    @SuppressWarnings("unused")
+    private static class Table {
+        Object small;
+        Object[] partitions;
+        Recursive recursive;
+    }
+
+    @Test
+    public void testDeepWithPaths() {
+        MemoryMeter meter = MemoryMeter.builder().withGuessing(guess).build();
+
+        Table table = new Table();
+        table.small = new long[1];
+        table.partitions = new Object[]{ null, new long[1000], new long[10], table.small };
+        table.recursive = new Recursive();
+        Recursive recursive = table.recursive;
+        for (int i = 0; i < 100000; i++)
+            recursive = recursive.child = new Recursive();
+
+        LargestSubtrees subtrees = meter.measureDeepWithPaths(table, 3);
+        assertEquals("for " + guess, meter.measureDeep(table), subtrees.getTotalBytes());
+        assertEquals(5 + 100001, subtrees.getTotalInstances());
+
+        List<LargestSubtrees.Entry> entries = subtrees.entries();
+        assertEquals(3, entries.size());
+        long recursiveBytes = 100001 * meter.measure(new Recursive());
+        long partitionsBytes = meter.measure(table.partitions) + meter.measure(new long[1000]) + meter.measure(new long[10]);
+        assertEquals("root.recursive", entries.get(0).getPath());
+        assertEquals(recursiveBytes, entries.get(0).getBytes());
+        assertEquals("root.recursive.child", entries.get(1).getPath());
+        assertEquals(Recursive.class, entries.get(1).getType());
+        assertEquals(recursiveBytes - meter.measure(new Recursive()), entries.get(1).getBytes());
+        assertEquals(meter.measure(new Recursive()), entries.get(1).getShallowBytes());
+
+        // the shared long[1] is only attributed to the subtree, that reached it first
+        table.recursive = null;
+        entries = meter.measureDeepWithPaths(table, 10).entries();
+        assertEquals(4, entries.size());
+        assertEquals("root.partitions", entries.get(0).getPath());
+        assertEquals(partitionsBytes, entries.get(0).getBytes());
+        assertEquals("root.partitions[1]", entries.get(1).getPath());
+        assertEquals(meter.measure(new long[1000]), entries.get(1).getBytes());
+        assertEquals("root.partitions[2]", entries.get(2).getPath());
+        assertEquals("root.small", entries.get(3).getPath());
+        assertEquals(meter.measure(new long[1]), entries.get(3).getBytes());
+
+        assertEquals(0, meter.measureDeepWithPaths(table, 0).entries().size());
+    }
+
+    @Test
+    public void testRetained() {
+        MemoryMeter meter = MemoryMeter.builder().withGuessing(guess).build();
+
+        long[] shared = new long[10];
+        long[] third = new long[50];
+        Table first = new Table();
+        first.small = shared;
+        first.partitions = new Object[]{ new long[100] };
+        Object[] second = { shared, new long[5], third };
+
+        RetainedSizes sizes = meter.measureRetained(Arrays.asList(first, second, third));
+        assertEquals(3, sizes.size());
+        assertEquals("for " + guess, meter.measureDeep(first) + meter.measureDeep(second) - meter.measure(shared), sizes.getTotalBytes());
+        assertEquals(meter.measure(shared), sizes.getSharedBytes());
+
+        long firstRetained = meter.measure(first) + meter.measure(first.partitions) + meter.measure(new long[100]);
+        assertEquals("for " + guess, firstRetained, sizes.getRetainedBytes(0));
+        assertEquals(meter.measure(shared), sizes.getSharedBytes(0));
+        assertEquals(firstRetained + meter.measure(shared), sizes.getReachableBytes(0));
+        assertFalse(sizes.isReferencedByOtherRoots(0));
+
+        // the third root is not followed from the second one
+        assertEquals(meter.measure(second) + meter.measure(new long[5]), sizes.getRetainedBytes(1));
+        assertEquals(meter.measure(shared), sizes.getSharedBytes(1));
+
+        assertEquals(meter.measure(third), sizes.getRetainedBytes(2));
+        assertEquals(0, sizes.getSharedBytes(2));
+        assertTrue(sizes.isReferencedByOtherRoots(2));
+
+        try {
+            meter.measureRetained(Arrays.asList(first, first));
+            fail();
+        } catch (IllegalArgumentException e) {
+            // expected
+        }
+    }
+
+    @Test
+    public void testDeepAll() {
+        MemoryMeter meter = MemoryMeter.builder().withGuessing(guess).build();
+
+        long[] shared = new long[10];
+        List<Object[]> roots = new ArrayList<>();
+        for (int i = 0; i < 1000; i++)
+            roots.add(new Object[]{ shared, new long[i % 10] });
+
+        long sum = 0;
+        for (Object[] root : roots)
+            sum += meter.measureDeep(root);
+
+        BatchSizes sizes = meter.measureDeepAll(roots);
+        assertEquals(1000, sizes.size());
+        assertEquals("for " + guess, sum - 999 * meter.measure(shared), sizes.getTotalBytes());
+        // the shared array is attributed to the first root only
+        assertEquals(meter.measureDeep(roots.get(0)), sizes.getBytes(0));
+        assertEquals(meter.measureDeep(roots.get(1)) - meter.measure(shared), sizes.getBytes(1));
+        assertEquals(sizes.getTotalBytes(), Arrays.stream(sizes.toArray()).sum());
+
+        // consumed lazily, null and repeated roots are attributed 0 bytes
+        MemoryMeter reusing = meter.unbuild().reuseMeasurementContext(16, 1000).build();
+        sizes = reusing.measureDeepAll(roots.stream().flatMap(root -> Arrays.stream(new Object[]{ root, null, root }))::iterator);
+        assertEquals(3000, sizes.size());
+        assertEquals(meter.measureDeepAll(roots).getTotalBytes(), sizes.getTotalBytes());
+        assertEquals(meter.measureDeep(roots.get(0)), sizes.getBytes(0));
+        assertEquals(0, sizes.getBytes(1));
+        assertEquals(0, sizes.getBytes(2));
+    }
+
+    @Test
+    public void testDeepAsync() throws Exception {
+        MemoryMeter meter = MemoryMeter.builder().withGuessing(guess).build();
+
+        List<Object> roots = new ArrayList<>();
+        for (int i = 0; i < 1000; i++) {
+            Recursive root = new Recursive();
+            for (int j = 0; j < i % 10; j++)
+                root = new Recursive(root);
+            roots.add(root);
+        }
+
+        assertEquals(meter.measureDeep(roots.get(9)), (long) meter.measureDeepAsync(roots.get(9)).get());
+
+        long[] sizes = meter.measureAllAsync(roots).get();
+        assertEquals(1000, sizes.length);
+        for (int i = 0; i < sizes.length; i++)
+            assertEquals(meter.measureDeep(roots.get(i)), sizes[i]);
+
+        ExecutorService executor = Executors.newFixedThreadPool(4);
+        try {
+            MemoryMeter reusing = meter.unbuild().reuseMeasurementContext(16, 1000).withAsyncExecutor(executor).build();
+            assertTrue(Arrays.equals(sizes, reusing.measureAllAsync(roots).get()));
+        } finally {
+            executor.shutdown();
+        }
+    }
+
+    @SuppressWarnings("unused")
+    static class WarmedUp {
+        private long value;
+        private Object child;
+    }
+
+    @Test
+    public void testWarmUp() throws Exception {
+        MemoryMeter meter = MemoryMeter.builder().withGuessing(guess).withStatistics().build();
+
+        WarmUp warmUp = meter.warmUp(Arrays.asList(WarmedUp.class, Runnable.class, int[].class), 2).await(10, TimeUnit.SECONDS);
+        assertTrue(warmUp.isDone());
+        assertEquals(3, warmUp.getClasses());
+        assertEquals(1, warmUp.getWarmedClasses());
+        assertEquals(2, warmUp.getSkippedClasses());
+        assertEquals(0, warmUp.getFailedClasses());
+        assertEquals(1, meter.statistics().getClassesWarmedUp());
+        assertEquals(1, meter.statistics().getClassSizersComputed());
+
+        // the first measurement does not compute anything anymore
+        meter.measureDeep(new WarmedUp());
+        assertEquals(1, meter.statistics().getClassSizersComputed());
+        if (guess != MemoryMeter.Guess.ALWAYS_INSTRUMENTATION)
+            assertNotEquals(0, ClassMetadata.shallowSize(WarmedUp.class, guess == MemoryMeter.Guess.ALWAYS_UNSAFE
+                                                                         ? ClassMetadata.SHALLOW_SIZE_UNSAFE
+                                                                         : ClassMetadata.SHALLOW_SIZE_SPEC));
+
+        warmUp = meter.warmUp(Arrays.asList(WarmedUp.class.getName(), "org.github.jamm.DoesNotExist"), getClass().getClassLoader(), 4)
+                      .future()
+                      .get();
+        assertEquals(1, warmUp.getWarmedClasses());
+        assertEquals(1, warmUp.getFailedClasses());
+        assertTrue(warmUp.getFailures().containsKey("#1"));
+
+        if (MemoryMeterInstrumentation.instrumentation != null) {
+            warmUp = meter.warmUpPackages(Arrays.asList("org.github.jamm"), 2).await(10, TimeUnit.SECONDS);
+            assertTrue(warmUp.getWarmedClasses() > 0);
+        } else {
+            try {
+                meter.warmUpPackages(Arrays.asList("org.github.jamm"), 2);
+                fail();
+            } catch (IllegalStateException e) {
+                // expected
+            }
+        }
+    }
+
+    @Test
+    public void testSegmentedVisitedSet() {
+        MemoryMeter meter = MemoryMeter.builder().withGuessing(guess).build();
+        MemoryMeter segmented = meter.unbuild().withVisitedSetStrategy(MemoryMeter.VisitedSetStrategy.SEGMENTED).build();
+
+        List<Object> list = new ArrayList<>();
+        for (int i = 0; i < 100000; i++)
+            list.add(i % 10 == 0 ? list : new Recursive());
+
+        assertEquals("for " + guess, meter.measureDeep(list), segmented.measureDeep(list));
+    }
+
+    @Test
+    public void testMeasurementContext() {
+        MemoryMeter meter = MemoryMeter.builder().withGuessing(guess).build();
+        MemoryMeter reusing = meter.unbuild().reuseMeasurementContext(16, 1000).build();
+
+        Recursive small = new Recursive();
+        small.child = new Recursive();
+        Recursive large = new Recursive();
+        Recursive recursive = large;
+        for (int i = 0; i < 10000; i++) {
+            recursive.child = new Recursive();
+            recursive = recursive.child;
+        }
+
+        MeasurementContext context = new MeasurementContext(16, 1000);
+        for (int i = 0; i < 3; i++) {
+            assertEquals("for " + guess, meter.measureDeep(small), meter.measureDeep(small, context));
+            assertEquals("for " + guess, meter.measureDeep(large), meter.measureDeep(large, context));
+            assertEquals("for " + guess, meter.measureDeep(small), reusing.measureDeep(small));
+            assertEquals("for " + guess, meter.measureDeep(large), reusing.measureDeep(large));
+        }
+        assertEquals(MemoryMeterBase.VisitedSet.capacityFor(16), ((MemoryMeterBase.VisitedSet) context.tracker).table.length);
+    }
+
+    @Test
+    public void testGenerateSizer() {
+        MemoryMeter meter = MemoryMeter.builder().withGuessing(guess).build();
+
+        WithGeneratedSizer<Date> obj = new WithGeneratedSizer<>();
+        obj.value = new Date();
+
+        assertTrue(((MemoryMeterBase) meter).classSizers.get(WithGeneratedSizer.class) instanceof ClassSizer.Generated);
+        assertTrue(((MemoryMeterBase) meter).classSizers.get(WithGeneratedSizerParent.class) instanceof ClassSizer.Generated);
+
+        long expected = meter.measure(obj)
+                        + meter.measureDeep(((WithGeneratedSizerParent) obj).parentPrivate)
+                        + meter.measureDeep(obj.parentField)
+                        + meter.measureDeep(obj.value)
+                        + meter.measureDeep(obj.strings)
+                        + meter.measureDeep(obj.type);
+        assertEquals("for " + guess, expected, meter.measureDeep(obj));
+        long typeSize = meter.measureDeep(obj.type);
+
+        // the generated accessor cannot be used, if the meter does not follow all fields
+        meter = meter.unbuild().ignoreKnownSingletons().build();
+        assertTrue(((MemoryMeterBase) meter).classSizers.get(WithGeneratedSizer.class) instanceof ClassSizer.Fields);
+        assertEquals("for " + guess, expected - typeSize, meter.measureDeep(obj));
+    }
+
+    @GenerateSizer
+    @SuppressWarnings({ "unused", "FieldMayBeFinal" })
+    static class WithGeneratedSizerParent {
+        private Object parentPrivate = new int[10];
+        Object parentField = "parent";
+        long primitive;
+    }
+
+    @GenerateSizer
+    @SuppressWarnings({ "unused", "FieldMayBeFinal" })
+    static class WithGeneratedSizer<T> extends WithGeneratedSizerParent {
+        T value;
+        private List<String> strings = new ArrayList<>(Arrays.asList("a", "b"));
+        private Object nothing;
+        Class<?> type = String.class;
+        int primitive;
+    }
+
     @SuppressWarnings("unused")
     private static class Parent {
         private int i;
@@ -596,6 +1207,13 @@ public class MemoryMeterTest
     private static class Recursive {
         int i;
         Recursive child = null;
+
+        Recursive() {
+        }
+
+        Recursive(Recursive child) {
+            this.child = child;
+        }
     }
     
     @Test
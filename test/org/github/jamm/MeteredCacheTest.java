@@ -0,0 +1,161 @@
+package org.github.jamm;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadLocalRandom;
+
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+public class MeteredCacheTest
+{
+    private final MemoryMeter meter = MemoryMeter.builder().build();
+
+    @Test
+    public void testWeighing()
+    {
+        MeteredCache<Integer, long[]> cache = new MeteredCache<>(meter, 1 << 20, MeteredCache.Eviction.LRU);
+        assertNull(cache.put(1, new long[10]));
+        assertEquals(meter.measureDeep(1) + meter.measureDeep(new long[10]), cache.weightedSize());
+
+        long[] previous = cache.get(1);
+        assertTrue(previous == cache.put(1, new long[20]));
+        assertEquals(meter.measureDeep(1) + meter.measureDeep(new long[20]), cache.weightedSize());
+
+        assertNotNull(cache.remove(1));
+        assertNull(cache.remove(1));
+        assertEquals(0, cache.size());
+        assertEquals(0, cache.weightedSize());
+    }
+
+    static class Bag
+    {
+        Object[] items = new Object[0];
+    }
+
+    @Test
+    public void testReweigh()
+    {
+        MeteredCache<Integer, Bag> cache = new MeteredCache<>(meter, 1 << 20, MeteredCache.Eviction.CLOCK);
+        Bag bag = new Bag();
+        cache.put(1, bag);
+        long before = cache.weightedSize();
+
+        bag.items = new Object[]{ new Object(), new Object(), new long[100] };
+        assertEquals(before, cache.weightedSize());
+        assertTrue(cache.reweigh(1));
+        assertEquals(meter.measureDeep(1) + meter.measureDeep(bag), cache.weightedSize());
+        assertTrue(cache.weightedSize() > before);
+
+        assertFalse(cache.reweigh(2));
+    }
+
+    @Test
+    public void testLruEviction()
+    {
+        long entry = weight(0);
+        MeteredCache<Integer, long[]> cache = new MeteredCache<>(meter, 3 * entry, MeteredCache.Eviction.LRU);
+        cache.put(0, new long[8]);
+        cache.put(1, new long[8]);
+        cache.put(2, new long[8]);
+        assertEquals(3, cache.size());
+
+        // 0 becomes the most recently used entry, so 1 is evicted
+        assertNotNull(cache.get(0));
+        cache.put(3, new long[8]);
+        assertEquals(3, cache.size());
+        assertNull(cache.get(1));
+        assertNotNull(cache.get(0));
+        assertNotNull(cache.get(2));
+        assertNotNull(cache.get(3));
+        assertEquals(3 * entry, cache.weightedSize());
+    }
+
+    @Test
+    public void testClockEviction()
+    {
+        long entry = weight(0);
+        MeteredCache<Integer, long[]> cache = new MeteredCache<>(meter, 3 * entry, MeteredCache.Eviction.CLOCK);
+        cache.put(0, new long[8]);
+        cache.put(1, new long[8]);
+        cache.put(2, new long[8]);
+
+        // 0 gets a second chance, so 1 is evicted
+        assertNotNull(cache.get(0));
+        cache.put(3, new long[8]);
+        assertEquals(3, cache.size());
+        assertNull(cache.get(1));
+        assertNotNull(cache.get(0));
+
+        // an entry heavier than the capacity does not stay in the cache
+        cache.put(4, new long[1000]);
+        assertNull(cache.get(4));
+        assertTrue(cache.weightedSize() <= cache.capacity());
+    }
+
+    @Test
+    public void testConcurrentUse() throws Exception
+    {
+        long entry = weight(0);
+        for (MeteredCache.Eviction eviction : MeteredCache.Eviction.values())
+        {
+            MeteredCache<Integer, long[]> cache = new MeteredCache<>(meter, 100 * entry, eviction);
+            ExecutorService executor = Executors.newFixedThreadPool(4);
+            try
+            {
+                List<Future<?>> futures = new ArrayList<>();
+                for (int t = 0; t < 4; t++)
+                {
+                    futures.add(executor.submit(() -> {
+                        ThreadLocalRandom random = ThreadLocalRandom.current();
+                        for (int i = 0; i < 20000; i++)
+                        {
+                            int key = random.nextInt(500);
+                            switch (random.nextInt(4))
+                            {
+                                case 0:
+                                    cache.put(key, new long[8]);
+                                    break;
+                                case 1:
+                                    cache.remove(key);
+                                    break;
+                                case 2:
+                                    cache.reweigh(key);
+                                    break;
+                                default:
+                                    cache.get(key);
+                            }
+                        }
+                    }));
+                }
+                for (Future<?> future : futures)
+                    future.get();
+            }
+            finally
+            {
+                executor.shutdown();
+            }
+
+            // all keys have the same weight, so the total has to match the number of entries exactly
+            assertEquals(eviction.toString(), cache.size() * entry, cache.weightedSize());
+            assertTrue(eviction.toString(), cache.weightedSize() <= cache.capacity());
+
+            cache.clear();
+            assertEquals(0, cache.size());
+            assertEquals(0, cache.weightedSize());
+        }
+    }
+
+    private long weight(int key)
+    {
+        return meter.measureDeep(key) + meter.measureDeep(new long[8]);
+    }
+}
@@ -2,12 +2,14 @@ package org.github.jamm;
 
 import java.util.ArrayList;
 import java.util.List;
+import java.util.concurrent.atomic.AtomicInteger;
 
 import org.github.jamm.MemoryMeterBase.VisitedSet;
 import org.junit.Test;
 
 import static org.junit.Assert.assertEquals;
 import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertSame;
 import static org.junit.Assert.assertTrue;
 
 public class VisitedSetTest
@@ -61,6 +63,120 @@ public class VisitedSetTest
             assertFalse(s.add(o));
     }
 
+    @Test
+    public void clear()
+    {
+        VisitedSet s = new VisitedSet(100);
+        assertEquals(512, s.table.length);
+        for (int i = 0; i < 100; i++)
+            assertTrue(s.add("o" + i));
+        assertEquals(512, s.table.length);
+
+        Object o = new Object();
+        assertTrue(s.add(o));
+        assertTrue(s.clear(100));
+        assertEquals(0, s.size);
+        assertEquals(512, s.table.length);
+        assertTrue(s.add(o));
+
+        for (int i = 0; i < 200; i++)
+            assertTrue(s.add("x" + i));
+        assertFalse(s.clear(100));
+        assertEquals(0, s.size);
+        assertEquals(512, s.table.length);
+        assertTrue(s.add(o));
+
+        // a table much bigger than needed for the last measurements is halved after a while
+        for (int i = 0; i < 500; i++)
+            assertTrue(s.add("y" + i));
+        assertTrue(s.clear(1000));
+        assertEquals(2048, s.table.length);
+        for (int i = 1; i < VisitedTracker.SHRINK_AFTER_CLEARS; i++)
+            assertTrue(s.clear(1000));
+        assertEquals(2048, s.table.length);
+        assertTrue(s.clear(1000));
+        assertEquals(1024, s.table.length);
+        for (int i = 0; i < VisitedTracker.SHRINK_AFTER_CLEARS; i++)
+            assertTrue(s.clear(1000));
+        assertEquals(512, s.table.length);
+    }
+
+    @Test
+    public void clearAlternating()
+    {
+        VisitedSet s = new VisitedSet();
+        for (int i = 0; i < 4000; i++)
+            assertTrue(s.add("o" + i));
+        Object[] table = s.table;
+        assertTrue(s.clear(10000));
+
+        // big and small measurements alternate, the table is kept
+        for (int cycle = 0; cycle < 4 * VisitedTracker.SHRINK_AFTER_CLEARS; cycle++)
+        {
+            assertTrue(s.add(new Object()));
+            assertTrue(s.clear(10000));
+            for (int i = 0; i < 4000; i++)
+                assertTrue(s.add("o" + i));
+            assertTrue(s.clear(10000));
+            assertSame(table, s.table);
+        }
+    }
+
+    @Test
+    public void segmented()
+    {
+        List<Object> ref = new ArrayList<>();
+        for (int i = 0; i < 100000; i++)
+            ref.add("o" + i);
+
+        SegmentedVisitedSet s = new SegmentedVisitedSet(0);
+        for (int i = 0; i < ref.size(); i++)
+        {
+            assertEquals(i, s.size);
+            assertTrue(s.add(ref.get(i)));
+        }
+        for (Object o : ref)
+            assertFalse(s.add(o));
+        assertEquals(ref.size(), s.size);
+
+        // tables are too big to be retained
+        assertFalse(s.clear(1000));
+        assertEquals(0, s.size);
+        for (Object o : ref.subList(0, 1000))
+            assertTrue(s.add(o));
+        assertTrue(s.clear(10000));
+        for (Object o : ref.subList(0, 1000))
+            assertTrue(s.add(o));
+    }
+
+    @Test
+    public void concurrentAdd() throws Exception
+    {
+        List<Object> ref = new ArrayList<>();
+        for (int i = 0; i < 10000; i++)
+            ref.add("o" + i);
+
+        ConcurrentVisitedSet s = new ConcurrentVisitedSet(4);
+        AtomicInteger added = new AtomicInteger();
+        Thread[] threads = new Thread[4];
+        for (int t = 0; t < threads.length; t++)
+        {
+            threads[t] = new Thread(() -> {
+                for (Object o : ref)
+                    if (s.add(o))
+                        added.incrementAndGet();
+            });
+            threads[t].start();
+        }
+        for (Thread t : threads)
+            t.join();
+
+        assertEquals(ref.size(), added.get());
+        assertEquals(ref.size(), s.size());
+        for (Object o : ref)
+            assertFalse(s.add(o));
+    }
+
     private int expectedCapacity(int i)
     {
         // 3 as the "magic size factor" to have enough 'null's in the open-addressing-map